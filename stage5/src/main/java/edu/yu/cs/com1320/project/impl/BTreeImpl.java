@@ -17,6 +17,9 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
 
     private PersistenceManager<Key, Value> pm = null;
     private Set<Key> keysOnDisk;
+    //keys whose value was read back from disk and has not been replaced since, so their file still holds it. The file is kept,
+    //which also lets a value read lazily keep reading from it, and moving the value to disk again only drops it from memory
+    private Set<Key> cleanKeys;
 
 
     //B-tree node data type
@@ -90,6 +93,7 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
 
         this.root = new BTreeImpl.Node(0);
         this.keysOnDisk = new HashSet<>();
+        this.cleanKeys = new HashSet<>();
     }
 
     /**
@@ -112,8 +116,9 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
             try {
 
                 Value v = this.pm.deserialize(k);
-                put(k, v);
+                this.get(this.root, k, this.height).val = v;
                 keysOnDisk.remove(k);
+                cleanKeys.add(k);
                 return v;
 
             } catch(IOException e) {
@@ -132,6 +137,92 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
         return null;
     }
 
+    /**
+     * @param k the key
+     * @return true if the value of the key has been moved to disk and not read back, without reading it
+     */
+    public boolean isOnDisk(Key k) {
+
+        return keysOnDisk.contains(k);
+    }
+
+    /**
+     * take the value of the key out and delete its file if it has one, without reading it back first
+     * @param k the key
+     */
+    public void remove(Key k) {
+
+        if(k == null) {
+
+            throw new IllegalArgumentException("argument to remove() is null");
+        }
+
+        BTreeImpl.Entry entry = this.get(this.root, k, this.height);
+
+        if(entry == null) {
+
+            return;
+        }
+
+        entry.val = null;
+
+        //a value on disk and a clean value in memory are the two that have a file
+        if(keysOnDisk.remove(k) || cleanKeys.remove(k)) {
+
+            try {
+
+                this.pm.delete(k);
+
+            } catch(IOException e) {
+
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * read the values of the given keys that are on disk in one call to the persistence manager, which may read them in parallel,
+     * so getting them afterwards reads nothing
+     * @param keys
+     */
+    public void load(Collection<Key> keys) {
+
+        if(this.pm == null) {
+
+            return;
+        }
+
+        List<Key> onDisk = new ArrayList<>();
+
+        for(Key k : keys) {
+
+            if(keysOnDisk.contains(k)) {
+
+                onDisk.add(k);
+            }
+        }
+
+        //a single value is read just as well by get
+        if(onDisk.size() < 2) {
+
+            return;
+        }
+
+        try {
+
+            for(Map.Entry<Key, Value> loaded : this.pm.deserializeAll(onDisk).entrySet()) {
+
+                this.get(this.root, loaded.getKey(), this.height).val = loaded.getValue();
+                keysOnDisk.remove(loaded.getKey());
+                cleanKeys.add(loaded.getKey());
+            }
+
+        } catch(IOException e) {
+
+            e.printStackTrace();
+        }
+    }
+
     private BTreeImpl.Entry get(BTreeImpl.Node currentNode, Key key, int height) {
 
         BTreeImpl.Entry[] entries = currentNode.entries;
@@ -207,6 +298,19 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
             }else{
 
                 oldVal = (Value) alreadyThere.val;
+
+                if(oldVal != v && cleanKeys.remove(k)) {
+
+                    //the file no longer matches the value. The persistence manager reads whatever the old value still needs from it first
+                    try {
+
+                        this.pm.delete(k);
+
+                    } catch(IOException e) {
+
+                        e.printStackTrace();
+                    }
+                }
             }
 
             alreadyThere.val = v;
@@ -218,12 +322,19 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
             return null;
         }
 
+        insert(k, v);
+        return null;
+    }
+
+    //add an entry for a key that is not in the tree yet
+    private void insert(Key k, Value v) {
+
         BTreeImpl.Node newNode = this.put(this.root, k, v, this.height);
         this.n++;
 
         if (newNode == null) {
 
-            return null;
+            return;
         }
 
         //split the root:
@@ -237,7 +348,6 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
 
         //a split at the root always increases the tree height by 1
         this.height++;
-        return null;
     }
 
     /**
@@ -365,7 +475,12 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
 
         BTreeImpl.Entry alreadyThere = this.get(this.root, k, this.height);
 
-        pm.serialize(k, get(k));
+        //a clean value is already on disk as it is, so there is nothing to write
+        if(!cleanKeys.remove(k)) {
+
+            pm.serialize(k, get(k));
+        }
+
         alreadyThere.val = null;
         keysOnDisk.add(k);
     }
@@ -374,6 +489,23 @@ public class BTreeImpl<Key extends Comparable<Key>, Value> implements BTree<Key,
     public void setPersistenceManager(PersistenceManager<Key,Value> pm) {
 
         this.pm = pm;
+
+        //values the persistence manager already holds, e.g. from before a restart, get an entry that reads them on first get
+        try {
+
+            for(Key k : pm.getPersistedKeys()) {
+
+                if(this.get(this.root, k, this.height) == null) {
+
+                    insert(k, null);
+                    keysOnDisk.add(k);
+                }
+            }
+
+        } catch(IOException e) {
+
+            e.printStackTrace();
+        }
     }
 
     // comparison functions - make Comparable instead of Key to avoid casts
@@ -1,6 +1,8 @@
 package edu.yu.cs.com1320.project.impl;
 
 import edu.yu.cs.com1320.project.MinHeap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class MinHeapImpl<E extends Comparable<E>> extends MinHeap<E> {
@@ -24,10 +26,27 @@ public class MinHeapImpl<E extends Comparable<E>> extends MinHeap<E> {
         }
 
         int index = getArrayIndex(element);
+        //the element passed in is equal to the one in the heap but carries its new priority, so it takes its place
+        elements[index] = element;
         downHeap(index);
         upHeap(index);
     }
 
+    /**
+     * @return the elements in the heap, in no particular order
+     */
+    public List<E> toList() {
+
+        List<E> list = new ArrayList<>(this.count);
+
+        for(int i = 1; i <= this.count; i++) {
+
+            list.add(this.elements[i]);
+        }
+
+        return list;
+    }
+
     @Override
     protected int getArrayIndex(E element) {
 
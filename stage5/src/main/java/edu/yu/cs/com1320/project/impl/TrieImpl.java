@@ -3,6 +3,7 @@ package edu.yu.cs.com1320.project.impl;
 import edu.yu.cs.com1320.project.Trie;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 
 public class TrieImpl<Value> implements Trie<Value> {
 
@@ -34,25 +35,82 @@ public class TrieImpl<Value> implements Trie<Value> {
 
         }else{
 
-            this.root = put(this.root, key, val, 0);
+            this.root = put(typed(this.root), key, Collections.singletonList(val), 0);
         }
     }
 
-    private Node put(Node x, String key, Value val, int d) {
+    /**
+     * add all the given values at the given key, walking down to it only once
+     * @param key
+     * @param vals
+     */
+    public void putAll(String key, Collection<Value> vals) {
+
+        if(vals.isEmpty()) {
+
+            return;
+        }
+
+        this.root = put(typed(this.root), key, vals, 0);
+    }
+
+    /**
+     * visit every key that has values, in order
+     * @param action called with each key and its values
+     */
+    public void forEach(BiConsumer<String, List<Value>> action) {
+
+        forEach(typed(this.root), new StringBuilder(), action);
+    }
+
+    private void forEach(Node<Value> x, StringBuilder key, BiConsumer<String, List<Value>> action) {
+
+        if(x == null) {
+
+            return;
+        }
+
+        if(!x.values.isEmpty()) {
+
+            action.accept(key.toString(), Collections.unmodifiableList(x.values));
+        }
+
+        for(char c = 0; c < alphabetSize; c++) {
+
+            if(x.links[c] != null) {
+
+                key.append(c);
+                forEach(typed(x.links[c]), key, action);
+                key.setLength(key.length() - 1);
+            }
+        }
+    }
+
+    private Node<Value> put(Node<Value> x, String key, Collection<Value> vals, int d) {
 
         //create a new node
         if(x == null) {
 
-            x = new Node();
+            x = new Node<>();
         }
 
         //we've reached the last node in the key,
         //add the value to the list of values for the key and return the node
         if(d == key.length()) {
 
-            if(!x.values.contains(val)) {
+            if(x.values.isEmpty()) {
+
+                //nothing to check against, so skip the linear contains of each value
+                x.values.addAll(new LinkedHashSet<>(vals));
+                return x;
+            }
+
+            for(Value val : vals) {
 
-                x.values.add(val);
+                if(!x.values.contains(val)) {
+
+                    x.values.add(val);
+                }
             }
 
             return x;
@@ -61,7 +119,7 @@ public class TrieImpl<Value> implements Trie<Value> {
         //proceed to the next node in the chain of nodes that
         //forms the desired key
         char c = key.charAt(d);
-        x.links[c] = this.put(x.links[c], key, val, d + 1);
+        x.links[c] = this.put(typed(x.links[c]), key, vals, d + 1);
         return x;
     }
 
@@ -293,4 +351,11 @@ public class TrieImpl<Value> implements Trie<Value> {
             getAllValuesWithPrefix(x.links[c], prefix + c, values);
         }
     }
+
+    //nodes are linked through arrays of the raw type, since an array of a generic type cannot be created
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node<Value> typed(Node x) {
+
+        return x;
+    }
 }
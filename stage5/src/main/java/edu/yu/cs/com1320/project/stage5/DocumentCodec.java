@@ -0,0 +1,84 @@
+package edu.yu.cs.com1320.project.stage5;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a document into bytes and back. Every file written by a persistence manager is prefixed with a header
+ * holding the version of the codec that wrote it, and reads pick the codec by that version.
+ */
+public interface DocumentCodec {
+
+    /**
+     * @return the version number stored in the header of files written by this codec. Must be unique among the codecs of a persistence manager.
+     */
+    int getVersion();
+
+    /**
+     * @param doc the document to encode
+     * @return the encoded document, not including the file header
+     * @throws IOException if the document cannot be encoded
+     */
+    byte[] encode(Document doc) throws IOException;
+
+    /**
+     * Write the encoding of the document to a stream. Codecs that can write it as they go, without holding all of it first, override this.
+     * @param doc the document to encode
+     * @param out where the encoding goes, not including the file header. Flushed but not closed
+     * @throws IOException if the document cannot be encoded or written
+     */
+    default void encode(Document doc, OutputStream out) throws IOException {
+
+        out.write(encode(doc));
+        out.flush();
+    }
+
+    /**
+     * @param buffer the encoded document, positioned just past the file header
+     * @return the decoded document
+     * @throws IOException if the buffer does not hold a valid encoding
+     */
+    Document decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Decode only what the encoding holds before the body: the uri, the word counts and the length of the body. The returned
+     * document reads its body through bodyReader the first time its text or binary data is asked for.
+     * @param header the start of the encoded document, positioned just past the file header. It may end anywhere after the part being decoded
+     * @param bodyReader reads a range of the encoding, by offset from its first byte
+     * @return the document without its body, or null if this codec cannot read a document without its body
+     * @throws java.io.EOFException if the header ends before the part before the body does, and more of the encoding is needed
+     * @throws IOException if the buffer does not hold a valid encoding
+     */
+    default Document decodeHeader(ByteBuffer header, BodyReader bodyReader) throws IOException {
+
+        return null;
+    }
+
+    /**
+     * Find the binary data of an encoding that holds it as is, so it can be sent straight from the file it is stored in.
+     * @param header the start of the encoded document, positioned just past the file header. It may end anywhere after the part before the body
+     * @return the offset of the binary data from the first byte of the encoding, which it runs to the end of, or -1 if the encoding is of
+     * a text document or this codec does not keep binary data as is
+     * @throws java.io.EOFException if the header ends before the binary data starts, and more of the encoding is needed
+     * @throws IOException if the buffer does not hold a valid encoding
+     */
+    default long binaryDataOffset(ByteBuffer header) throws IOException {
+
+        return -1;
+    }
+
+    /**
+     * reads part of an encoded document on demand
+     */
+    interface BodyReader {
+
+        /**
+         * @param offset the offset of the range from the first byte of the encoding
+         * @param length the number of bytes to read
+         * @return a buffer holding exactly the range
+         * @throws IOException
+         */
+        ByteBuffer read(long offset, int length) throws IOException;
+    }
+}
@@ -2,7 +2,9 @@ package edu.yu.cs.com1320.project.stage5;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Set;
 
@@ -31,6 +33,34 @@ public interface DocumentStore
      */
     Document get(URI uri);
 
+    /**
+     * write the binary data of a binary document to the channel. A document that has been moved to disk is sent from its file
+     * without being read into memory, and stays on disk
+     * @param uri the unique identifier of the document
+     * @param target where the binary data goes. It is not closed
+     * @return the number of bytes written, or -1 if there is no binary document with that URI
+     * @throws IOException if the binary data cannot be read or written
+     */
+    long transferBinaryData(URI uri, WritableByteChannel target) throws IOException;
+
+    /**
+     * write the binary data of a binary document to the stream, as {@link #transferBinaryData(URI, WritableByteChannel)} does
+     * @param uri the unique identifier of the document
+     * @param out where the binary data goes. It is not closed
+     * @return the number of bytes written, or -1 if there is no binary document with that URI
+     * @throws IOException if the binary data cannot be read or written
+     */
+    long transferBinaryData(URI uri, OutputStream out) throws IOException;
+
+    /**
+     * @param uri the unique identifier of the document
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the binary data of the document from offset on, fewer than length bytes if it ends first, or null if there is no
+     * binary document with that URI
+     */
+    byte[] getBinaryData(URI uri, long offset, int length);
+
     /**
      * @param uri the unique identifier of the document to delete
      * @return true if the document is deleted, false if no document exists with that URI
@@ -92,5 +122,5 @@ public interface DocumentStore
      * set maximum number of bytes of memory that may be used by all the documents in memory combined
      * @param limit
      */
-    void setMaxDocumentBytes(int limit);
+    void setMaxDocumentBytes(long limit);
 }
\ No newline at end of file
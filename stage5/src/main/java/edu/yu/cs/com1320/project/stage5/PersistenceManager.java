@@ -1,6 +1,12 @@
 package edu.yu.cs.com1320.project.stage5;
 
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 public interface PersistenceManager<Key,Value> {
     void serialize(Key key, Value val) throws IOException;
@@ -12,4 +18,44 @@ public interface PersistenceManager<Key,Value> {
      * @throws IOException
      */
     boolean delete(Key key) throws IOException;
+
+    /**
+     * @return the keys that have a value on disk, if they can be listed without reading any value. Otherwise an empty set
+     * @throws IOException
+     */
+    default Set<Key> getPersistedKeys() throws IOException {
+
+        return Collections.emptySet();
+    }
+
+    /**
+     * read several values in one call, which persistence managers that can read them in parallel, e.g. from several disks, do
+     * @param keys
+     * @return the value of every key
+     * @throws IOException if any of them cannot be read
+     */
+    default Map<Key, Value> deserializeAll(Collection<Key> keys) throws IOException {
+
+        Map<Key, Value> values = new HashMap<>();
+
+        for(Key key : keys) {
+
+            values.put(key, deserialize(key));
+        }
+
+        return values;
+    }
+
+    /**
+     * write the raw content of the value of the key, such as the binary data of a document, straight from where it is stored to
+     * the channel, without reading it onto the heap, for persistence managers that can
+     * @param key
+     * @param target
+     * @return the number of bytes written, or -1 if the value is not stored as raw content this can send, and has to be deserialized
+     * @throws IOException if there is no value for the key or it cannot be written
+     */
+    default long transferTo(Key key, WritableByteChannel target) throws IOException {
+
+        return -1;
+    }
 }
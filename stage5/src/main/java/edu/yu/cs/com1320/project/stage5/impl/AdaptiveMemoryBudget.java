@@ -0,0 +1,314 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.Closeable;
+import java.lang.management.*;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts the byte limit of a store while the heap is under pressure and raises it again once there is room, on top of the limit
+ * set by setMaxDocumentBytes, which it never goes over. The heap is measured after every garbage collection, and whenever a heap
+ * pool is still over the high watermark after a collection of it, as the platform MX beans report.
+ *
+ * The store asks for its limit whenever the budget measures the heap, on the thread that measured it, and whenever a document
+ * comes into memory, and evicts the least recently used documents down to it, as it does for its own limits. Each measurement is acted on once: above the high watermark the limit is cut to three quarters
+ * of the bytes in memory, below the low watermark it grows by a quarter, or is lifted once the store holds a quarter less than
+ * it allows, and in between it stays.
+ *
+ * As a last line of defence the budget holds a ballast array through a soft reference. The collector clears soft references
+ * before it gives up with an OutOfMemoryError, freeing the ballast, and if the heap is still over the high watermark the next
+ * time the store asks, the limit is halved at once. The ballast is taken again once the heap is below the low watermark.
+ *
+ * A budget belongs to one store, and its listeners stay registered until it is closed.
+ */
+public class AdaptiveMemoryBudget implements Closeable {
+
+    public static final double DEFAULT_LOW_WATERMARK = 0.5;
+    public static final double DEFAULT_HIGH_WATERMARK = 0.8;
+    public static final int DEFAULT_BALLAST_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 64 << 20);
+
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static final double SHRINK_FACTOR = 0.75;
+    private static final double GROW_FACTOR = 1.25;
+    private static final long MIN_GROW_BYTES = 1 << 20;
+
+    private final double lowWatermark;
+    private final double highWatermark;
+    private final int ballastBytes;
+    private final List<NotificationEmitter> emitters;
+    private final List<MemoryPoolMXBean> thresholdPools;
+    private final NotificationListener listener;
+    private SoftReference<byte[]> ballast;
+    //set by the store, to evict down to its limit as soon as a measurement comes in
+    private volatile Runnable onMeasurement;
+
+    private double pressure;
+    //measurements taken, and how many of them the budget has acted on
+    private long readings;
+    private long appliedReadings;
+    private long budget;
+    private long shrinkCount;
+    private long growCount;
+    private long emergencyCount;
+
+    public AdaptiveMemoryBudget() {
+
+        this(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK, DEFAULT_BALLAST_BYTES);
+    }
+
+    /**
+     * @param lowWatermark the share of the heap in use below which the limit grows again
+     * @param highWatermark the share of the heap in use above which the limit is cut
+     * @param ballastBytes the length of the ballast array, or 0 to keep none
+     */
+    public AdaptiveMemoryBudget(double lowWatermark, double highWatermark, int ballastBytes) {
+
+        this(lowWatermark, highWatermark, ballastBytes, true);
+    }
+
+    /**
+     * @param listen false to only act on the measurements given to recordPressure
+     */
+    AdaptiveMemoryBudget(double lowWatermark, double highWatermark, int ballastBytes, boolean listen) {
+
+        if(lowWatermark <= 0 || lowWatermark >= highWatermark || highWatermark >= 1 || ballastBytes < 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.ballastBytes = ballastBytes;
+        this.emitters = new ArrayList<>();
+        this.thresholdPools = new ArrayList<>();
+        this.budget = Long.MAX_VALUE;
+        this.listener = this::handleNotification;
+        armBallast();
+
+        if(!listen) {
+
+            return;
+        }
+
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+
+            if(collector instanceof NotificationEmitter) {
+
+                this.emitters.add((NotificationEmitter) collector);
+            }
+        }
+
+        //the memory bean sends the notifications of the thresholds of every pool
+        this.emitters.add((NotificationEmitter) ManagementFactory.getMemoryMXBean());
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+            long max = pool.getUsage().getMax();
+
+            if(pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+
+                pool.setCollectionUsageThreshold((long) (max * highWatermark));
+                this.thresholdPools.add(pool);
+            }
+        }
+
+        for(NotificationEmitter emitter : this.emitters) {
+
+            emitter.addNotificationListener(this.listener, null, null);
+        }
+    }
+
+    /**
+     * @param used the bytes of the documents in memory
+     * @param limit the limit set on the store
+     * @return the limit the store should keep to now, never more than the one set on it
+     */
+    synchronized long limitFor(long used, long limit) {
+
+        boolean fresh = this.appliedReadings != this.readings;
+        this.appliedReadings = this.readings;
+
+        if(this.ballast != null && this.ballast.get() == null) {
+
+            this.ballast = null;
+
+            //soft references are also cleared when they have not been used for long, which only matters if the heap is full
+            if(this.pressure >= this.highWatermark) {
+
+                this.budget = used / 2;
+                this.emergencyCount++;
+                return Math.min(limit, this.budget);
+            }
+        }
+
+        if(!fresh) {
+
+            return Math.min(limit, this.budget);
+        }
+
+        if(this.pressure >= this.highWatermark) {
+
+            this.budget = (long) (Math.min(this.budget, used) * SHRINK_FACTOR);
+            this.shrinkCount++;
+
+        }else if(this.pressure <= this.lowWatermark) {
+
+            if(this.budget < limit) {
+
+                long grown = Math.max((long) (this.budget * GROW_FACTOR), this.budget + MIN_GROW_BYTES);
+                //the cut is lifted once the store keeps well under it on its own
+                this.budget = grown >= limit || used * GROW_FACTOR <= this.budget ? Long.MAX_VALUE : grown;
+                this.growCount++;
+            }
+
+            if(this.ballast == null) {
+
+                armBallast();
+            }
+        }
+
+        return Math.min(limit, this.budget);
+    }
+
+    /**
+     * record a measurement of the heap, to be acted on the next time the store asks for its limit
+     * @param pressure the share of the heap in use
+     */
+    synchronized void recordPressure(double pressure) {
+
+        this.pressure = pressure;
+        this.readings++;
+
+        //using the ballast now and then keeps it from being cleared only for having gone unused
+        if(this.ballast != null) {
+
+            this.ballast.get();
+        }
+    }
+
+    /**
+     * record a measurement of the heap and have the store act on it at once, as the listeners do
+     * @param pressure the share of the heap in use
+     */
+    void measure(double pressure) {
+
+        recordPressure(pressure);
+        //run outside the lock of the budget, as the store asks for its limit while holding its own
+        Runnable store = this.onMeasurement;
+
+        if(store != null) {
+
+            store.run();
+        }
+    }
+
+    /**
+     * @param onMeasurement run after every measurement, or null to leave them to the next time the store asks
+     */
+    void setOnMeasurement(Runnable onMeasurement) {
+
+        this.onMeasurement = onMeasurement;
+    }
+
+    /**
+     * @return the limit in force, or Long.MAX_VALUE if it has not been cut
+     */
+    public synchronized long getBudget() {
+
+        return this.budget;
+    }
+
+    /**
+     * @return the share of the heap in use at the latest measurement
+     */
+    public synchronized double getPressure() {
+
+        return this.pressure;
+    }
+
+    /**
+     * @return the number of times the limit was cut
+     */
+    public synchronized long getShrinkCount() {
+
+        return this.shrinkCount;
+    }
+
+    /**
+     * @return the number of times the limit grew
+     */
+    public synchronized long getGrowCount() {
+
+        return this.growCount;
+    }
+
+    /**
+     * @return the number of times the ballast was cleared with the heap full and the limit halved
+     */
+    public synchronized long getEmergencyCount() {
+
+        return this.emergencyCount;
+    }
+
+    /**
+     * stop listening for measurements and take the thresholds off the heap pools
+     */
+    @Override
+    public void close() {
+
+        for(NotificationEmitter emitter : this.emitters) {
+
+            try {
+
+                emitter.removeNotificationListener(this.listener);
+
+            } catch(ListenerNotFoundException e) {
+
+                //already removed
+            }
+        }
+
+        this.emitters.clear();
+
+        for(MemoryPoolMXBean pool : this.thresholdPools) {
+
+            pool.setCollectionUsageThreshold(0);
+        }
+
+        this.thresholdPools.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format("limit %s, heap %.0f%% in use, cut %d times, grown %d times, %d emergencies",
+                this.budget == Long.MAX_VALUE ? "not cut" : this.budget + " bytes", this.pressure * 100, this.shrinkCount,
+                this.growCount, this.emergencyCount);
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+
+        String type = notification.getType();
+
+        if(GC_NOTIFICATION.equals(type) || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+
+            //sent just after the collection, so what is in use is close to what survived it
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+            measure((double) heap.getUsed() / max);
+        }
+    }
+
+    private void armBallast() {
+
+        if(this.ballastBytes > 0) {
+
+            this.ballast = new SoftReference<>(new byte[this.ballastBytes]);
+        }
+    }
+}
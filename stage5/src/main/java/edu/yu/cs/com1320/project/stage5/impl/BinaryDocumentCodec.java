@@ -0,0 +1,338 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Length-prefixed binary encoding of a document. All lengths and counts are unsigned varints.
+ * <pre>
+ * byte   kind (0 = text, 1 = binary)
+ * varint uri length, uri (UTF-8)
+ * text only: varint number of words, then for each word: varint length, word (UTF-8), varint count
+ * varint body length, body (UTF-8 text or raw bytes)
+ * </pre>
+ * The word map is written before the body so a reader can get to it without touching the body.
+ *
+ * Buffers that are not on the heap, such as memory-mapped files, are not copied when decoding: the document keeps a view of
+ * the body and only decodes its text when getDocumentTxt is called.
+ */
+public class BinaryDocumentCodec implements DocumentCodec {
+
+    public static final int VERSION = 2;
+
+    static final byte TXT = 0;
+    static final byte BINARY = 1;
+
+    @Override
+    public int getVersion() {
+
+        return VERSION;
+    }
+
+    /**
+     * @param doc the document to encode
+     * @return the encoded document
+     */
+    @Override
+    public byte[] encode(Document doc) {
+
+        if(doc == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        boolean isText = isText(doc);
+        ByteBuffer body = bodyOf(doc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.remaining() + 64);
+
+        writeHeader(out, doc, isText);
+        writeVarInt(out, body.remaining());
+
+        if(body.hasArray()) {
+
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+
+        }else{
+
+            byte[] chunk = new byte[Math.min(body.remaining(), 8192)];
+
+            while(body.hasRemaining()) {
+
+                int length = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param buffer the encoded document, positioned at its first byte
+     * @return the decoded document
+     * @throws IOException if the buffer does not hold a valid encoding
+     */
+    @Override
+    public Document decode(ByteBuffer buffer) throws IOException {
+
+        try {
+
+            byte kind = buffer.get();
+            URI uri = URI.create(readString(buffer));
+
+            if(kind == TXT) {
+
+                Map<String, Integer> wordCountMap = readWordMap(buffer);
+
+                if(buffer.isDirect()) {
+
+                    return new DocumentImpl(uri, slice(buffer), true, wordCountMap);
+                }
+
+                //the text is kept as the bytes it was written as, copied so the rest of the buffer can go
+                byte[] utf8 = new byte[readLength(buffer)];
+                buffer.get(utf8);
+                return new DocumentImpl(uri, ByteBuffer.wrap(utf8), true, wordCountMap);
+
+            }else if(kind == BINARY) {
+
+                if(buffer.isDirect()) {
+
+                    return new DocumentImpl(uri, slice(buffer), false, null);
+                }
+
+                byte[] binaryData = new byte[readLength(buffer)];
+                buffer.get(binaryData);
+                return new DocumentImpl(uri, binaryData);
+
+            }else{
+
+                throw new IOException("unknown document kind " + kind);
+            }
+
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+
+            throw new IOException("corrupt binary document", e);
+        }
+    }
+
+    /**
+     * @param header the start of the encoded document
+     * @param bodyReader reads the body when it is first needed
+     * @return the document without its body
+     * @throws IOException if the header is cut off or corrupt
+     */
+    @Override
+    public Document decodeHeader(ByteBuffer header, BodyReader bodyReader) throws IOException {
+
+        int start = header.position();
+
+        try {
+
+            byte kind = header.get();
+
+            if(kind != TXT && kind != BINARY) {
+
+                throw new IOException("unknown document kind " + kind);
+            }
+
+            URI uri = URI.create(readString(header));
+            Map<String, Integer> wordCountMap = kind == TXT ? readWordMap(header) : null;
+            int length = readVarInt(header);
+            long offset = header.position() - start;
+
+            return new DocumentImpl(uri, kind == TXT, wordCountMap, length, () -> bodyReader.read(offset, length));
+
+        } catch(BufferUnderflowException e) {
+
+            throw new EOFException("header runs past the bytes read");
+
+        } catch(IllegalArgumentException e) {
+
+            throw new IOException("corrupt binary document", e);
+        }
+    }
+
+    /**
+     * @param header the start of the encoded document
+     * @return where the raw bytes of a binary document start, or -1 for a text document
+     * @throws IOException if the header is cut off or corrupt
+     */
+    @Override
+    public long binaryDataOffset(ByteBuffer header) throws IOException {
+
+        int start = header.position();
+
+        try {
+
+            byte kind = header.get();
+
+            if(kind == TXT) {
+
+                return -1;
+            }
+
+            if(kind != BINARY) {
+
+                throw new IOException("unknown document kind " + kind);
+            }
+
+            readString(header);
+            readVarInt(header);
+            return header.position() - start;
+
+        } catch(BufferUnderflowException e) {
+
+            throw new EOFException("header runs past the bytes read");
+
+        } catch(IllegalArgumentException e) {
+
+            throw new IOException("corrupt binary document", e);
+        }
+    }
+
+    static boolean isText(Document doc) {
+
+        //a DocumentImpl can answer without decoding a body that was never decoded in the first place
+        return doc instanceof DocumentImpl ? ((DocumentImpl) doc).isText() : doc.getDocumentTxt() != null;
+    }
+
+    //the body as UTF-8 text or raw bytes
+    static ByteBuffer bodyOf(Document doc) {
+
+        if(doc instanceof DocumentImpl) {
+
+            return ((DocumentImpl) doc).getBodyBuffer();
+        }
+
+        return ByteBuffer.wrap(doc.getDocumentTxt() != null ? doc.getDocumentTxt().getBytes(StandardCharsets.UTF_8) : doc.getDocumentBinaryData());
+    }
+
+    //kind, uri and, for text, the word map: everything that comes before the body
+    static void writeHeader(ByteArrayOutputStream out, Document doc, boolean isText) {
+
+        out.write(isText ? TXT : BINARY);
+        writeBytes(out, doc.getKey().toString().getBytes(StandardCharsets.UTF_8));
+
+        if(isText && doc instanceof DocumentImpl) {
+
+            //straight from the arrays of the document, without building a copy of its word map
+            DocumentImpl impl = (DocumentImpl) doc;
+            writeVarInt(out, impl.getWords().size());
+            impl.forEachWord((word, count) -> {
+
+                writeBytes(out, word.getBytes(StandardCharsets.UTF_8));
+                writeVarInt(out, count);
+            });
+
+        }else if(isText) {
+
+            Map<String, Integer> wordCountMap = doc.getWordMap();
+            writeVarInt(out, wordCountMap.size());
+
+            for(Map.Entry<String, Integer> entry : wordCountMap.entrySet()) {
+
+                writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                writeVarInt(out, entry.getValue());
+            }
+        }
+    }
+
+    static Map<String, Integer> readWordMap(ByteBuffer buffer) throws IOException {
+
+        int words = readVarInt(buffer);
+        Map<String, Integer> wordCountMap = new HashMap<>(words * 4 / 3 + 1);
+
+        for(int i = 0; i < words; i++) {
+
+            String word = readString(buffer);
+            wordCountMap.put(word, readVarInt(buffer));
+        }
+
+        return wordCountMap;
+    }
+
+    static void writeVarInt(ByteArrayOutputStream out, int value) {
+
+        while((value & ~0x7F) != 0) {
+
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    static int readVarInt(ByteBuffer buffer) throws IOException {
+
+        int value = 0;
+
+        for(int shift = 0; shift < 32; shift += 7) {
+
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0) {
+
+                return value;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+
+    //read a length prefix and make sure that many bytes are actually left in the buffer
+    static int readLength(ByteBuffer buffer) throws IOException {
+
+        int length = readVarInt(buffer);
+
+        if(length < 0 || length > buffer.remaining()) {
+
+            throw new EOFException("length " + length + " runs past the end of the document");
+        }
+
+        return length;
+    }
+
+    static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    //a view of the next length-prefixed field, without copying it
+    static ByteBuffer slice(ByteBuffer buffer) throws IOException {
+
+        int length = readLength(buffer);
+        ByteBuffer field = buffer.slice();
+        field.limit(length);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+
+        int length = readLength(buffer);
+
+        if(buffer.hasArray()) {
+
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,307 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Document bodies stored once each, named by their SHA-256 hash, with a count of the references to each.
+ *
+ * Counts are kept in memory and every change is appended to a log of (hash, change) entries, which is summed and rewritten when
+ * the store is opened. A reference is counted before it is written and uncounted after it is removed, so a crash in between can
+ * only leave a blob that nothing refers to, never a reference to a blob that is gone.
+ */
+class BlobStore implements Closeable {
+
+    static final int HASH_LENGTH = 32;
+    private static final int LOG_ENTRY_LENGTH = HASH_LENGTH + 4;
+    private static final String LOG = "refcounts.log";
+    private static final String EXTENSION = ".blob";
+
+    private final File directory;
+    private final Map<String, Integer> counts;
+    private final DedupStatistics statistics;
+    private FileChannel log;
+
+    /**
+     * @param directory where blobs and their counts are kept
+     * @throws IOException if the counts cannot be read
+     */
+    BlobStore(File directory) throws IOException {
+
+        this.directory = directory;
+        this.counts = new HashMap<>();
+        this.statistics = new DedupStatistics();
+
+        Files.createDirectories(directory.toPath());
+        Path logPath = new File(directory, LOG).toPath();
+
+        if(Files.exists(logPath)) {
+
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(logPath));
+            byte[] hash = new byte[HASH_LENGTH];
+
+            //a torn last entry was never acknowledged, so it is dropped
+            while(entries.remaining() >= LOG_ENTRY_LENGTH) {
+
+                entries.get(hash);
+                this.counts.merge(toHex(hash), entries.getInt(), Integer::sum);
+            }
+
+            this.counts.values().removeIf(count -> count <= 0);
+        }
+
+        //start from a log holding one entry per live blob
+        Path tmp = new File(directory, LOG + ".tmp").toPath();
+
+        try(FileChannel compacted = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            for(Map.Entry<String, Integer> entry : this.counts.entrySet()) {
+
+                ByteBuffer buffer = logEntry(fromHex(entry.getKey()), entry.getValue());
+
+                while(buffer.hasRemaining()) {
+
+                    compacted.write(buffer);
+                }
+            }
+
+            compacted.force(true);
+        }
+
+        Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.log = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * store the body if no blob holds it yet, and count one more reference to it
+     * @param body the body, which is not consumed
+     * @param sync force the blob and the count to disk before returning
+     * @return the hash of the body
+     * @throws IOException
+     */
+    byte[] add(ByteBuffer body, boolean sync) throws IOException {
+
+        long start = System.nanoTime();
+        byte[] hash = hash(body);
+        long hashNanos = System.nanoTime() - start;
+        String name = toHex(hash);
+        boolean stored = false;
+
+        synchronized(this) {
+
+            File file = fileFor(name);
+
+            if(!this.counts.containsKey(name) || !file.exists()) {
+
+                writeBlob(file, body, sync);
+                stored = true;
+            }
+
+            this.counts.merge(name, 1, Integer::sum);
+            appendToLog(hash, 1, sync);
+        }
+
+        this.statistics.recordWrite(body.remaining(), stored, hashNanos);
+        return hash;
+    }
+
+    /**
+     * count one less reference to the blob, and delete it once nothing refers to it
+     * @param hash
+     * @param sync force the count to disk before returning
+     * @throws IOException
+     */
+    synchronized void release(byte[] hash, boolean sync) throws IOException {
+
+        String name = toHex(hash);
+        Integer count = this.counts.get(name);
+
+        if(count == null) {
+
+            return;
+        }
+
+        appendToLog(hash, -1, sync);
+
+        if(count > 1) {
+
+            this.counts.put(name, count - 1);
+
+        }else{
+
+            this.counts.remove(name);
+            fileFor(name).delete();
+        }
+    }
+
+    /**
+     * @param hash
+     * @return the body stored under the hash
+     * @throws IOException if there is no such blob
+     */
+    ByteBuffer read(byte[] hash) throws IOException {
+
+        try {
+
+            return ByteBuffer.wrap(Files.readAllBytes(fileFor(toHex(hash)).toPath()));
+
+        } catch(NoSuchFileException e) {
+
+            throw new IOException("no blob " + toHex(hash), e);
+        }
+    }
+
+    /**
+     * @param hash
+     * @return a channel reading the body stored under the hash. It keeps reading the body if the blob is deleted while it is open
+     * @throws IOException if there is no such blob
+     */
+    FileChannel open(byte[] hash) throws IOException {
+
+        try {
+
+            return FileChannel.open(fileFor(toHex(hash)).toPath(), StandardOpenOption.READ);
+
+        } catch(NoSuchFileException e) {
+
+            throw new IOException("no blob " + toHex(hash), e);
+        }
+    }
+
+    /**
+     * @param hash
+     * @return the number of references to the blob
+     */
+    synchronized int getReferenceCount(byte[] hash) {
+
+        return this.counts.getOrDefault(toHex(hash), 0);
+    }
+
+    /**
+     * @return the number of distinct blobs stored
+     */
+    synchronized int getBlobCount() {
+
+        return this.counts.size();
+    }
+
+    DedupStatistics getStatistics() {
+
+        return this.statistics;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        this.log.close();
+    }
+
+    private void writeBlob(File file, ByteBuffer body, boolean sync) throws IOException {
+
+        Files.createDirectories(file.getParentFile().toPath());
+        Path tmp = new File(file.getPath() + ".tmp").toPath();
+        ByteBuffer contents = body.duplicate();
+
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            while(contents.hasRemaining()) {
+
+                channel.write(contents);
+            }
+
+            if(sync) {
+
+                channel.force(true);
+            }
+        }
+
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if(sync) {
+
+            GroupCommitter.syncDirectory(file.getParentFile().toPath());
+        }
+    }
+
+    private void appendToLog(byte[] hash, int change, boolean sync) throws IOException {
+
+        ByteBuffer entry = logEntry(hash, change);
+
+        while(entry.hasRemaining()) {
+
+            this.log.write(entry);
+        }
+
+        if(sync) {
+
+            this.log.force(false);
+        }
+    }
+
+    private static ByteBuffer logEntry(byte[] hash, int change) {
+
+        ByteBuffer entry = ByteBuffer.allocate(LOG_ENTRY_LENGTH);
+        entry.put(hash).putInt(change).flip();
+        return entry;
+    }
+
+    //blobs are spread over 256 directories by the first byte of their hash so no directory gets too big
+    private File fileFor(String name) {
+
+        return new File(new File(this.directory, name.substring(0, 2)), name.substring(2) + EXTENSION);
+    }
+
+    static byte[] hash(ByteBuffer body) {
+
+        MessageDigest digest;
+
+        try {
+
+            digest = MessageDigest.getInstance("SHA-256");
+
+        } catch(NoSuchAlgorithmException e) {
+
+            //every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(body.duplicate());
+        return digest.digest();
+    }
+
+    static String toHex(byte[] hash) {
+
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+
+        for(byte b : hash) {
+
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for(int i = 0; i < bytes.length; i++) {
+
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+/**
+ * Measures how fast a document store writes its checkpoint and how long a new store takes to load it and replay its write-ahead
+ * log.
+ */
+public class CheckpointStatistics {
+
+    private long checkpointCount;
+    private long checkpointDocuments;
+    private long checkpointBytes;
+    private long checkpointNanos;
+    private long restoredDocuments;
+    private long restoredBytes;
+    private long restoreNanos;
+    private long replayedEntries;
+    private long replayNanos;
+
+    /**
+     * @param documents the number of documents written
+     * @param bytes the length of the checkpoint file
+     * @param nanos how long writing it took, including forcing it to disk
+     */
+    synchronized void recordCheckpoint(long documents, long bytes, long nanos) {
+
+        this.checkpointCount++;
+        this.checkpointDocuments = documents;
+        this.checkpointBytes = bytes;
+        this.checkpointNanos = nanos;
+    }
+
+    /**
+     * @param documents the number of documents loaded
+     * @param bytes the length of the checkpoint file
+     * @param nanos how long reading it and rebuilding the store took
+     */
+    synchronized void recordRestore(long documents, long bytes, long nanos) {
+
+        this.restoredDocuments = documents;
+        this.restoredBytes = bytes;
+        this.restoreNanos = nanos;
+    }
+
+    /**
+     * @param entries the number of write-ahead log entries replayed
+     * @param nanos how long replaying them took
+     */
+    synchronized void recordReplay(long entries, long nanos) {
+
+        this.replayedEntries = entries;
+        this.replayNanos = nanos;
+    }
+
+    /**
+     * @return the number of checkpoints written
+     */
+    public synchronized long getCheckpointCount() {
+
+        return this.checkpointCount;
+    }
+
+    /**
+     * @return the number of documents in the last checkpoint written
+     */
+    public synchronized long getCheckpointDocuments() {
+
+        return this.checkpointDocuments;
+    }
+
+    /**
+     * @return the length of the last checkpoint written
+     */
+    public synchronized long getCheckpointBytes() {
+
+        return this.checkpointBytes;
+    }
+
+    /**
+     * @return how long the last checkpoint took to write, in nanoseconds
+     */
+    public synchronized long getCheckpointNanos() {
+
+        return this.checkpointNanos;
+    }
+
+    /**
+     * @return the rate the last checkpoint was written at, in bytes per second, or 0 if none has been written
+     */
+    public synchronized double getCheckpointBytesPerSecond() {
+
+        return this.checkpointNanos == 0 ? 0 : this.checkpointBytes * 1e9 / this.checkpointNanos;
+    }
+
+    /**
+     * @return the number of documents loaded from a checkpoint when the store was opened, or 0 if there was none
+     */
+    public synchronized long getRestoredDocuments() {
+
+        return this.restoredDocuments;
+    }
+
+    /**
+     * @return the length of the checkpoint loaded when the store was opened
+     */
+    public synchronized long getRestoredBytes() {
+
+        return this.restoredBytes;
+    }
+
+    /**
+     * @return how long loading the checkpoint took, in nanoseconds
+     */
+    public synchronized long getRestoreNanos() {
+
+        return this.restoreNanos;
+    }
+
+    /**
+     * @return the number of write-ahead log entries replayed when the store was opened
+     */
+    public synchronized long getReplayedEntries() {
+
+        return this.replayedEntries;
+    }
+
+    /**
+     * @return how long replaying the write-ahead log took, in nanoseconds
+     */
+    public synchronized long getReplayNanos() {
+
+        return this.replayNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format("last checkpoint: %d documents, %d bytes in %.1fms (%.1fMB/s); restore: %d documents, %d bytes in %.1fms; " +
+                "replay: %d entries in %.1fms", this.checkpointDocuments, this.checkpointBytes, this.checkpointNanos / 1e6,
+                getCheckpointBytesPerSecond() / (1 << 20), this.restoredDocuments, this.restoredBytes, this.restoreNanos / 1e6,
+                this.replayedEntries, this.replayNanos / 1e6);
+    }
+}
@@ -0,0 +1,231 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The chunks a large binary document is kept as. Each chunk is an ordinary binary document, counted, evicted and written to disk
+ * on its own, and the index is a small binary document of its own. Both live under uris of the reserved "chunks" scheme, named by
+ * the hash of the uri of the document:
+ * <pre>
+ * index:    chunks:.chunks/&lt;sha-256 of the uri&gt;
+ * chunk i:  chunks:.chunks/&lt;sha-256 of the uri&gt;/&lt;generation&gt;-&lt;i&gt;
+ * </pre>
+ * The path layout of the persistence manager puts them under .chunks, which no uri of a host maps into. Every put of a chunked
+ * document picks a new generation, so the chunks of a document that is replaced or deleted are still there if it is undone. The
+ * store drops the chunks no index holds any more once nothing can bring the index back.
+ *
+ * Body of the index document:
+ * <pre>
+ * long  length of the document
+ * int   chunk size, every chunk but the last is this long
+ * int   hash of the whole content, as Arrays.hashCode computes it
+ * long  generation
+ * </pre>
+ */
+final class ChunkIndex {
+
+    static final String SCHEME = "chunks";
+
+    private static final String DIRECTORY = ".chunks/";
+    private static final int BODY_LENGTH = 24;
+
+    private final URI uri;
+    private final long length;
+    private final int chunkBytes;
+    private final int contentHash;
+    private final long generation;
+
+    private ChunkIndex(URI uri, long length, int chunkBytes, int contentHash, long generation) {
+
+        this.uri = uri;
+        this.length = length;
+        this.chunkBytes = chunkBytes;
+        this.contentHash = contentHash;
+        this.generation = generation;
+    }
+
+    /**
+     * @param uri the uri of the document
+     * @param chunkBytes the length of every chunk but the last
+     * @return the index of a document about to be put, with a new generation. Chunks are added to it as they are written
+     */
+    static Builder builder(URI uri, int chunkBytes) {
+
+        return new Builder(uri, chunkBytes, ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    }
+
+    /**
+     * @param uri the uri of the document
+     * @param index the index document of the uri
+     * @return the index it holds
+     */
+    static ChunkIndex of(URI uri, Document index) {
+
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(index);
+
+        if(body.remaining() != BODY_LENGTH) {
+
+            throw new IllegalStateException(index.getKey() + " is not a chunk index");
+        }
+
+        return new ChunkIndex(uri, body.getLong(), body.getInt(), body.getInt(), body.getLong());
+    }
+
+    /**
+     * @param uri
+     * @return true if the uri is reserved for chunks and chunk indexes
+     */
+    static boolean isReserved(URI uri) {
+
+        return SCHEME.equalsIgnoreCase(uri.getScheme());
+    }
+
+    /**
+     * @param uri a uri of the reserved scheme
+     * @return the uri of the index of the chunk kept under the uri, or null if the uri is not a chunk
+     */
+    static URI indexUriOfChunk(URI uri) {
+
+        String ssp = uri.getSchemeSpecificPart();
+        int slash = ssp.lastIndexOf('/');
+        return slash >= DIRECTORY.length() ? reserved(ssp.substring(0, slash)) : null;
+    }
+
+    /**
+     * @param index the index document of a uri
+     * @param chunk the uri of a chunk kept under the index
+     * @return true if the chunk is of the generation the index holds, rather than of one it replaced
+     */
+    static boolean holds(Document index, URI chunk) {
+
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(index);
+        long generation = body.getLong(body.position() + BODY_LENGTH - Long.BYTES);
+        String ssp = chunk.getSchemeSpecificPart();
+        return ssp.startsWith(Long.toString(generation, 36) + "-", ssp.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param uri the uri of a document
+     * @return the uri its chunk index is kept under, if it is chunked
+     */
+    static URI indexUri(URI uri) {
+
+        return reserved(DIRECTORY + BlobStore.toHex(BlobStore.hash(ByteBuffer.wrap(uri.toString().getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    URI getUri() {
+
+        return this.uri;
+    }
+
+    long getLength() {
+
+        return this.length;
+    }
+
+    int getChunkBytes() {
+
+        return this.chunkBytes;
+    }
+
+    int getChunkCount() {
+
+        return (int) ((this.length + this.chunkBytes - 1) / this.chunkBytes);
+    }
+
+    /**
+     * @param i
+     * @return the uri chunk i is kept under
+     */
+    URI chunkUri(int i) {
+
+        return chunkUri(this.uri, this.generation, i);
+    }
+
+    /**
+     * @return the hash code a DocumentImpl holding the whole document has, so it is known without reading the chunks
+     */
+    int documentHashCode() {
+
+        return Math.abs(31 * (31 * this.uri.hashCode()) + this.contentHash);
+    }
+
+    /**
+     * @return the document the index is stored as
+     */
+    DocumentImpl toDocument() {
+
+        ByteBuffer body = ByteBuffer.allocate(BODY_LENGTH);
+        body.putLong(this.length).putInt(this.chunkBytes).putInt(this.contentHash).putLong(this.generation);
+        return new DocumentImpl(indexUri(this.uri), body.array());
+    }
+
+    private static URI chunkUri(URI uri, long generation, int i) {
+
+        return reserved(indexUri(uri).getSchemeSpecificPart() + "/" + Long.toString(generation, 36) + "-" + i);
+    }
+
+    private static URI reserved(String ssp) {
+
+        try {
+
+            return new URI(SCHEME, ssp, null);
+
+        } catch(URISyntaxException e) {
+
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * adds up the chunks of a document as they are written
+     */
+    static final class Builder {
+
+        private final URI uri;
+        private final int chunkBytes;
+        private final long generation;
+        private long length;
+        private int contentHash;
+        private int count;
+
+        private Builder(URI uri, int chunkBytes, long generation) {
+
+            this.uri = uri;
+            this.chunkBytes = chunkBytes;
+            this.generation = generation;
+            this.contentHash = 1;
+        }
+
+        /**
+         * @param chunk the next chunk, as long as the chunk size unless it is the last one
+         * @return the document to store the chunk as
+         */
+        DocumentImpl add(byte[] chunk) {
+
+            if(this.length % this.chunkBytes != 0 || chunk.length == 0 || chunk.length > this.chunkBytes) {
+
+                throw new IllegalStateException("only the last chunk can be short");
+            }
+
+            for(byte b : chunk) {
+
+                this.contentHash = 31 * this.contentHash + b;
+            }
+
+            this.length += chunk.length;
+            return new DocumentImpl(chunkUri(this.uri, this.generation, this.count++), chunk);
+        }
+
+        ChunkIndex build() {
+
+            return new ChunkIndex(this.uri, this.length, this.chunkBytes, this.contentHash, this.generation);
+        }
+    }
+}
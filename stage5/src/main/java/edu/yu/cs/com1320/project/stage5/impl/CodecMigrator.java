@@ -0,0 +1,148 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Walks the directory of a DocumentPersistenceManager once and rewrites every document file that was not written by the
+ * manager's current codec. Rewrites are spaced out so the migration never takes more than a set share of the disk.
+ */
+public class CodecMigrator implements Runnable {
+
+    private final DocumentPersistenceManager pm;
+    private final long nanosPerFile;
+    private Thread thread;
+    private volatile boolean stopped;
+    private volatile int migratedCount;
+    private volatile int failedCount;
+
+    /**
+     * @param pm the persistence manager whose files should be migrated
+     * @param filesPerSecond the most files to rewrite per second
+     */
+    public CodecMigrator(DocumentPersistenceManager pm, double filesPerSecond) {
+
+        if(pm == null || filesPerSecond <= 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.pm = pm;
+        this.nanosPerFile = (long) (TimeUnit.SECONDS.toNanos(1) / filesPerSecond);
+    }
+
+    /**
+     * run the migration on a background daemon thread
+     */
+    public synchronized void start() {
+
+        if(this.thread != null) {
+
+            throw new IllegalStateException("migration already started");
+        }
+
+        this.thread = new Thread(this, "codec-migrator");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * stop the migration after the file currently being rewritten
+     */
+    public void stop() {
+
+        this.stopped = true;
+    }
+
+    /**
+     * wait for the migration to finish
+     * @throws InterruptedException
+     */
+    public void awaitCompletion() throws InterruptedException {
+
+        Thread running;
+
+        synchronized(this) {
+
+            running = this.thread;
+        }
+
+        if(running != null) {
+
+            running.join();
+        }
+    }
+
+    public int getMigratedCount() {
+
+        return this.migratedCount;
+    }
+
+    public int getFailedCount() {
+
+        return this.failedCount;
+    }
+
+    @Override
+    public void run() {
+
+        long nextSlot = System.nanoTime();
+
+        try(Stream<Path> paths = Files.walk(this.pm.getDirectory().toPath())) {
+
+            Iterator<Path> iterator = paths.iterator();
+
+            while(!this.stopped && iterator.hasNext()) {
+
+                File file = iterator.next().toFile();
+
+                if(!file.isFile() || !this.pm.isDocumentFile(file)) {
+
+                    continue;
+                }
+
+                try {
+
+                    if(!this.pm.migrate(file)) {
+
+                        continue;
+                    }
+
+                    this.migratedCount++;
+
+                } catch(IOException e) {
+
+                    this.failedCount++;
+                    e.printStackTrace();
+                }
+
+                //only rewrites count against the rate, skipping an up to date file is just a header read
+                nextSlot += this.nanosPerFile;
+                long wait = nextSlot - System.nanoTime();
+
+                if(wait > 0) {
+
+                    TimeUnit.NANOSECONDS.sleep(wait);
+
+                }else{
+
+                    nextSlot = System.nanoTime();
+                }
+            }
+
+        } catch(IOException | UncheckedIOException e) {
+
+            e.printStackTrace();
+
+        } catch(InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The codecs a persistence manager can read, by version, and the one it currently writes with.
+ * The json and binary codecs are always registered.
+ */
+class CodecRegistry {
+
+    private final Map<Integer, DocumentCodec> codecs;
+    private volatile DocumentCodec current;
+
+    CodecRegistry(DocumentCodec current) {
+
+        this.codecs = new HashMap<>();
+        register(new JsonDocumentCodec());
+        register(new BinaryDocumentCodec());
+        setCurrent(current);
+    }
+
+    synchronized void register(DocumentCodec codec) {
+
+        if(codec == null) {
+
+            throw new IllegalArgumentException("codec cannot be null");
+        }
+
+        if(codec.getVersion() <= 0 || codec.getVersion() > 0xFFFF) {
+
+            throw new IllegalArgumentException("codec version must fit in an unsigned short and be positive");
+        }
+
+        this.codecs.put(codec.getVersion(), codec);
+    }
+
+    void setCurrent(DocumentCodec codec) {
+
+        register(codec);
+        this.current = codec;
+    }
+
+    DocumentCodec getCurrent() {
+
+        return this.current;
+    }
+
+    synchronized DocumentCodec forVersion(int version) throws IOException {
+
+        DocumentCodec codec = this.codecs.get(version);
+
+        if(codec == null) {
+
+            throw new IOException("no codec registered for version " + version);
+        }
+
+        return codec;
+    }
+}
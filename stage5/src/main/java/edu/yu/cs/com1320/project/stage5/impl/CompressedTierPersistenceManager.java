@@ -0,0 +1,350 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+import edu.yu.cs.com1320.project.stage5.PersistenceManager;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A tier between the heap and disk: wraps another persistence manager and keeps the documents moved to disk most recently in
+ * memory, encoded by a codec and deflated, word map and all. Reading one back inflates and decodes it without any I/O. When the
+ * encodings held go over the capacity, the ones read or written longest ago are demoted to the wrapped persistence manager.
+ * Encodings that do not shrink below {@link CompressingDocumentCodec#DEFAULT_MAX_RATIO} of their length, such as those of
+ * compressed binaries, are held as they are, so reading them back does not pay for inflating.
+ *
+ * An encoding stays in memory after its document is read back, just as a file stays on disk, so moving the document out of
+ * memory again costs nothing. Encodings not written to the wrapped persistence manager yet are lost if the process dies, so
+ * a store that keeps a write-ahead log flushes this before truncating the log, and close flushes it too.
+ *
+ * Calls are serialized by the lock of the tier, including the reads and writes of the wrapped persistence manager they make.
+ */
+public class CompressedTierPersistenceManager implements PersistenceManager<URI, Document>, Closeable, Flushable {
+
+    private final PersistenceManager<URI, Document> delegate;
+    private final DocumentCodec codec;
+    private final long capacity;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    //in the order the encodings were last read or written in, so the first is the one to demote next
+    private final LinkedHashMap<URI, Held> held;
+    private long heldBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long demotionCount;
+
+    //an encoding, deflated unless that did not make it enough shorter, and whether the wrapped persistence manager has it too
+    private static final class Held {
+
+        private final byte[] stored;
+        private final int length;
+        private final boolean deflated;
+        private boolean written;
+
+        private Held(byte[] stored, int length, boolean deflated) {
+
+            this.stored = stored;
+            this.length = length;
+            this.deflated = deflated;
+        }
+    }
+
+    /**
+     * @param delegate the persistence manager documents are demoted to
+     * @param capacity the most bytes of deflated encodings to hold in memory
+     */
+    public CompressedTierPersistenceManager(PersistenceManager<URI, Document> delegate, long capacity) {
+
+        this(delegate, new BinaryDocumentCodec(), capacity);
+    }
+
+    /**
+     * @param delegate the persistence manager documents are demoted to
+     * @param codec encodes the documents held in memory
+     * @param capacity the most bytes of deflated encodings to hold in memory
+     */
+    public CompressedTierPersistenceManager(PersistenceManager<URI, Document> delegate, DocumentCodec codec, long capacity) {
+
+        if(delegate == null || codec == null || capacity < 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.delegate = delegate;
+        this.codec = codec;
+        this.capacity = capacity;
+        this.held = new LinkedHashMap<>(16, 0.75f, true);
+        this.deflater = new Deflater();
+        this.inflater = new Inflater();
+    }
+
+    /**
+     * encode the document and hold it in memory, demoting others if that goes over the capacity. A document whose encoding
+     * alone is over the capacity goes straight to the wrapped persistence manager
+     */
+    @Override
+    public synchronized void serialize(URI uri, Document val) throws IOException {
+
+        if(uri == null || val == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        Held entry = deflate(this.codec.encode(val));
+        release(this.held.remove(uri));
+
+        if(entry.stored.length > this.capacity) {
+
+            this.delegate.serialize(uri, val);
+            return;
+        }
+
+        this.held.put(uri, entry);
+        this.heldBytes += entry.stored.length;
+
+        for(Iterator<Map.Entry<URI, Held>> eldest = this.held.entrySet().iterator(); this.heldBytes > this.capacity; ) {
+
+            Map.Entry<URI, Held> victim = eldest.next();
+            demote(victim.getKey(), victim.getValue());
+            eldest.remove();
+            release(victim.getValue());
+        }
+    }
+
+    /**
+     * @return the document decoded from memory if it is held, otherwise what the wrapped persistence manager reads
+     */
+    @Override
+    public synchronized Document deserialize(URI uri) throws IOException {
+
+        Held entry = this.held.get(uri);
+
+        if(entry != null) {
+
+            this.hitCount++;
+            return decode(entry);
+        }
+
+        this.missCount++;
+        return this.delegate.deserialize(uri);
+    }
+
+    @Override
+    public synchronized boolean delete(URI uri) throws IOException {
+
+        Held entry = this.held.remove(uri);
+        release(entry);
+        //the wrapped persistence manager may have an older version even if the one held was never written to it
+        return this.delegate.delete(uri) || entry != null;
+    }
+
+    /**
+     * @return the keys the wrapped persistence manager lists, and the keys held in memory
+     * @throws IOException
+     */
+    @Override
+    public synchronized Set<URI> getPersistedKeys() throws IOException {
+
+        Set<URI> keys = new HashSet<>(this.delegate.getPersistedKeys());
+        keys.addAll(this.held.keySet());
+        return keys;
+    }
+
+    /**
+     * @return the documents held in memory, decoded, and the rest read by the wrapped persistence manager in one call
+     * @throws IOException
+     */
+    @Override
+    public synchronized Map<URI, Document> deserializeAll(Collection<URI> keys) throws IOException {
+
+        Map<URI, Document> values = new HashMap<>();
+        List<URI> demoted = new ArrayList<>();
+
+        for(URI uri : keys) {
+
+            Held entry = this.held.get(uri);
+
+            if(entry != null) {
+
+                this.hitCount++;
+                values.put(uri, decode(entry));
+
+            }else{
+
+                this.missCount++;
+                demoted.add(uri);
+            }
+        }
+
+        values.putAll(this.delegate.deserializeAll(demoted));
+        return values;
+    }
+
+    /**
+     * @return -1 for a document only held in memory, otherwise what the wrapped persistence manager sends
+     */
+    @Override
+    public synchronized long transferTo(URI uri, WritableByteChannel target) throws IOException {
+
+        Held entry = this.held.get(uri);
+        return entry != null && !entry.written ? -1 : this.delegate.transferTo(uri, target);
+    }
+
+    /**
+     * write every document held in memory that the wrapped persistence manager does not have yet to it. They stay held in
+     * memory, and demoting them later writes nothing
+     * @throws IOException
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+
+        for(Map.Entry<URI, Held> entry : this.held.entrySet()) {
+
+            if(!entry.getValue().written) {
+
+                this.delegate.serialize(entry.getKey(), decode(entry.getValue()));
+                entry.getValue().written = true;
+            }
+        }
+    }
+
+    /**
+     * flush, then close the wrapped persistence manager if it can be closed
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        flush();
+
+        if(this.delegate instanceof Closeable) {
+
+            ((Closeable) this.delegate).close();
+        }
+    }
+
+    /**
+     * @return the most bytes of encodings held in memory
+     */
+    public long getCapacity() {
+
+        return this.capacity;
+    }
+
+    /**
+     * @return the bytes of deflated encodings held in memory
+     */
+    public synchronized long getHeldBytes() {
+
+        return this.heldBytes;
+    }
+
+    /**
+     * @return the number of documents held in memory
+     */
+    public synchronized int getHeldCount() {
+
+        return this.held.size();
+    }
+
+    /**
+     * @return the number of documents read back from memory
+     */
+    public synchronized long getHitCount() {
+
+        return this.hitCount;
+    }
+
+    /**
+     * @return the number of documents read back from the wrapped persistence manager
+     */
+    public synchronized long getMissCount() {
+
+        return this.missCount;
+    }
+
+    /**
+     * @return the number of documents demoted to the wrapped persistence manager to make room
+     */
+    public synchronized long getDemotionCount() {
+
+        return this.demotionCount;
+    }
+
+    //give the document to the wrapped persistence manager, unless it already has it
+    private void demote(URI uri, Held entry) throws IOException {
+
+        if(!entry.written) {
+
+            this.delegate.serialize(uri, decode(entry));
+        }
+
+        this.demotionCount++;
+    }
+
+    private Held deflate(byte[] encoding) {
+
+        this.deflater.reset();
+        this.deflater.setInput(encoding);
+        this.deflater.finish();
+        byte[] out = new byte[(int) (encoding.length * CompressingDocumentCodec.DEFAULT_MAX_RATIO)];
+        int length = 0;
+
+        //a deflate that does not fit in the maximum ratio is not worth inflating on every read
+        while(!this.deflater.finished() && length < out.length) {
+
+            length += this.deflater.deflate(out, length, out.length - length);
+        }
+
+        if(!this.deflater.finished()) {
+
+            return new Held(encoding, encoding.length, false);
+        }
+
+        return new Held(Arrays.copyOf(out, length), encoding.length, true);
+    }
+
+    private Document decode(Held entry) throws IOException {
+
+        if(!entry.deflated) {
+
+            return this.codec.decode(ByteBuffer.wrap(entry.stored));
+        }
+
+        byte[] encoding = new byte[entry.length];
+        this.inflater.reset();
+        this.inflater.setInput(entry.stored);
+
+        try {
+
+            if(this.inflater.inflate(encoding) != entry.length) {
+
+                throw new IOException("held encoding is truncated");
+            }
+
+        } catch(DataFormatException e) {
+
+            throw new IOException(e);
+        }
+
+        return this.codec.decode(ByteBuffer.wrap(encoding));
+    }
+
+    private void release(Held entry) {
+
+        if(entry != null) {
+
+            this.heldBytes -= entry.stored.length;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary encoding with a deflated body. The kind, uri and word map are written exactly as {@link BinaryDocumentCodec}
+ * writes them, so they can still be read without inflating anything. The body follows as:
+ * <pre>
+ * byte   body encoding (0 = raw, 1 = deflate, 2 = deflate with a preset dictionary)
+ * int    dictionary id, only for encoding 2
+ * varint body length once inflated
+ * varint stored length, stored body
+ * </pre>
+ * Bodies shorter than the minimum size are stored raw, as are bodies that do not shrink below the maximum ratio, so
+ * incompressible binaries cost a probe rather than a useless deflate on every write.
+ *
+ * Text documents are mostly small and similar, which deflate alone does poorly on since it has no history to match against.
+ * The codec keeps a sample of the text it encodes and, once it has seen enough, trains a dictionary of the phrases that show up
+ * across many documents and deflates text against it. Dictionaries are saved to the dictionary directory under their id and are
+ * never rewritten, so a file encoded with an older dictionary can always be read back.
+ */
+public class CompressingDocumentCodec implements DocumentCodec {
+
+    public static final int VERSION = 3;
+
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    static final byte DEFLATE_WITH_DICTIONARY = 2;
+
+    public static final int DEFAULT_MIN_COMPRESS_BYTES = 128;
+    public static final double DEFAULT_MAX_RATIO = 0.9;
+    //deflate only looks back 32KB, anything longer than that in a dictionary is never used
+    static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    static final int TRAIN_AFTER_BYTES = 256 * 1024;
+    private static final int MAX_SAMPLE_BYTES = 4096;
+    private static final int PROBE_BYTES = 4096;
+    private static final int MAX_PHRASE_WORDS = 4;
+    private static final String CURRENT_DICTIONARY = "dictionary.current";
+
+    private final File directory;
+    private final Map<Integer, byte[]> dictionaries;
+    private volatile int dictionaryId;
+    private volatile byte[] dictionary;
+    private volatile int minCompressBytes;
+    private volatile double maxRatio;
+
+    //text seen so far, used once to train the first dictionary
+    private final List<byte[]> samples;
+    private int sampledBytes;
+
+    private final AtomicLong bodyBytes;
+    private final AtomicLong storedBytes;
+
+    /**
+     * @param directory where dictionaries are saved and loaded from, usually the base directory of the persistence manager.
+     *                  If it already holds a trained dictionary, that dictionary is used from the start
+     * @throws IOException if the saved dictionary cannot be read
+     */
+    public CompressingDocumentCodec(File directory) throws IOException {
+
+        if(directory == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.directory = directory;
+        this.dictionaries = new ConcurrentHashMap<>();
+        this.samples = new ArrayList<>();
+        this.minCompressBytes = DEFAULT_MIN_COMPRESS_BYTES;
+        this.maxRatio = DEFAULT_MAX_RATIO;
+        this.bodyBytes = new AtomicLong();
+        this.storedBytes = new AtomicLong();
+
+        Path current = new File(directory, CURRENT_DICTIONARY).toPath();
+
+        if(Files.exists(current)) {
+
+            int id = Integer.parseUnsignedInt(new String(Files.readAllBytes(current), StandardCharsets.US_ASCII).trim(), 16);
+            this.dictionary = dictionaryFor(id);
+            this.dictionaryId = id;
+        }
+    }
+
+    @Override
+    public int getVersion() {
+
+        return VERSION;
+    }
+
+    /**
+     * @param minCompressBytes bodies shorter than this are stored raw
+     */
+    public void setMinCompressBytes(int minCompressBytes) {
+
+        if(minCompressBytes < 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.minCompressBytes = minCompressBytes;
+    }
+
+    /**
+     * @param maxRatio a body is only stored deflated if that makes it at most this fraction of its length
+     */
+    public void setMaxRatio(double maxRatio) {
+
+        if(maxRatio <= 0 || maxRatio > 1) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * @return whether text is being deflated against a trained dictionary yet
+     */
+    public boolean hasDictionary() {
+
+        return this.dictionary != null;
+    }
+
+    /**
+     * @return the total length of all bodies encoded so far
+     */
+    public long getBodyBytes() {
+
+        return this.bodyBytes.get();
+    }
+
+    /**
+     * @return how many bytes those bodies took once stored
+     */
+    public long getStoredBytes() {
+
+        return this.storedBytes.get();
+    }
+
+    /**
+     * train a dictionary from the given documents right away, instead of waiting for enough text to be encoded. Later text is
+     * deflated against it; documents already written keep using whatever they were written with
+     * @param docs a sample of the documents the store holds
+     * @return false if the documents had no text in common worth putting in a dictionary
+     * @throws IOException if the dictionary cannot be saved
+     */
+    public boolean trainDictionary(Collection<? extends Document> docs) throws IOException {
+
+        List<byte[]> sample = new ArrayList<>();
+
+        for(Document doc : docs) {
+
+            if(BinaryDocumentCodec.isText(doc)) {
+
+                sample.add(sampleOf(BinaryDocumentCodec.bodyOf(doc)));
+            }
+        }
+
+        return install(train(sample, MAX_DICTIONARY_BYTES));
+    }
+
+    @Override
+    public byte[] encode(Document doc) throws IOException {
+
+        if(doc == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        boolean isText = BinaryDocumentCodec.isText(doc);
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(doc);
+        int length = body.remaining();
+
+        if(isText && this.dictionary == null) {
+
+            addSample(body.duplicate());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        BinaryDocumentCodec.writeHeader(out, doc, isText);
+
+        //look the dictionary up by id so the two always match, even if a new dictionary is being installed right now
+        int dictionaryId = this.dictionaryId;
+        byte[] dictionary = isText && this.dictionary != null ? this.dictionaries.get(dictionaryId) : null;
+        byte[] deflated = null;
+
+        if(length >= this.minCompressBytes && worthCompressing(body, dictionary)) {
+
+            deflated = deflate(body.duplicate(), dictionary);
+
+            if(deflated.length > length * this.maxRatio) {
+
+                deflated = null;
+            }
+        }
+
+        if(deflated != null) {
+
+            out.write(dictionary != null ? DEFLATE_WITH_DICTIONARY : DEFLATE);
+
+            if(dictionary != null) {
+
+                writeInt(out, dictionaryId);
+            }
+
+            BinaryDocumentCodec.writeVarInt(out, length);
+            BinaryDocumentCodec.writeBytes(out, deflated);
+            this.storedBytes.addAndGet(deflated.length);
+
+        }else{
+
+            out.write(RAW);
+            BinaryDocumentCodec.writeVarInt(out, length);
+            BinaryDocumentCodec.writeVarInt(out, length);
+            writeBody(out, body);
+            this.storedBytes.addAndGet(length);
+        }
+
+        this.bodyBytes.addAndGet(length);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Document decode(ByteBuffer buffer) throws IOException {
+
+        try {
+
+            byte kind = buffer.get();
+
+            if(kind != BinaryDocumentCodec.TXT && kind != BinaryDocumentCodec.BINARY) {
+
+                throw new IOException("unknown document kind " + kind);
+            }
+
+            boolean isText = kind == BinaryDocumentCodec.TXT;
+            URI uri = URI.create(BinaryDocumentCodec.readString(buffer));
+            Map<String, Integer> wordCountMap = isText ? BinaryDocumentCodec.readWordMap(buffer) : null;
+            byte encoding = buffer.get();
+            byte[] dictionary = encoding == DEFLATE_WITH_DICTIONARY ? dictionaryFor(buffer.getInt()) : null;
+            int length = BinaryDocumentCodec.readVarInt(buffer);
+
+            if(encoding == RAW) {
+
+                if(buffer.isDirect()) {
+
+                    //like the binary codec, leave a raw body in the mapping until it is asked for
+                    return new DocumentImpl(uri, BinaryDocumentCodec.slice(buffer), isText, wordCountMap);
+                }
+
+                byte[] body = new byte[BinaryDocumentCodec.readLength(buffer)];
+                buffer.get(body);
+                return toDocument(uri, body, isText, wordCountMap);
+
+            }else if(encoding == DEFLATE || encoding == DEFLATE_WITH_DICTIONARY) {
+
+                return toDocument(uri, inflate(BinaryDocumentCodec.slice(buffer), length, dictionary), isText, wordCountMap);
+
+            }else{
+
+                throw new IOException("unknown body encoding " + encoding);
+            }
+
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+
+            throw new IOException("corrupt compressed document", e);
+        }
+    }
+
+    /**
+     * @param header the start of the encoded document
+     * @param bodyReader reads the stored body when it is first needed, which is then inflated if it was deflated
+     * @return the document without its body
+     * @throws IOException if the header is cut off or corrupt, or it names a dictionary that cannot be found
+     */
+    @Override
+    public Document decodeHeader(ByteBuffer header, BodyReader bodyReader) throws IOException {
+
+        int start = header.position();
+
+        try {
+
+            byte kind = header.get();
+
+            if(kind != BinaryDocumentCodec.TXT && kind != BinaryDocumentCodec.BINARY) {
+
+                throw new IOException("unknown document kind " + kind);
+            }
+
+            boolean isText = kind == BinaryDocumentCodec.TXT;
+            URI uri = URI.create(BinaryDocumentCodec.readString(header));
+            Map<String, Integer> wordCountMap = isText ? BinaryDocumentCodec.readWordMap(header) : null;
+            byte encoding = header.get();
+
+            if(encoding != RAW && encoding != DEFLATE && encoding != DEFLATE_WITH_DICTIONARY) {
+
+                throw new IOException("unknown body encoding " + encoding);
+            }
+
+            byte[] dictionary = encoding == DEFLATE_WITH_DICTIONARY ? dictionaryFor(header.getInt()) : null;
+            int length = BinaryDocumentCodec.readVarInt(header);
+            int storedLength = BinaryDocumentCodec.readVarInt(header);
+            long offset = header.position() - start;
+
+            DocumentImpl.BodyLoader loader = () -> {
+
+                ByteBuffer stored = bodyReader.read(offset, storedLength);
+                return encoding == RAW ? stored : ByteBuffer.wrap(inflate(stored, length, dictionary));
+            };
+
+            return new DocumentImpl(uri, isText, wordCountMap, length, loader);
+
+        } catch(BufferUnderflowException e) {
+
+            throw new EOFException("header runs past the bytes read");
+
+        } catch(IllegalArgumentException e) {
+
+            throw new IOException("corrupt compressed document", e);
+        }
+    }
+
+    private static Document toDocument(URI uri, byte[] body, boolean isText, Map<String, Integer> wordCountMap) {
+
+        if(isText) {
+
+            return new DocumentImpl(uri, ByteBuffer.wrap(body), true, wordCountMap);
+        }
+
+        return new DocumentImpl(uri, body);
+    }
+
+    //a large body gets a trial run on its first few KB, so an already compressed image is not deflated in full only to be thrown away
+    private boolean worthCompressing(ByteBuffer body, byte[] dictionary) {
+
+        if(body.remaining() <= PROBE_BYTES * 4) {
+
+            return true;
+        }
+
+        ByteBuffer probe = body.duplicate();
+        probe.limit(probe.position() + PROBE_BYTES);
+        return deflate(probe, dictionary).length <= PROBE_BYTES * this.maxRatio;
+    }
+
+    static byte[] deflate(ByteBuffer body, byte[] dictionary) {
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        try {
+
+            if(dictionary != null) {
+
+                deflater.setDictionary(dictionary);
+            }
+
+            deflater.setInput(body);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.remaining() / 2 + 16);
+            byte[] chunk = new byte[8192];
+
+            while(!deflater.finished()) {
+
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+
+            return out.toByteArray();
+
+        } finally {
+
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(ByteBuffer stored, int length, byte[] dictionary) throws IOException {
+
+        Inflater inflater = new Inflater(true);
+
+        try {
+
+            if(dictionary != null) {
+
+                inflater.setDictionary(dictionary);
+            }
+
+            inflater.setInput(stored);
+            byte[] body = new byte[length];
+            int inflated = 0;
+
+            while(inflated < length) {
+
+                int n = inflater.inflate(body, inflated, length - inflated);
+
+                if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+
+                    break;
+                }
+
+                inflated += n;
+            }
+
+            if(inflated != length) {
+
+                throw new IOException("body inflated to " + inflated + " bytes, expected " + length);
+            }
+
+            return body;
+
+        } catch(DataFormatException e) {
+
+            throw new IOException("corrupt deflated body", e);
+
+        } finally {
+
+            inflater.end();
+        }
+    }
+
+    private void addSample(ByteBuffer body) throws IOException {
+
+        List<byte[]> sample;
+
+        synchronized(this.samples) {
+
+            if(this.dictionary != null || this.sampledBytes >= TRAIN_AFTER_BYTES) {
+
+                return;
+            }
+
+            byte[] bytes = sampleOf(body);
+            this.samples.add(bytes);
+            this.sampledBytes += bytes.length;
+
+            if(this.sampledBytes < TRAIN_AFTER_BYTES) {
+
+                return;
+            }
+
+            sample = new ArrayList<>(this.samples);
+            this.samples.clear();
+        }
+
+        install(train(sample, MAX_DICTIONARY_BYTES));
+    }
+
+    private static byte[] sampleOf(ByteBuffer body) {
+
+        byte[] bytes = new byte[Math.min(body.remaining(), MAX_SAMPLE_BYTES)];
+        body.duplicate().get(bytes);
+        return bytes;
+    }
+
+    //save the dictionary under its id and make it the one new text is deflated against
+    private synchronized boolean install(byte[] trained) throws IOException {
+
+        if(trained.length == 0) {
+
+            return false;
+        }
+
+        Files.createDirectories(this.directory.toPath());
+        int id = freeIdFor(trained);
+
+        if(!dictionaryFile(id).exists()) {
+
+            writeAtomically(dictionaryFile(id).toPath(), trained);
+        }
+        writeAtomically(new File(this.directory, CURRENT_DICTIONARY).toPath(), String.format("%08x", id).getBytes(StandardCharsets.US_ASCII));
+
+        this.dictionaries.put(id, trained);
+        this.dictionaryId = id;
+        this.dictionary = trained;
+        return true;
+    }
+
+    /**
+     * @return the CRC of the dictionary, or the next id after it that no other dictionary is saved under. Documents name their
+     * dictionary by id, so a dictionary that is already saved is never replaced
+     */
+    int freeIdFor(byte[] trained) throws IOException {
+
+        CRC32 crc = new CRC32();
+        crc.update(trained);
+        int id = (int) crc.getValue();
+
+        while(true) {
+
+            byte[] saved = this.dictionaries.get(id);
+
+            if(saved == null && dictionaryFile(id).exists()) {
+
+                saved = Files.readAllBytes(dictionaryFile(id).toPath());
+            }
+
+            if(saved == null || Arrays.equals(saved, trained)) {
+
+                return id;
+            }
+
+            id++;
+        }
+    }
+
+    private byte[] dictionaryFor(int id) throws IOException {
+
+        byte[] dictionary = this.dictionaries.get(id);
+
+        if(dictionary == null) {
+
+            try {
+
+                dictionary = Files.readAllBytes(dictionaryFile(id).toPath());
+
+            } catch(NoSuchFileException e) {
+
+                throw new IOException("missing compression dictionary " + String.format("%08x", id), e);
+            }
+
+            this.dictionaries.put(id, dictionary);
+        }
+
+        return dictionary;
+    }
+
+    private File dictionaryFile(int id) {
+
+        return new File(this.directory, String.format("dictionary-%08x.zdict", id));
+    }
+
+    /**
+     * Build a dictionary out of the word runs, one to four words long, that appear in more than one sample. A phrase scores
+     * its length times the number of other samples it appears in, which is roughly what it would save. Deflate reaches the end
+     * of the dictionary with the shortest distances, so the best phrases go last.
+     * @param samples text to train on
+     * @param maxBytes the longest the dictionary may be
+     * @return the dictionary, empty if no phrase appears in more than one sample
+     */
+    static byte[] train(List<byte[]> samples, int maxBytes) {
+
+        //phrase -> {number of samples it appears in, index of the last sample it was counted for}
+        Map<String, int[]> phrases = new HashMap<>();
+
+        for(int s = 0; s < samples.size(); s++) {
+
+            List<String> words = splitWords(samples.get(s));
+
+            for(int i = 0; i < words.size(); i++) {
+
+                StringBuilder phrase = new StringBuilder();
+
+                for(int n = 0; n < MAX_PHRASE_WORDS && i + n < words.size(); n++) {
+
+                    phrase.append(words.get(i + n));
+                    int[] seen = phrases.computeIfAbsent(phrase.toString(), k -> new int[]{0, -1});
+
+                    if(seen[1] != s) {
+
+                        seen[0]++;
+                        seen[1] = s;
+                    }
+                }
+            }
+        }
+
+        List<Map.Entry<String, int[]>> ranked = new ArrayList<>();
+
+        for(Map.Entry<String, int[]> entry : phrases.entrySet()) {
+
+            if(entry.getValue()[0] > 1) {
+
+                ranked.add(entry);
+            }
+        }
+
+        ranked.sort(Comparator.comparingLong((Map.Entry<String, int[]> e) -> score(e)).reversed().thenComparing(Map.Entry::getKey));
+
+        List<String> chosen = new ArrayList<>();
+        int size = 0;
+
+        for(Map.Entry<String, int[]> entry : ranked) {
+
+            String phrase = entry.getKey();
+
+            if(size + phrase.length() > maxBytes) {
+
+                continue;
+            }
+
+            chosen.add(phrase);
+            size += phrase.length();
+        }
+
+        Collections.reverse(chosen);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+
+        for(String phrase : chosen) {
+
+            byte[] bytes = phrase.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static long score(Map.Entry<String, int[]> phrase) {
+
+        return (long) phrase.getKey().length() * (phrase.getValue()[0] - 1);
+    }
+
+    //each word keeps the whitespace that follows it, so phrases glue back together the way they appeared.
+    //ISO-8859-1 maps every byte to one char, so the phrases are the exact UTF-8 bytes of the sample
+    private static List<String> splitWords(byte[] sample) {
+
+        List<String> words = new ArrayList<>();
+        int start = 0;
+
+        for(int i = 0; i < sample.length; i++) {
+
+            if(i + 1 == sample.length || (isSpace(sample[i]) && !isSpace(sample[i + 1]))) {
+
+                words.add(new String(sample, start, i + 1 - start, StandardCharsets.ISO_8859_1));
+                start = i + 1;
+            }
+        }
+
+        return words;
+    }
+
+    private static boolean isSpace(byte b) {
+
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static void writeBody(ByteArrayOutputStream out, ByteBuffer body) {
+
+        if(body.hasArray()) {
+
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            return;
+        }
+
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeAtomically(Path path, byte[] bytes) throws IOException {
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, bytes);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
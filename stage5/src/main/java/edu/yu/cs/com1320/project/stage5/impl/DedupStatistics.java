@@ -0,0 +1,97 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+/**
+ * Counts what content-addressed storage saves in space and costs in hashing time.
+ */
+public class DedupStatistics {
+
+    private long writeCount;
+    private long dedupedWriteCount;
+    private long bodyBytes;
+    private long storedBytes;
+    private long hashNanos;
+
+    /**
+     * @param bodyLength the length of the body written
+     * @param stored true if no blob held the body yet and it had to be written
+     * @param hashNanos how long hashing the body took
+     */
+    synchronized void recordWrite(long bodyLength, boolean stored, long hashNanos) {
+
+        this.writeCount++;
+        this.bodyBytes += bodyLength;
+        this.hashNanos += hashNanos;
+
+        if(stored) {
+
+            this.storedBytes += bodyLength;
+
+        }else{
+
+            this.dedupedWriteCount++;
+        }
+    }
+
+    /**
+     * @return the number of bodies written
+     */
+    public synchronized long getWriteCount() {
+
+        return this.writeCount;
+    }
+
+    /**
+     * @return the number of bodies that were already stored, so only a reference was written
+     */
+    public synchronized long getDedupedWriteCount() {
+
+        return this.dedupedWriteCount;
+    }
+
+    /**
+     * @return the total length of all bodies written
+     */
+    public synchronized long getBodyBytes() {
+
+        return this.bodyBytes;
+    }
+
+    /**
+     * @return how many of those bytes actually had to be stored
+     */
+    public synchronized long getStoredBytes() {
+
+        return this.storedBytes;
+    }
+
+    /**
+     * @return the bytes not written because an identical body was already stored
+     */
+    public synchronized long getSavedBytes() {
+
+        return this.bodyBytes - this.storedBytes;
+    }
+
+    /**
+     * @return the time spent hashing bodies, in nanoseconds
+     */
+    public synchronized long getHashNanos() {
+
+        return this.hashNanos;
+    }
+
+    /**
+     * @return the hashing time added to an average write, in nanoseconds, or 0 if nothing has been written
+     */
+    public synchronized double getHashNanosPerWrite() {
+
+        return this.writeCount == 0 ? 0 : (double) this.hashNanos / this.writeCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format("%d writes, %d deduplicated, %d of %d bytes saved, %.0fns hashing per write", this.writeCount,
+                this.dedupedWriteCount, getSavedBytes(), this.bodyBytes, getHashNanosPerWrite());
+    }
+}
@@ -2,16 +2,50 @@ package edu.yu.cs.com1320.project.stage5.impl;
 
 import edu.yu.cs.com1320.project.stage5.Document;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.ObjIntConsumer;
 
 public class DocumentImpl implements Document {
 
+    //rough sizes, in bytes, of what a document keeps reachable on a 64-bit JVM with compressed references
+    private static final int DOCUMENT_BYTES = 72;
+    private static final int ARRAY_BYTES = 16;
+    private static final int STRING_BYTES = 24 + ARRAY_BYTES;
+    //the URI object, its string and the parsed parts it keeps as strings of their own
+    private static final int URI_BYTES = 80 + 2 * STRING_BYTES;
+    //the entry of the uri in the B-tree, its node in the heap and the undo command that holds it
+    private static final int INDEX_BYTES = 96;
+    //up to two slots in the table of words and in the table of counts, and the word
+    private static final int WORD_BYTES = 2 * (4 + 4) + STRING_BYTES;
+    //the reference to the uri in the values of the trie node of a word
+    private static final int TRIE_VALUE_BYTES = 8;
+
     private URI uri;
-    private String txt = null;
     private byte[] binaryData = null;
-    private Map<String, Integer> wordCountMap;
+    //the encoded body. Text is only ever kept as its UTF-8 bytes and decoded each time it is asked for. Binary data is kept here
+    //until it is asked for, and a body read from disk is usually a region of a memory-mapped file
+    private ByteBuffer body = null;
+    //reads the body the first time it is needed, for a document that was loaded without one
+    private BodyLoader bodyLoader = null;
+    //the body was moved off the heap, so binary data is copied out every time instead of being kept once it is asked for
+    private boolean bodyOffHeap = false;
+    private boolean isText;
+    private int bodyLength;
+    //the distinct words of a text document in an open-addressed table, and how many times each appears at the same index.
+    //Null for binary
+    private String[] words;
+    private int[] counts;
+    private int wordTotal;
     private long lastUseTime;
+    private long footprint = -1;
+    //the hash code of the text, so it is not decoded again for every hashCode
+    private int txtHashCode;
+    private boolean txtHashed = false;
 
     public DocumentImpl(URI uri, String txt, Map<String, Integer> wordCountMap){
 
@@ -20,33 +54,90 @@ public class DocumentImpl implements Document {
             throw new IllegalArgumentException();
         }
 
+        byte[] utf8 = txt.getBytes(StandardCharsets.UTF_8);
         this.uri = uri;
-        this.txt = txt;
+        this.body = ByteBuffer.wrap(utf8);
+        this.bodyLength = utf8.length;
+        this.isText = true;
         this.lastUseTime = 0;
 
-        if(wordCountMap == null) {
+        freezeWordMap(wordCountMap != null ? wordCountMap : countWords(txt));
+    }
 
-            this.wordCountMap = new HashMap<>();
-            addWordsToMap(txt);
+    public DocumentImpl(URI uri, byte[] binaryData){
 
-        }else{
+        if(uri == null || uri.toString().isEmpty() || binaryData == null || binaryData.length == 0){
 
-            this.wordCountMap = wordCountMap;
+            throw new IllegalArgumentException();
         }
 
+        this.uri = uri;
+        this.binaryData = binaryData;
+        this.bodyLength = binaryData.length;
+        this.isText = false;
+        this.lastUseTime = 0;
+    }
+
+    /**
+     * create a document whose body is only decoded when it is asked for
+     * @param uri
+     * @param body the UTF-8 text or the binary data. Its remaining bytes are the body, and it is not copied
+     * @param isText true if the body is UTF-8 text
+     * @param wordCountMap the word counts of a text document, or null to count the words of the text once now. Ignored for binary documents
+     */
+    DocumentImpl(URI uri, ByteBuffer body, boolean isText, Map<String, Integer> wordCountMap){
+
+        if(uri == null || uri.toString().isEmpty() || body == null || !body.hasRemaining()){
 
+            throw new IllegalArgumentException();
+        }
+
+        this.uri = uri;
+        this.body = body.slice();
+        this.isText = isText;
+        this.bodyLength = this.body.remaining();
+        this.lastUseTime = 0;
+
+        if(isText) {
+
+            freezeWordMap(wordCountMap != null ? wordCountMap : countWords(getDocumentTxt()));
+        }
     }
 
-    public DocumentImpl(URI uri, byte[] binaryData){
+    /**
+     * create a document whose body has not been read yet
+     * @param uri
+     * @param isText true if the body is UTF-8 text
+     * @param wordCountMap the word counts of a text document, ignored for binary documents
+     * @param bodyLength the number of bytes in the body
+     * @param bodyLoader reads the body. Called at most once, the first time the body is needed
+     */
+    DocumentImpl(URI uri, boolean isText, Map<String, Integer> wordCountMap, int bodyLength, BodyLoader bodyLoader){
 
-        if(uri == null || uri.toString().isEmpty() || binaryData == null || binaryData.length == 0){
+        if(uri == null || uri.toString().isEmpty() || bodyLength <= 0 || bodyLoader == null || (isText && wordCountMap == null)){
 
             throw new IllegalArgumentException();
         }
 
         this.uri = uri;
-        this.binaryData = binaryData;
+        this.bodyLoader = bodyLoader;
+        this.isText = isText;
+        this.bodyLength = bodyLength;
         this.lastUseTime = 0;
+
+        if(isText) {
+
+            freezeWordMap(wordCountMap);
+        }
+    }
+
+    interface BodyLoader {
+
+        /**
+         * @return a buffer holding exactly the body
+         * @throws IOException
+         */
+        ByteBuffer load() throws IOException;
     }
 
     /**
@@ -54,32 +145,63 @@ public class DocumentImpl implements Document {
      */
     public Map<String,Integer> getWordMap() {
 
-        if(this.txt == null){
+        if(!this.isText){
 
             return new HashMap<>();
         }
 
-        Map<String, Integer> mapCopy = new HashMap<>();
-        mapCopy.putAll(this.wordCountMap);
+        Map<String, Integer> mapCopy = new HashMap<>(this.wordTotal * 4 / 3 + 1);
+        forEachWord(mapCopy::put);
         return mapCopy;
     }
 
     /**
-     * This must set the word to count map during deserialization
+     * This must set the word to count map during deserialization. The map is not kept: its entries are copied into a table of
+     * words and a table of counts, which take a fraction of the memory and are never changed afterwards
      * @param wordMap
      */
     public void setWordMap(Map<String,Integer> wordMap) {
 
-        this.wordCountMap = wordMap;
+        freezeWordMap(wordMap);
+    }
+
+    /**
+     * give every word of a text document and its count to the consumer, without copying the word map
+     * @param consumer
+     */
+    void forEachWord(ObjIntConsumer<String> consumer) {
+
+        for(int i = 0; this.isText && i < this.words.length; i++) {
+
+            if(this.words[i] != null) {
+
+                consumer.accept(this.words[i], this.counts[i]);
+            }
+        }
     }
 
     /**
-     * @return content of text document
+     * @return content of text document, decoded from its UTF-8 bytes on every call. Nothing decoded is kept, so the footprint
+     * counts every byte the document holds
      */
     @Override
     public String getDocumentTxt() {
 
-        return this.txt;
+        if(!this.isText) {
+
+            return null;
+        }
+
+        ByteBuffer body = body();
+
+        if(body.hasArray()) {
+
+            return new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8);
+        }
+
+        byte[] utf8 = new byte[body.remaining()];
+        body.duplicate().get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
     }
 
     /**
@@ -88,9 +210,145 @@ public class DocumentImpl implements Document {
     @Override
     public byte[] getDocumentBinaryData() {
 
+        if(!this.isText && this.binaryData == null) {
+
+            ByteBuffer body = body();
+            byte[] binaryData = new byte[body.remaining()];
+            body.duplicate().get(binaryData);
+
+            if(this.bodyOffHeap) {
+
+                return binaryData;
+            }
+
+            this.binaryData = binaryData;
+            this.body = null;
+        }
+
         return this.binaryData;
     }
 
+    /**
+     * @return a read-only view of the binary data that does not copy it, or null for a text document. A view of a body kept off the
+     * heap is only valid while this document can still be reached
+     */
+    public ByteBuffer getDocumentBinaryBuffer() {
+
+        if(this.isText) {
+
+            return null;
+        }
+
+        ByteBuffer body = body();
+        return body != null ? body.asReadOnlyBuffer() : ByteBuffer.wrap(this.binaryData).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return true if this is a text document, without decoding its text
+     */
+    boolean isText() {
+
+        return this.isText;
+    }
+
+    /**
+     * @return the number of bytes in the body: the UTF-8 length of the text or the length of the binary data
+     */
+    int getBodyLength() {
+
+        return this.bodyLength;
+    }
+
+    /**
+     * An estimate of the memory the document keeps while it is in a store: the body, wherever it is held, the uri, the word map,
+     * and its entries in the indexes of the store. Trie nodes are shared between documents and are not counted. The estimate is
+     * made the first time it is asked for, from the lengths alone, and does not change after that, so adding it to a total and
+     * taking it out again always balances.
+     * @return the estimate in bytes
+     */
+    synchronized long getFootprint() {
+
+        if(this.footprint < 0) {
+
+            long bytes = DOCUMENT_BYTES + INDEX_BYTES + URI_BYTES + 2L * this.uri.toString().length() + ARRAY_BYTES + getBodyLength();
+
+            if(this.isText) {
+
+                bytes += 2 * ARRAY_BYTES;
+
+                for(String word : this.words) {
+
+                    if(word != null) {
+
+                        bytes += WORD_BYTES + TRIE_VALUE_BYTES + word.length();
+                    }
+                }
+            }
+
+            this.footprint = bytes;
+        }
+
+        return this.footprint;
+    }
+
+    /**
+     * @return the encoded body (UTF-8 text or binary data) without decoding it, as a buffer positioned at its first byte
+     */
+    ByteBuffer getBodyBuffer() {
+
+        ByteBuffer body = body();
+        return body != null ? body.duplicate() : ByteBuffer.wrap(this.binaryData);
+    }
+
+    /**
+     * @return true if the body is read and held on the heap, as binary data or as a heap buffer
+     */
+    synchronized boolean isBodyOnHeap() {
+
+        return this.bodyLoader == null && (this.body == null || !this.body.isDirect());
+    }
+
+    /**
+     * copy the body into a buffer off the heap and keep it only there from now on
+     * @param region a buffer of exactly the length of the body
+     */
+    synchronized void moveBodyTo(ByteBuffer region) {
+
+        ByteBuffer body = getBodyBuffer();
+
+        if(body.remaining() != region.remaining()) {
+
+            throw new IllegalArgumentException("the region is not the length of the body");
+        }
+
+        region.duplicate().put(body);
+        this.body = region;
+        this.bodyLength = region.remaining();
+        this.binaryData = null;
+        this.bodyOffHeap = true;
+    }
+
+    /**
+     * @return false if the body has not been read yet
+     */
+    boolean isBodyLoaded() {
+
+        return this.bodyLoader == null;
+    }
+
+    /**
+     * read the body now if it has not been read yet, for when whatever it would be read from is about to go away
+     * @throws IOException
+     */
+    synchronized void loadBody() throws IOException {
+
+        if(this.bodyLoader != null) {
+
+            this.body = this.bodyLoader.load();
+            this.bodyLoader = null;
+        }
+    }
+
     /**
      * @return URI which uniquely identifies this document
      */
@@ -108,23 +366,18 @@ public class DocumentImpl implements Document {
     @Override
     public int wordCount(String word) {
 
-        if(this.txt == null || !this.wordCountMap.containsKey(word)){
-
-            return 0;
-
-        }else{
-
-            return this.wordCountMap.get(word);
-        }
+        //a probe of the table, which does not allocate while search results are ranked
+        int index = !this.isText || word == null ? -1 : indexOf(this.words, word);
+        return index < 0 ? 0 : this.counts[index];
     }
 
     /**
-     * @return all the words that appear in the document
+     * @return all the words that appear in the document, as a read-only view that is not copied
      */
     @Override
     public Set<String> getWords() {
 
-        return this.txt == null ? new HashSet<>() : this.wordCountMap.keySet();
+        return !this.isText ? new HashSet<>() : new WordSet(this.words, this.wordTotal);
     }
 
     /**
@@ -160,8 +413,8 @@ public class DocumentImpl implements Document {
     public int hashCode() {
 
         int result = uri.hashCode();
-        result = 31 * result + (txt != null ? txt.hashCode() : 0);
-        result = 31 * result + Arrays.hashCode(binaryData);
+        result = 31 * result + txtHashCode();
+        result = 31 * result + binaryDataHashCode();
         return Math.abs(result);
     }
 
@@ -185,9 +438,104 @@ public class DocumentImpl implements Document {
         return document.hashCode() == this.hashCode();
     }
 
-    // If the document is text, add the words to a hashmap to keep track of word count
-    private void addWordsToMap(String txt) {
+    //the hash code of the text as a String, decoded only the first time
+    private synchronized int txtHashCode() {
+
+        if(this.isText && !this.txtHashed) {
+
+            this.txtHashCode = getDocumentTxt().hashCode();
+            this.txtHashed = true;
+        }
+
+        return this.isText ? this.txtHashCode : 0;
+    }
+
+    //the same value as Arrays.hashCode(binaryData), without copying a body that has not been decoded
+    private int binaryDataHashCode() {
+
+        if(this.isText) {
+
+            return 0;
+        }
+
+        if(this.binaryData != null) {
+
+            return Arrays.hashCode(this.binaryData);
+        }
+
+        ByteBuffer body = body();
+        int result = 1;
+        for(int i = body.position(); i < body.limit(); i++) {
+
+            result = 31 * result + body.get(i);
+        }
+
+        return result;
+    }
+
+    //the undecoded body, read first if it has not been read yet. Null once binary data has been decoded
+    private ByteBuffer body() {
+
+        try {
+
+            loadBody();
+
+        } catch(IOException e) {
+
+            throw new UncheckedIOException("could not read the body of " + this.uri, e);
+        }
+
+        return this.body;
+    }
+
+    //copy the word map into the tables, leaving the map for the collector. The tables are at most three quarters full, so a
+    //probe for a word that is not there soon reaches an empty slot
+    private void freezeWordMap(Map<String,Integer> wordMap) {
+
+        int size = wordMap != null ? wordMap.size() : 0;
+        int capacity = Integer.highestOneBit(Math.max(size * 4 / 3, 1)) * 2;
+        String[] words = new String[capacity];
+        int[] counts = new int[capacity];
+
+        if(wordMap != null) {
+
+            for(Map.Entry<String, Integer> entry : wordMap.entrySet()) {
+
+                int index = ~indexOf(words, entry.getKey());
+                words[index] = entry.getKey();
+                counts[index] = entry.getValue();
+            }
+        }
+
+        this.words = words;
+        this.counts = counts;
+        this.wordTotal = size;
+    }
+
+    //the slot of the word in the table, or the complement of the empty slot it would go in
+    private static int indexOf(String[] words, String word) {
 
+        int mask = words.length - 1;
+        int hash = word.hashCode();
+
+        for(int index = (hash ^ (hash >>> 16)) & mask; ; index = (index + 1) & mask) {
+
+            if(words[index] == null) {
+
+                return ~index;
+            }
+
+            if(words[index].equals(word)) {
+
+                return index;
+            }
+        }
+    }
+
+    // If the document is text, count the words in a hashmap, to be copied into the tables
+    private static Map<String, Integer> countWords(String txt) {
+
+        Map<String, Integer> wordCountMap = new HashMap<>();
         //Eliminate everything except for letters and numbers
         String newTxt = txt.replaceAll("[^A-Za-z0-9 ]", "");
         //Split up text into multiple strings
@@ -195,14 +543,73 @@ public class DocumentImpl implements Document {
 
         for(String word : allTxt){
 
-            if(!this.wordCountMap.containsKey(word)){
+            wordCountMap.merge(word, 1, Integer::sum);
+        }
 
-                this.wordCountMap.put(word, 1);
+        return wordCountMap;
+    }
 
-            }else{
+    //the table of words of a document as a set, without copying it
+    private static final class WordSet extends AbstractSet<String> {
 
-                this.wordCountMap.put(word, this.wordCountMap.get(word) + 1);
-            }
+        private final String[] words;
+        private final int size;
+
+        private WordSet(String[] words, int size) {
+
+            this.words = words;
+            this.size = size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+
+            return o instanceof String && indexOf(this.words, (String) o) >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+
+            return new Iterator<String>() {
+
+                private int next = advance(0);
+
+                @Override
+                public boolean hasNext() {
+
+                    return this.next < words.length;
+                }
+
+                @Override
+                public String next() {
+
+                    if(!hasNext()) {
+
+                        throw new NoSuchElementException();
+                    }
+
+                    String word = words[this.next];
+                    this.next = advance(this.next + 1);
+                    return word;
+                }
+
+                //the first slot from index on that holds a word
+                private int advance(int index) {
+
+                    while(index < words.length && words[index] == null) {
+
+                        index++;
+                    }
+
+                    return index;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+
+            return this.size;
         }
     }
 }
\ No newline at end of file
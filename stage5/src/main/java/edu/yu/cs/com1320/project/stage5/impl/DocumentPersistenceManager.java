@@ -1,26 +1,143 @@
 package edu.yu.cs.com1320.project.stage5.impl;
 
-import com.google.gson.*;
-import jakarta.xml.bind.DatatypeConverter;
 import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
 import edu.yu.cs.com1320.project.stage5.PersistenceManager;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * created by the document store and given to the BTree via a call to BTree.setPersistenceManager
+ *
+ * Every file starts with a header of MAGIC followed by the version of the codec that wrote it, and reads pick the codec from that header.
+ * Files written before headers existed (.json and .bin) are still read, and a CodecMigrator can rewrite them with the current codec.
+ * The JSON codec is the exception: it writes plain .json files with no header, as documents always were, so JSON tools can read them.
+ *
+ * Every document is its own file, written next to the old one and moved over it. With either Durability.PER_WRITE or
+ * Durability.GROUP_COMMIT the new file is fsynced before the move, so a crash leaves the old document or the new one, never a
+ * rename that outlived its data. Group commit only defers the fsyncs of the directories and the manifest, once each per window.
  */
-public class DocumentPersistenceManager implements PersistenceManager<URI, Document> {
+public class DocumentPersistenceManager implements PersistenceManager<URI, Document>, Closeable {
+
+    /**
+     * how documents are read back from disk
+     */
+    public enum ReadMode {
+
+        /**
+         * read the whole file onto the heap and decode it right away
+         */
+        STREAM,
+        /**
+         * map the file into memory. Codecs that support it keep the body as a view of the mapping, so binary data is never copied
+         * and text is only decoded when getDocumentTxt is called
+         */
+        MAPPED,
+        /**
+         * read only the uri, word counts and body length. Codecs that support it return a document that reads its body from the file
+         * the first time getDocumentTxt or getDocumentBinaryData is called, so ranking a search by word counts reads a fraction of
+         * each file. Before a file is replaced or deleted, the bodies still unread from it are read into memory
+         */
+        LAZY
+    }
+
+    /**
+     * where the file of a uri goes in the directory
+     */
+    public enum Layout {
+
+        /**
+         * at the scheme-specific part of the uri, so http://host/a/b is at host/a/b.doc. Every document of a host lands under one
+         * directory, and deep paths make deep directory trees
+         */
+        PATH,
+        /**
+         * at the SHA-256 hash of the uri, under two levels of 256 directories each, so no directory holds more than a few hundred
+         * files even at tens of millions of documents. The uri is read back from the file and listed in the manifest, so nothing
+         * depends on its shape
+         */
+        HASHED
+    }
+
+    static final int MAGIC = 0xD0C5F11E;
+    static final int HEADER_LENGTH = 6;
+    static final String EXTENSION = ".doc";
+
+    //in content-addressed mode, the file of a uri holds REFERENCE_MAGIC, the hash of the blob holding the body, then the binary encoding up to the body
+    static final int REFERENCE_MAGIC = 0xD0C5B10B;
+    static final int REFERENCE_HEADER_LENGTH = 4 + BlobStore.HASH_LENGTH;
+    static final String REFERENCE_EXTENSION = ".ref";
+    //hosts cannot start with a dot, so no uri maps into this directory
+    private static final String BLOB_DIRECTORY = ".blobs";
+    private static final String HASHED_DIRECTORY = ".hashed";
+    //names the layout of a directory, so it is opened with the layout it was written with
+    private static final String LAYOUT_FILE = ".layout";
+
+    //headerless files, from before codec versions were recorded or written by the JSON codec, and the codec version they hold
+    private static final String[] LEGACY_EXTENSIONS = {".json", ".bin"};
+    private static final int[] LEGACY_VERSIONS = {JsonDocumentCodec.VERSION, BinaryDocumentCodec.VERSION};
+    //the files a document written by a codec may be in
+    private static final String[] DOCUMENT_EXTENSIONS = {EXTENSION, LEGACY_EXTENSIONS[0], LEGACY_EXTENSIONS[1]};
+
+    private static final int LOCK_STRIPES = 64;
+    //how much of a file is read to decode a header before trying again with more
+    private static final int HEADER_READ_BYTES = 1024;
+    //what a codec writing a document fills before it goes to the file
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 20;
 
     private File directory;
+    private CodecRegistry codecs;
+    private volatile ReadMode readMode;
+    private volatile Layout layout;
+
+    private volatile Durability durability;
+    private GroupCommitter committer;
+    private SyncStatistics syncStatistics;
+    //files and directories written since the last group commit. Guarded by itself
+    private Set<Path> unsynced;
+    //serializes work on the same uri, e.g. an eviction racing the migrator
+    private Object[] locks;
+    //the uris with a document on disk
+    private Manifest manifest;
+    private volatile boolean contentAddressed;
+    private BlobStore blobs;
+    //documents read with ReadMode.LAZY whose bodies may still be unread, by uri. Each list is guarded by the lock of its uri
+    private Map<URI, List<WeakReference<DocumentImpl>>> unreadBodies;
 
     public DocumentPersistenceManager(File baseDir){
 
+        this(baseDir, new JsonDocumentCodec());
+    }
+
+    /**
+     * @param baseDir the directory to store documents in. If null, the working directory is used. It is opened with the layout
+     *                it was last given, or Layout.PATH
+     * @param codec the codec used to write documents
+     * @throws UncheckedIOException if the layout of the directory cannot be read
+     */
+    public DocumentPersistenceManager(File baseDir, DocumentCodec codec){
+
+        if(codec == null) {
+
+            throw new IllegalArgumentException("codec cannot be null");
+        }
+
         if(baseDir == null) {
 
             this.directory = new File(System.getProperty("user.dir"));
@@ -29,75 +146,233 @@ public class DocumentPersistenceManager implements PersistenceManager<URI, Docum
 
             this.directory = baseDir;
         }
+
+        this.codecs = new CodecRegistry(codec);
+        this.readMode = ReadMode.STREAM;
+        this.layout = readLayout(this.directory);
+        this.durability = Durability.NONE;
+        this.syncStatistics = new SyncStatistics();
+        this.unsynced = new HashSet<>();
+        this.locks = new Object[LOCK_STRIPES];
+        this.unreadBodies = new ConcurrentHashMap<>();
+
+        for(int i = 0; i < this.locks.length; i++) {
+
+            this.locks[i] = new Object();
+        }
     }
 
-    @Override
-    public void serialize(URI uri, Document val) throws IOException {
+    /**
+     * make a codec available for reading files written with its version
+     * @param codec
+     */
+    public void registerCodec(DocumentCodec codec) {
 
-        if(uri == null || val == null) {
+        this.codecs.register(codec);
+    }
 
-            throw new IllegalArgumentException();
+    /**
+     * set the codec used for all future writes. The codec is registered for reads as well.
+     * @param codec
+     */
+    public void setCodec(DocumentCodec codec) {
+
+        this.codecs.setCurrent(codec);
+    }
+
+    public DocumentCodec getCodec() {
+
+        return this.codecs.getCurrent();
+    }
+
+    public void setReadMode(ReadMode readMode) {
+
+        if(readMode == null) {
+
+            throw new IllegalArgumentException("read mode cannot be null");
         }
 
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(Document.class, createSerializer(uri, val));
-        Gson gson = builder.setPrettyPrinting().create();
-        String json = gson.toJson(val);
+        this.readMode = readMode;
+    }
+
+    public ReadMode getReadMode() {
 
-        File file = new File(this.directory, uri.getSchemeSpecificPart() + ".json");
-        Files.createDirectories(Paths.get(file.getParent()));
-        Writer writer = new FileWriter(file);
-        writer.write(json);
-        writer.flush();
-        writer.close();
+        return this.readMode;
     }
 
-    private JsonSerializer<Document> createSerializer(URI uri, Document val) {
+    public Layout getLayout() {
 
-        if(val.getDocumentTxt() == null) {
+        return this.layout;
+    }
 
-            String uriAsString = uri.toString();
-            byte[] binaryData = val.getDocumentBinaryData();
+    /**
+     * place files with the given layout from now on, moving the files of every uri in the manifest to where the layout puts them.
+     * The layout is recorded in the directory, so it is used again when the directory is opened next. Not to be called while
+     * documents are being written or read
+     * @param layout
+     * @throws IOException if a file cannot be moved or the layout cannot be recorded
+     */
+    public synchronized void setLayout(Layout layout) throws IOException {
 
-            return byteSerializer(uriAsString, binaryData);
+        if(layout == null) {
 
-        }else{
+            throw new IllegalArgumentException("layout cannot be null");
+        }
 
-            Map<String, Integer> wordCountMap = val.getWordMap();
-            String uriAsString = uri.toString();
-            String documentTxt = val.getDocumentTxt();
+        if(layout == this.layout) {
 
-            return stringSerializer(wordCountMap, uriAsString, documentTxt);
+            return;
         }
+
+        List<String> extensions = new ArrayList<>(Arrays.asList(EXTENSION, REFERENCE_EXTENSION));
+        extensions.addAll(Arrays.asList(LEGACY_EXTENSIONS));
+
+        for(URI uri : manifest().getUris()) {
+
+            for(String extension : extensions) {
+
+                File from = fileFor(uri, extension, this.layout);
+
+                if(from.exists()) {
+
+                    File to = fileFor(uri, extension, layout);
+                    Files.createDirectories(to.getParentFile().toPath());
+                    Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    directoryChanged(from.getParentFile().toPath());
+                    directoryChanged(to.getParentFile().toPath());
+                }
+            }
+        }
+
+        Path file = new File(this.directory, LAYOUT_FILE).toPath();
+        Path tmp = new File(this.directory, LAYOUT_FILE + ".tmp").toPath();
+        Files.createDirectories(this.directory.toPath());
+        Files.write(tmp, layout.name().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        GroupCommitter.syncDirectory(this.directory.toPath());
+        this.layout = layout;
+    }
+
+    public void setDurability(Durability durability) throws IOException {
+
+        setDurability(durability, DEFAULT_GROUP_COMMIT_MILLIS);
     }
 
-    private JsonSerializer<Document> byteSerializer(String uriAsString, byte[] binaryData) {
+    /**
+     * @param durability when written files are forced to disk
+     * @param groupCommitMillis the length of a commit window, only used for Durability.GROUP_COMMIT
+     * @throws IOException if syncing what the previous group commit window left unsynced fails
+     */
+    public void setDurability(Durability durability, long groupCommitMillis) throws IOException {
 
-        return (document, type, jsonSerializationContext) -> {
+        if(durability == null) {
+
+            throw new IllegalArgumentException("durability cannot be null");
+        }
 
-            JsonObject jsonDocument = new JsonObject();
-            jsonDocument.addProperty("uri", uriAsString);
-            jsonDocument.addProperty("binaryData", DatatypeConverter.printBase64Binary(binaryData));
+        GroupCommitter old;
 
+        synchronized(this) {
 
-            return jsonDocument;
-        };
+            old = this.committer;
+            this.committer = null;
+            this.durability = durability;
+
+            if(durability == Durability.GROUP_COMMIT) {
+
+                this.committer = new GroupCommitter("document-group-commit", groupCommitMillis, this::syncUnsynced);
+            }
+        }
+
+        if(old != null) {
+
+            old.close();
+        }
     }
 
-    private JsonSerializer<Document> stringSerializer(Map<String, Integer> wordCountMap, String uriAsString, String documentTxt) {
+    public Durability getDurability() {
 
-        return (document, type, jsonSerializationContext) -> {
+        return this.durability;
+    }
+
+    public SyncStatistics getSyncStatistics() {
+
+        return this.syncStatistics;
+    }
+
+    /**
+     * stop group commit, after syncing whatever the current window has not synced yet, and close the manifest and the blob store
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        setDurability(Durability.NONE);
+
+        synchronized(this) {
 
-            JsonObject jsonDocument = new JsonObject();
-            jsonDocument.addProperty("uri", uriAsString);
-            jsonDocument.addProperty("txt", documentTxt);
+            if(this.blobs != null) {
 
-            Gson gson = new Gson();
-            String wordCountJson = gson.toJson(wordCountMap);
-            jsonDocument.addProperty("wordCountMap", wordCountJson);
+                this.blobs.close();
+                this.blobs = null;
+            }
+
+            if(this.manifest != null) {
 
-            return jsonDocument;
-        };
+                this.manifest.close();
+                this.manifest = null;
+            }
+        }
+    }
+
+    /**
+     * Store each distinct body only once. Bodies are written to blobs named by their SHA-256 hash, and the file of each uri only
+     * holds its word counts and the hash. Deleting or overwriting a uri drops its reference, and a blob is deleted with its last
+     * reference. Blobs and their reference counts are forced to disk before the write returns under any durability but NONE.
+     * Documents written before the mode was turned on, or after it is turned off, are read either way.
+     * @param contentAddressed
+     * @throws IOException if the reference counts of existing blobs cannot be read
+     */
+    public void setContentAddressed(boolean contentAddressed) throws IOException {
+
+        if(contentAddressed) {
+
+            blobStore();
+        }
+
+        this.contentAddressed = contentAddressed;
+    }
+
+    public boolean isContentAddressed() {
+
+        return this.contentAddressed;
+    }
+
+    /**
+     * @return the space content addressing has saved, and the time hashing has cost
+     */
+    public synchronized DedupStatistics getDedupStatistics() {
+
+        return this.blobs == null ? new DedupStatistics() : this.blobs.getStatistics();
+    }
+
+    public File getDirectory() {
+
+        return this.directory;
+    }
+
+    @Override
+    public void serialize(URI uri, Document val) throws IOException {
+
+        if(uri == null || val == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        synchronized(lockFor(uri)) {
+
+            write(uri, val, this.codecs.getCurrent());
+        }
     }
 
     @Override
@@ -108,60 +383,795 @@ public class DocumentPersistenceManager implements PersistenceManager<URI, Docum
             throw new IllegalArgumentException();
         }
 
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(DocumentImpl.class, createDeserializer(uri));
-        Gson gson = builder.setPrettyPrinting().create();
-        File file = new File(this.directory, uri.getSchemeSpecificPart() + ".json");
-        Document deserializedDocument = gson.fromJson(new FileReader(file), DocumentImpl.class);
+        synchronized(lockFor(uri)) {
+
+            File file = locate(uri);
+
+            if(file == null) {
+
+                throw new FileNotFoundException("no document on disk for " + uri);
+            }
+
+            if(file.getName().endsWith(REFERENCE_EXTENSION)) {
+
+                return readReference(uri, file);
+            }
+
+            if(this.readMode == ReadMode.LAZY) {
+
+                return readLazily(uri, file);
+            }
 
-        return deserializedDocument;
+            return read(file);
+        }
     }
 
-    private JsonDeserializer<Document> createDeserializer(URI uri) {
+    @Override
+    public boolean delete(URI uri) throws IOException {
 
-        return (json, type, jsonDeserializationContext) -> {
+        synchronized(lockFor(uri)) {
 
-            JsonObject jsonObject = json.getAsJsonObject();
-            String uriAsString = jsonObject.get("uri").getAsString();
-            URI uriFromJson;
+            loadUnreadBodies(uri);
+            Manifest manifest = manifest();
 
-            try {
+            //unlisted before the files go, for the same reason files are listed after they are written
+            if(manifest.remove(uri)) {
+
+                manifestChanged(manifest);
+            }
+
+            File file = fileFor(uri, EXTENSION);
+            boolean deleted = file.delete();
+
+            for(String extension : LEGACY_EXTENSIONS) {
+
+                deleted |= fileFor(uri, extension).delete();
+            }
+
+            deleted |= releaseReference(uri);
+
+            if(deleted) {
 
-                uriFromJson = new URI(uriAsString);
+                directoryChanged(file.getParentFile().toPath());
+            }
+
+            return deleted;
+        }
+    }
+
+    /**
+     * Send the binary data of the document at the uri from its file to the channel with FileChannel.transferTo, so it never comes
+     * onto the heap and, where the target allows it, is never copied out of the kernel. The file is opened under the lock of the
+     * uri and sent after it is released: files are only ever replaced by moving a new file over them, so the open file keeps the
+     * document as it was.
+     * @param uri
+     * @param target
+     * @return the number of bytes sent, or -1 for a text document or a file whose codec does not keep binary data as is
+     * @throws IOException if there is no document on disk for the uri, or it cannot be sent
+     */
+    @Override
+    public long transferTo(URI uri, WritableByteChannel target) throws IOException {
+
+        if(uri == null || target == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        FileChannel source;
+        long offset;
+
+        synchronized(lockFor(uri)) {
 
-            } catch (URISyntaxException e) {
+            File file = locate(uri);
 
-                throw new RuntimeException(e);
+            if(file == null) {
+
+                throw new FileNotFoundException("no document on disk for " + uri);
             }
 
-            if(jsonObject.has("txt")) {
+            if(file.getName().endsWith(REFERENCE_EXTENSION)) {
+
+                ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
 
-                String txt = jsonObject.get("txt").getAsString();
-                Map<String, Integer> wordCountMap = jsonObject.get("wordCountMap").getAsJsonObject().entrySet().stream().collect(
-                        java.util.stream.Collectors.toMap(
-                                e -> e.getKey(),
-                                e -> e.getValue().getAsInt()
-                        )
-                );
+                if(record.remaining() < REFERENCE_HEADER_LENGTH || record.getInt() != REFERENCE_MAGIC) {
+
+                    throw new IOException(file + " is not a reference file");
+                }
 
-                return new DocumentImpl(uriFromJson, txt, wordCountMap);
+                byte[] hash = new byte[BlobStore.HASH_LENGTH];
+                record.get(hash);
+
+                //the record is the binary encoding up to the body, and the whole blob is the body
+                if(this.codecs.forVersion(BinaryDocumentCodec.VERSION).binaryDataOffset(record) < 0) {
+
+                    return -1;
+                }
+
+                source = blobStore().open(hash);
+                offset = 0;
 
             }else{
-                JsonArray jsonArray = jsonObject.get("binaryData").getAsJsonArray();
-                byte[] binaryData = new byte[jsonArray.size()];
-                for (int i = 0; i < jsonArray.size(); i++) {
-                    binaryData[i] = jsonArray.get(i).getAsByte();
+
+                source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+                try {
+
+                    offset = binaryDataOffset(file, source);
+
+                } catch(IOException | RuntimeException e) {
+
+                    source.close();
+                    throw e;
+                }
+
+                if(offset < 0) {
+
+                    source.close();
+                    return -1;
                 }
+            }
+        }
+
+        try(FileChannel channel = source) {
 
-                return new DocumentImpl(uriFromJson, binaryData);
+            long size = channel.size();
+
+            for(long position = offset; position < size; ) {
+
+                position += channel.transferTo(position, size - position, target);
             }
-        };
+
+            return size - offset;
+        }
     }
 
+    /**
+     * @return every uri with a document on disk, from the manifest. Documents written before the manifest existed are not listed
+     * @throws IOException if the manifest cannot be read
+     */
     @Override
-    public boolean delete(URI uri) throws IOException {
+    public Set<URI> getPersistedKeys() throws IOException {
+
+        return manifest().getUris();
+    }
+
+    /**
+     * start a background thread that rewrites every file not written by the current codec, at most filesPerSecond files a second
+     * @param filesPerSecond
+     * @return the running migrator
+     */
+    public CodecMigrator startMigration(double filesPerSecond) {
+
+        CodecMigrator migrator = new CodecMigrator(this, filesPerSecond);
+        migrator.start();
+        return migrator;
+    }
+
+    /**
+     * rewrite the given file with the current codec if it was written by any other codec
+     * @param file
+     * @return true if the file was rewritten
+     * @throws IOException
+     */
+    boolean migrate(File file) throws IOException {
+
+        DocumentCodec target = this.codecs.getCurrent();
+
+        if(!isDocumentFile(file) || isWrittenBy(file, target)) {
+
+            return false;
+        }
+
+        //the uri is only known once the file is decoded, so decode once to find the lock and again while holding it
+        URI uri;
+
+        try {
+
+            uri = read(file).getKey();
+
+        } catch(NoSuchFileException e) {
+
+            //deleted since the directory was listed
+            return false;
+        }
+
+        synchronized(lockFor(uri)) {
+
+            if(!file.exists() || isWrittenBy(file, target)) {
+
+                return false;
+            }
+
+            write(uri, read(file), target);
+            return true;
+        }
+    }
+
+    boolean isDocumentFile(File file) {
+
+        String name = file.getName();
+
+        if(name.endsWith(EXTENSION)) {
+
+            return true;
+        }
+
+        for(String extension : LEGACY_EXTENSIONS) {
+
+            if(name.endsWith(extension)) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isWrittenBy(File file, DocumentCodec target) throws IOException {
+
+        if(!extensionFor(target).equals(EXTENSION)) {
+
+            return file.getName().endsWith(extensionFor(target));
+        }
+
+        if(!file.getName().endsWith(EXTENSION)) {
+
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            while(header.hasRemaining() && channel.read(header) >= 0) {
+
+                //keep reading until the header is full or the file ends
+            }
+
+        } catch(NoSuchFileException e) {
+
+            return false;
+        }
+
+        header.flip();
+        return header.remaining() == HEADER_LENGTH && header.getInt() == MAGIC && (header.getShort() & 0xFFFF) == target.getVersion();
+    }
+
+    private void write(URI uri, Document val, DocumentCodec writer) throws IOException {
+
+        if(this.contentAddressed) {
+
+            writeReference(uri, val);
+
+        }else{
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putShort((short) writer.getVersion()).flip();
+            String extension = extensionFor(writer);
+
+            replaceFile(uri, fileFor(uri, extension), channel -> {
+
+                if(extension.equals(EXTENSION)) {
+
+                    writeFully(channel, new ByteBuffer[]{header});
+                }
+
+                //the codec writes straight into the file through the buffer, never holding the whole encoding
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_BYTES);
+                writer.encode(val, out);
+                out.flush();
+            });
+            releaseReference(uri);
+        }
+
+        //listed only once the file is in place, so a crash can leave a file the manifest does not list but never the other way around
+        Manifest manifest = manifest();
+
+        if(manifest.add(uri)) {
+
+            manifestChanged(manifest);
+        }
+    }
+
+    //make an appended manifest entry durable, now or in the next group commit
+    private void manifestChanged(Manifest manifest) throws IOException {
+
+        if(this.durability == Durability.PER_WRITE) {
+
+            manifest.sync();
+
+        }else if(this.durability == Durability.GROUP_COMMIT) {
+
+            synchronized(this.unsynced) {
+
+                this.unsynced.add(manifest.getPath());
+            }
+        }
+    }
+
+    private synchronized Manifest manifest() throws IOException {
+
+        if(this.manifest == null) {
+
+            this.manifest = new Manifest(this.directory);
+        }
+
+        return this.manifest;
+    }
+
+    //store the body as a shared blob, and write the uri, the word counts and the hash of the blob to the file of the uri
+    private void writeReference(URI uri, Document val) throws IOException {
+
+        BlobStore blobs = blobStore();
+        boolean sync = this.durability != Durability.NONE;
+        File file = fileFor(uri, REFERENCE_EXTENSION);
+        byte[] previous = readReferencedHash(file);
+
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(val);
+        byte[] hash = blobs.add(body, sync);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        BinaryDocumentCodec.writeHeader(record, val, BinaryDocumentCodec.isText(val));
+        BinaryDocumentCodec.writeVarInt(record, body.remaining());
+
+        ByteBuffer header = ByteBuffer.allocate(REFERENCE_HEADER_LENGTH);
+        header.putInt(REFERENCE_MAGIC).put(hash).flip();
+
+        ByteBuffer[] contents = {header, ByteBuffer.wrap(record.toByteArray())};
+        replaceFile(uri, file, channel -> writeFully(channel, contents));
+
+        if(previous != null) {
+
+            blobs.release(previous, sync);
+        }
+    }
+
+    //write the contents next to the file and move them into place, so a reader never sees a half written document
+    private void replaceFile(URI uri, File file, ContentWriter contents) throws IOException {
+
+        Files.createDirectories(Paths.get(file.getParent()));
+        Path tmp = Paths.get(file.getPath() + ".tmp");
+
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            contents.write(channel);
+
+            //the data is durable before the rename can be, or a crash could put an empty file in place of the old one
+            if(this.durability != Durability.NONE) {
+
+                channel.force(true);
+                this.syncStatistics.recordSync(1);
+            }
+        }
+
+        loadUnreadBodies(uri);
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        //a file of the uri in another format would be found before this one, or hold a stale copy
+        for(String extension : DOCUMENT_EXTENSIONS) {
+
+            File other = fileFor(uri, extension);
+
+            if(!other.equals(file)) {
+
+                other.delete();
+            }
+        }
+
+        this.syncStatistics.recordWrite();
+        directoryChanged(file.getParentFile().toPath());
+    }
+
+    //fills the temporary file replaceFile moves into place
+    private interface ContentWriter {
+
+        void write(FileChannel channel) throws IOException;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] contents) throws IOException {
+
+        while(contents[contents.length - 1].hasRemaining()) {
+
+            channel.write(contents);
+        }
+    }
+
+    //delete the reference file of the uri, if it has one, and drop its reference to its blob
+    private boolean releaseReference(URI uri) throws IOException {
+
+        File file = fileFor(uri, REFERENCE_EXTENSION);
+        byte[] hash = readReferencedHash(file);
+
+        if(hash == null || !file.delete()) {
+
+            return false;
+        }
+
+        blobStore().release(hash, this.durability != Durability.NONE);
+        return true;
+    }
+
+    //the hash of the blob a reference file points to, or null if there is no reference file
+    private static byte[] readReferencedHash(File file) throws IOException {
+
+        ByteBuffer header;
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            header = readRange(channel, 0, REFERENCE_HEADER_LENGTH);
+
+        } catch(NoSuchFileException e) {
+
+            return null;
+        }
+
+        if(header.remaining() != REFERENCE_HEADER_LENGTH || header.getInt() != REFERENCE_MAGIC) {
+
+            throw new IOException(file + " is not a reference file");
+        }
+
+        byte[] hash = new byte[BlobStore.HASH_LENGTH];
+        header.get(hash);
+        return hash;
+    }
+
+    private Document readReference(URI uri, File file) throws IOException {
+
+        ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+        if(record.remaining() < REFERENCE_HEADER_LENGTH || record.getInt() != REFERENCE_MAGIC) {
+
+            throw new IOException(file + " is not a reference file");
+        }
+
+        byte[] hash = new byte[BlobStore.HASH_LENGTH];
+        record.get(hash);
+        BlobStore blobs = blobStore();
+
+        //the record is the binary encoding up to the body, and the body is the blob
+        DocumentImpl doc = (DocumentImpl) this.codecs.forVersion(BinaryDocumentCodec.VERSION).decodeHeader(record, (offset, length) -> blobs.read(hash));
+
+        if(this.readMode == ReadMode.LAZY) {
+
+            trackUnreadBody(uri, doc);
+
+        }else{
+
+            doc.loadBody();
+        }
+
+        return doc;
+    }
+
+    private synchronized BlobStore blobStore() throws IOException {
+
+        if(this.blobs == null) {
+
+            this.blobs = new BlobStore(new File(this.directory, BLOB_DIRECTORY));
+        }
+
+        return this.blobs;
+    }
+
+    //make a change to the entries of a directory durable, now or in the next group commit
+    private void directoryChanged(Path directory) {
+
+        if(this.durability == Durability.PER_WRITE) {
+
+            GroupCommitter.syncDirectory(directory);
+
+        }else if(this.durability == Durability.GROUP_COMMIT) {
+
+            synchronized(this.unsynced) {
+
+                this.unsynced.add(directory);
+            }
+        }
+    }
+
+    //fsync every directory touched since the last group commit, then every manifest appended to since then, once each, so a
+    //manifest never lists a file whose directory entry could still be lost
+    private void syncUnsynced() throws IOException {
+
+        Set<Path> toSync;
+
+        synchronized(this.unsynced) {
+
+            toSync = new HashSet<>(this.unsynced);
+            this.unsynced.clear();
+        }
+
+        for(Path path : toSync) {
+
+            if(Files.isDirectory(path)) {
+
+                GroupCommitter.syncDirectory(path);
+            }
+        }
+
+        for(Path path : toSync) {
+
+            if(Files.isRegularFile(path)) {
+
+                try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+                    channel.force(true);
+                    this.syncStatistics.recordSync(1);
+
+                } catch(NoSuchFileException e) {
+
+                    //deleted during the window, nothing left to sync
+                }
+            }
+        }
+    }
+
+    private Document read(File file) throws IOException {
+
+        ByteBuffer buffer;
+
+        if(this.readMode == ReadMode.MAPPED) {
+
+            //files are only ever replaced by moving a new file over them, so the mapping stays valid after the file is replaced or deleted
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+        }else{
+
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        }
+
+        int version;
+
+        if(buffer.remaining() >= HEADER_LENGTH && buffer.getInt(0) == MAGIC) {
+
+            version = buffer.getShort(4) & 0xFFFF;
+            buffer.position(HEADER_LENGTH);
+
+        }else{
+
+            version = legacyVersion(file);
+        }
+
+        return this.codecs.forVersion(version).decode(buffer);
+    }
+
+    //decode just the header of the file if its codec can, otherwise all of it
+    private Document readLazily(URI uri, File file) throws IOException {
+
+        ByteBuffer buffer;
+        long size;
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            size = channel.size();
+            buffer = readRange(channel, 0, (int) Math.min(size, HEADER_READ_BYTES));
+
+            while(buffer.remaining() >= HEADER_LENGTH && buffer.getInt(0) == MAGIC) {
+
+                DocumentCodec codec = this.codecs.forVersion(buffer.getShort(4) & 0xFFFF);
+                buffer.position(HEADER_LENGTH);
+                Document doc;
+
+                try {
+
+                    doc = codec.decodeHeader(buffer, (offset, length) -> readBody(file, HEADER_LENGTH + offset, length));
+
+                } catch(EOFException e) {
+
+                    if(buffer.limit() == size) {
+
+                        throw new IOException(file + " is cut off", e);
+                    }
+
+                    //a long uri or word map, read more of the file and try again
+                    buffer = readRange(channel, 0, (int) Math.min(size, buffer.limit() * 8L));
+                    continue;
+                }
+
+                if(doc == null) {
+
+                    break;
+                }
+
+                if(doc instanceof DocumentImpl) {
+
+                    trackUnreadBody(uri, (DocumentImpl) doc);
+                }
+
+                return doc;
+            }
+        }
+
+        return read(file);
+    }
+
+    //where the binary data starts in the file, or -1 if its codec does not keep it as is
+    private long binaryDataOffset(File file, FileChannel channel) throws IOException {
+
+        long size = channel.size();
+        ByteBuffer buffer = readRange(channel, 0, (int) Math.min(size, HEADER_READ_BYTES));
+        int headerLength = buffer.remaining() >= HEADER_LENGTH && buffer.getInt(0) == MAGIC ? HEADER_LENGTH : 0;
+        DocumentCodec codec = this.codecs.forVersion(headerLength > 0 ? buffer.getShort(4) & 0xFFFF : legacyVersion(file));
+
+        while(true) {
+
+            buffer.position(headerLength);
+
+            try {
+
+                long offset = codec.binaryDataOffset(buffer);
+                return offset < 0 ? -1 : headerLength + offset;
+
+            } catch(EOFException e) {
+
+                if(buffer.limit() == size) {
+
+                    throw new IOException(file + " is cut off", e);
+                }
+
+                //a long uri, read more of the file and try again
+                buffer = readRange(channel, 0, (int) Math.min(size, buffer.limit() * 8L));
+            }
+        }
+    }
+
+    private static ByteBuffer readBody(File file, long position, int length) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            ByteBuffer body = readRange(channel, position, length);
+
+            if(body.remaining() != length) {
+
+                throw new EOFException(file + " ends before the body does");
+            }
+
+            return body;
+        }
+    }
+
+    private static ByteBuffer readRange(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while(buffer.hasRemaining()) {
+
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+
+                break;
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private void trackUnreadBody(URI uri, DocumentImpl doc) {
+
+        if(!doc.isBodyLoaded()) {
+
+            List<WeakReference<DocumentImpl>> unread = this.unreadBodies.computeIfAbsent(uri, k -> new ArrayList<>());
+            unread.removeIf(reference -> reference.get() == null || reference.get().isBodyLoaded());
+            unread.add(new WeakReference<>(doc));
+        }
+    }
+
+    //the file of the uri is about to be replaced or deleted, so bodies that would be read from it have to be read now
+    private void loadUnreadBodies(URI uri) throws IOException {
+
+        List<WeakReference<DocumentImpl>> unread = this.unreadBodies.remove(uri);
+
+        if(unread == null) {
+
+            return;
+        }
+
+        for(WeakReference<DocumentImpl> reference : unread) {
+
+            DocumentImpl doc = reference.get();
+
+            if(doc != null) {
+
+                doc.loadBody();
+            }
+        }
+    }
+
+    //the JSON codec writes plain .json files, every other codec a .doc file that starts with the header
+    private static String extensionFor(DocumentCodec codec) {
+
+        return codec instanceof JsonDocumentCodec ? LEGACY_EXTENSIONS[0] : EXTENSION;
+    }
+
+    private int legacyVersion(File file) throws IOException {
+
+        for(int i = 0; i < LEGACY_EXTENSIONS.length; i++) {
+
+            if(file.getName().endsWith(LEGACY_EXTENSIONS[i])) {
+
+                return LEGACY_VERSIONS[i];
+            }
+        }
+
+        throw new IOException(file + " has no codec header");
+    }
+
+    //the file currently holding the document at the given uri, or null if there is none
+    private File locate(URI uri) {
+
+        File file = fileFor(uri, EXTENSION);
+
+        if(file.exists()) {
+
+            return file;
+        }
+
+        file = fileFor(uri, REFERENCE_EXTENSION);
+
+        if(file.exists()) {
+
+            return file;
+        }
+
+        for(String extension : LEGACY_EXTENSIONS) {
+
+            file = fileFor(uri, extension);
+
+            if(file.exists()) {
+
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    private File fileFor(URI uri, String extension) {
+
+        return fileFor(uri, extension, this.layout);
+    }
+
+    private File fileFor(URI uri, String extension, Layout layout) {
+
+        if(layout == Layout.HASHED) {
+
+            //hosts cannot start with a dot, so no uri in the path layout maps into this directory
+            String hash = BlobStore.toHex(BlobStore.hash(ByteBuffer.wrap(uri.toString().getBytes(StandardCharsets.UTF_8))));
+            File parent = new File(new File(new File(this.directory, HASHED_DIRECTORY), hash.substring(0, 2)), hash.substring(2, 4));
+            return new File(parent, hash.substring(4) + extension);
+        }
+
+        return new File(this.directory, uri.getSchemeSpecificPart() + extension);
+    }
+
+    private static Layout readLayout(File directory) {
+
+        Path file = new File(directory, LAYOUT_FILE).toPath();
+
+        if(!Files.exists(file)) {
+
+            return Layout.PATH;
+        }
+
+        try {
+
+            return Layout.valueOf(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+
+        } catch(IOException e) {
+
+            throw new UncheckedIOException("could not read the layout of " + directory, e);
+
+        } catch(IllegalArgumentException e) {
+
+            throw new UncheckedIOException(new IOException(file + " names no layout", e));
+        }
+    }
+
+    private Object lockFor(URI uri) {
 
-        File toDelete = new File(directory, uri.getSchemeSpecificPart() + ".json");
-        return toDelete.delete();
+        return this.locks[(uri.hashCode() & 0x7FFFFFFF) % this.locks.length];
     }
 }
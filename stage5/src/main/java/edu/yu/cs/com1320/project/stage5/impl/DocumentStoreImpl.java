@@ -5,26 +5,46 @@ import edu.yu.cs.com1320.project.impl.*;
 import edu.yu.cs.com1320.project.stage5.*;
 import org.apache.commons.io.IOUtils;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.function.Function;
 
+/**
+ * The operations of the store synchronize on it, as an adaptive budget evicts documents from the thread that measured the heap
+ */
+public class DocumentStoreImpl implements DocumentStore, AutoCloseable {
 
-public class DocumentStoreImpl implements DocumentStore {
+    //how many evicted documents may wait for the writer of a directory before eviction waits for it
+    private static final int STRIPE_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_CHUNK_BYTES = 4 << 20;
 
     private BTreeImpl<URI, Document> bTree;
     private StackImpl<Undoable> commandStack;
     private TrieImpl<URI> trie;
     private MinHeapImpl<Node> minHeap;
+    private PersistenceManager<URI, Document> pm;
 
     private int maxDocumentCount;
-    private int maxDocumentBytes;
+    private long maxDocumentBytes;
     private int documentCount;
-    private int documentBytes;
+    private long documentBytes;
+    private int chunkBytes;
+    private File directory;
+    private CheckpointStatistics checkpointStatistics;
+    private WriteAheadLog log;
+    private OffHeapBodyStore offHeap;
+    private AdaptiveMemoryBudget adaptiveBudget;
 
     private class Node implements Comparable<Node> {
 
@@ -69,28 +89,115 @@ public class DocumentStoreImpl implements DocumentStore {
 
     public DocumentStoreImpl() {
 
-        this.bTree = new BTreeImpl<>();
-        this.bTree.setPersistenceManager(new DocumentPersistenceManager(null));
-        this.commandStack = new StackImpl<>();
-        this.trie = new TrieImpl<>();
-        this.minHeap = new MinHeapImpl<>();
-        this.maxDocumentCount = Integer.MAX_VALUE;
-        this.maxDocumentBytes = Integer.MAX_VALUE;
-        this.documentCount = 0;
-        this.documentBytes = 0;
+        this((File) null);
     }
 
     public DocumentStoreImpl(File baseDir) {
 
+        this(new DocumentPersistenceManager(baseDir), baseDir != null ? baseDir : new File(System.getProperty("user.dir")));
+    }
+
+    /**
+     * @param baseDirs the directories documents moved to disk are spread over, e.g. one on each disk. Each document goes to one of
+     *                 them by a consistent hash of its uri, and each is written by a thread of its own. Snapshots are kept in the
+     *                 first one
+     * @param weights the share of documents each directory gets relative to the others, or null for equal shares
+     */
+    public DocumentStoreImpl(List<File> baseDirs, int[] weights) {
+
+        this(stripesFor(baseDirs, weights), baseDirs.get(0));
+    }
+
+    /**
+     * @param pm the persistence manager evicted documents are written to, e.g. a DocumentPersistenceManager using the binary format
+     */
+    public DocumentStoreImpl(PersistenceManager<URI, Document> pm) {
+
+        this(pm, null);
+    }
+
+    /**
+     * @param pm the persistence manager evicted documents are written to
+     * @param directory where snapshots of the store are kept, or null to keep none. A checkpoint found there is loaded, or else a
+     *                  word index snapshot, so documents on disk can be searched without being read
+     */
+    public DocumentStoreImpl(PersistenceManager<URI, Document> pm, File directory) {
+
+        this(pm, directory, null);
+    }
+
+    /**
+     * @param pm the persistence manager evicted documents are written to
+     * @param directory where snapshots and the write-ahead log of the store are kept, or null to keep none. A checkpoint found
+     *                  there is loaded, or else a word index snapshot, and then anything left in a write-ahead log there is replayed
+     * @param logDurability when puts and deletes logged to the write-ahead log are forced to disk, or null to keep no log. A
+     *                      store without a log replays and deletes one it finds, and deletes the checkpoint it loaded, since
+     *                      neither would hold what it changes
+     * @throws UncheckedIOException if the write-ahead log cannot be replayed or opened, or the chunks left by a store that did
+     *                              not close cannot be dropped
+     */
+    public DocumentStoreImpl(PersistenceManager<URI, Document> pm, File directory, Durability logDurability) {
+
+        if(pm == null) {
+
+            throw new IllegalArgumentException("persistence manager cannot be null");
+        }
+
+        if(logDurability != null && directory == null) {
+
+            throw new IllegalArgumentException("a write-ahead log needs a directory");
+        }
+
         this.bTree = new BTreeImpl<>();
-        this.bTree.setPersistenceManager(new DocumentPersistenceManager(baseDir));
+        this.bTree.setPersistenceManager(pm);
         this.commandStack = new StackImpl<>();
         this.trie = new TrieImpl<>();
         this.minHeap = new MinHeapImpl<>();
+        this.pm = pm;
         this.maxDocumentCount = Integer.MAX_VALUE;
-        this.maxDocumentBytes = Integer.MAX_VALUE;
+        this.maxDocumentBytes = Long.MAX_VALUE;
         this.documentCount = 0;
         this.documentBytes = 0;
+        this.chunkBytes = DEFAULT_CHUNK_BYTES;
+        this.directory = directory;
+        this.checkpointStatistics = new CheckpointStatistics();
+
+        if(directory != null) {
+
+            if(!loadCheckpoint(logDurability == null)) {
+
+                loadIndexSnapshot();
+            }
+
+            openWriteAheadLog(logDurability);
+        }
+
+        //a store that did not close, or a put that failed, may have left chunks no index holds
+        try {
+
+            dropUnreachableChunks();
+
+        } catch(IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static StripedPersistenceManager<URI, Document> stripesFor(List<File> baseDirs, int[] weights) {
+
+        if(baseDirs == null || baseDirs.isEmpty() || baseDirs.contains(null)) {
+
+            throw new IllegalArgumentException("at least one directory is needed");
+        }
+
+        List<PersistenceManager<URI, Document>> stripes = new ArrayList<>();
+
+        for(File baseDir : baseDirs) {
+
+            stripes.add(new WriteBehindPersistenceManager<>(new DocumentPersistenceManager(baseDir), STRIPE_QUEUE_CAPACITY, 1));
+        }
+
+        return new StripedPersistenceManager<>(stripes, weights);
     }
 
     /**
@@ -102,9 +209,9 @@ public class DocumentStoreImpl implements DocumentStore {
      * @throws IllegalArgumentException if uri or format are null
      */
     @Override
-    public int put(InputStream input, URI uri, DocumentFormat format) throws IOException {
+    public synchronized int put(InputStream input, URI uri, DocumentFormat format) throws IOException {
 
-        if(uri == null || format == null){
+        if(uri == null || format == null || ChunkIndex.isReserved(uri)){
 
             throw new IllegalArgumentException();
         }
@@ -120,14 +227,207 @@ public class DocumentStoreImpl implements DocumentStore {
     }
 
     /**
+     * write the word index to the snapshot directory, so a store opened there later can search the documents on disk without
+     * reading them. Words of documents that are not on disk by then are dropped when the snapshot is loaded
+     * @throws IOException
+     * @throws IllegalStateException if the store has no snapshot directory
+     */
+    public synchronized void writeIndexSnapshot() throws IOException {
+
+        if(this.directory == null) {
+
+            throw new IllegalStateException("store has no snapshot directory");
+        }
+
+        IndexSnapshot.write(new File(this.directory, IndexSnapshot.NAME), this.trie);
+    }
+
+    /**
+     * write every document in memory, the order they would be moved to disk in and the word index to one checkpoint in the
+     * snapshot directory. A store opened there later loads it with a few large reads and starts where this one left off
+     * @throws IOException
+     * @throws IllegalStateException if the store has no snapshot directory
+     */
+    public synchronized void checkpoint() throws IOException {
+
+        if(this.directory == null) {
+
+            throw new IllegalStateException("store has no snapshot directory");
+        }
+
+        long start = System.nanoTime();
+        List<Node> nodes = this.minHeap.toList();
+        Collections.sort(nodes);
+        List<Document> docs = new ArrayList<>(nodes.size());
+
+        for(Node node : nodes) {
+
+            docs.add(this.bTree.get(node.uri));
+        }
+
+        long length = StoreCheckpoint.write(new File(this.directory, StoreCheckpoint.NAME), docs, this.trie);
+        //the checkpoint holds the word index too, so an older one on its own is out of date
+        Files.deleteIfExists(new File(this.directory, IndexSnapshot.NAME).toPath());
+
+        //everything logged so far is in the checkpoint or on disk, once a persistence manager holding documents in memory has written them
+        if(this.log != null) {
+
+            if(this.pm instanceof Flushable) {
+
+                ((Flushable) this.pm).flush();
+            }
+
+            this.log.truncate();
+        }
+
+        this.checkpointStatistics.recordCheckpoint(docs.size(), length, System.nanoTime() - start);
+    }
+
+    /**
+     * drop the chunks of chunked documents that were replaced or deleted, which no undo can bring back once the store is closed,
+     * then write a checkpoint if the store has a snapshot directory, and close the write-ahead log and the persistence manager
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        dropUnreachableChunks();
+
+        if(this.directory != null) {
+
+            checkpoint();
+        }
+
+        if(this.log != null) {
+
+            this.log.close();
+            this.log = null;
+        }
+
+        if(this.pm instanceof Closeable) {
+
+            ((Closeable) this.pm).close();
+        }
+    }
+
+    /**
+     * @return how long writing and loading checkpoints and replaying the write-ahead log took
+     */
+    public CheckpointStatistics getCheckpointStatistics() {
+
+        return this.checkpointStatistics;
+    }
+
+    /**
+     * @return the writes and fsyncs of the write-ahead log, or null if the store keeps none
+     */
+    public SyncStatistics getWriteAheadLogStatistics() {
+
+        return this.log != null ? this.log.getStatistics() : null;
+    }
+
+    /**
+     * Binary documents longer than this are kept as chunks of this length, each counted against the memory limits, moved to disk
+     * and read back on its own, so a document does not have to fit in memory to be put, and a range of it can be read without
+     * reading the rest. Documents already put keep the chunk size they were put with.
+     * @param chunkBytes
+     */
+    public void setChunkBytes(int chunkBytes) {
+
+        if(chunkBytes <= 0) {
+
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+
+        this.chunkBytes = chunkBytes;
+    }
+
+    public int getChunkBytes() {
+
+        return this.chunkBytes;
+    }
+
+    /**
+     * Keep the bodies of the documents in memory off the heap from now on, moving those already in memory there too. They still
+     * count against the memory limits of the store as they did on the heap
+     * @param offHeap where bodies go, or null to leave the bodies of documents coming into memory on the heap
+     */
+    public synchronized void setOffHeapBodyStore(OffHeapBodyStore offHeap) {
+
+        this.offHeap = offHeap;
+
+        if(offHeap != null) {
+
+            for(Node node : this.minHeap.toList()) {
+
+                Document doc = bTree.get(node.uri);
+
+                if(doc != null) {
+
+                    offHeap.store((DocumentImpl) doc);
+                }
+            }
+        }
+    }
+
+    public OffHeapBodyStore getOffHeapBodyStore() {
+
+        return this.offHeap;
+    }
+
+    /**
+     * Let the pressure on the heap cut the byte limit of the store below the one set by setMaxDocumentBytes, and raise it again
+     * up to that one when there is room. The limit is checked, and documents evicted down to it, whenever the budget measures the
+     * heap and whenever a document comes into memory
+     * @param adaptiveBudget the budget of this store, or null to keep to the limits set on it alone
+     */
+    public synchronized void setAdaptiveBudget(AdaptiveMemoryBudget adaptiveBudget) {
+
+        if(this.adaptiveBudget != null) {
+
+            this.adaptiveBudget.setOnMeasurement(null);
+        }
+
+        this.adaptiveBudget = adaptiveBudget;
+
+        if(adaptiveBudget != null) {
+
+            adaptiveBudget.setOnMeasurement(this::evictToLimits);
+        }
+    }
+
+    public AdaptiveMemoryBudget getAdaptiveBudget() {
+
+        return this.adaptiveBudget;
+    }
+
+    /**
+     * A chunked document is returned without its binary data, which is read from its chunks the first time it is asked for
      * @param uri the unique identifier of the document to get
      * @return the given document
+     * @throws IllegalStateException if the document is chunked and too long to be held in one array
      */
     @Override
-    public Document get(URI uri) {
+    public synchronized Document get(URI uri) {
 
         Document doc = bTree.get(uri);
 
+        if(doc == null && !ChunkIndex.isReserved(uri)) {
+
+            ChunkIndex chunks = chunkIndexOf(uri);
+
+            if(chunks != null) {
+
+                if(chunks.getLength() > Integer.MAX_VALUE - 8) {
+
+                    throw new IllegalStateException(uri + " is too long to get whole, read it in ranges");
+                }
+
+                int length = (int) chunks.getLength();
+                return new DocumentImpl(uri, false, null, length, () -> ByteBuffer.wrap(readChunks(chunks, 0, length)));
+            }
+        }
+
         if(doc != null){
 
             doc.setLastUseTime(System.nanoTime());
@@ -146,18 +446,189 @@ public class DocumentStoreImpl implements DocumentStore {
         return doc;
     }
 
+    /**
+     * A document in memory is written from its body without copying it, and counts as used, as it would for get. A document on disk
+     * is sent from its file by the persistence manager and is not read back into the store, so it stays on disk and nothing is
+     * evicted to make room for it. Persistence managers that cannot send it from the file, e.g. because its codec does not keep
+     * binary data as is, have it read and written without it coming back into the store.
+     * @param uri the unique identifier of the document
+     * @param target where the binary data goes. It is not closed
+     * @return the number of bytes written, or -1 if there is no binary document with that URI
+     * @throws IOException if the binary data cannot be read or written
+     */
+    @Override
+    public synchronized long transferBinaryData(URI uri, WritableByteChannel target) throws IOException {
+
+        if(uri == null || target == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        //the index is read from disk if it is there, without coming back into the store either
+        ChunkIndex chunks = !ChunkIndex.isReserved(uri) && !holds(uri) ? readChunkIndex(uri) : null;
+
+        if(chunks == null) {
+
+            return transferOne(uri, target);
+        }
+
+        long sent = 0;
+
+        for(int i = 0; i < chunks.getChunkCount(); i++) {
+
+            long chunk = transferOne(chunks.chunkUri(i), target);
+
+            if(chunk < 0) {
+
+                throw new IllegalStateException("chunk " + i + " of " + uri + " is missing");
+            }
+
+            sent += chunk;
+        }
+
+        return sent;
+    }
+
+    /**
+     * @param uri the unique identifier of the document
+     * @param out where the binary data goes. It is not closed
+     * @return the number of bytes written, or -1 if there is no binary document with that URI
+     * @throws IOException if the binary data cannot be read or written
+     */
+    @Override
+    public synchronized long transferBinaryData(URI uri, OutputStream out) throws IOException {
+
+        if(out == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        //a FileOutputStream comes back as its own FileChannel, so a document on disk still goes file to file
+        return transferBinaryData(uri, Channels.newChannel(out));
+    }
+
+    /**
+     * Read part of a binary document. Of a chunked document only the chunks the range covers are read, each of them brought
+     * into memory and counted as used on its own, as get does for a document
+     * @param uri the unique identifier of the document
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the bytes from offset on, fewer than length if the document ends first, or null if there is no binary document with
+     * that URI
+     */
+    @Override
+    public synchronized byte[] getBinaryData(URI uri, long offset, int length) {
+
+        if(uri == null || offset < 0 || length < 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        ChunkIndex chunks = !ChunkIndex.isReserved(uri) && !holds(uri) ? chunkIndexOf(uri) : null;
+
+        if(chunks != null) {
+
+            return readChunks(chunks, offset, length);
+        }
+
+        Document doc = get(uri);
+
+        if(doc == null || BinaryDocumentCodec.isText(doc)) {
+
+            return null;
+        }
+
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(doc);
+        int from = (int) Math.min(offset, body.remaining());
+        byte[] range = new byte[Math.min(length, body.remaining() - from)];
+        body.position(body.position() + from);
+        body.get(range);
+        return range;
+    }
+
+    //send one document, from its file if it is on disk
+    private long transferOne(URI uri, WritableByteChannel target) throws IOException {
+
+        if(bTree.isOnDisk(uri)) {
+
+            long sent = this.pm.transferTo(uri, target);
+            return sent >= 0 ? sent : writeBinaryData(this.pm.deserialize(uri), target);
+        }
+
+        return writeBinaryData(get(uri), target);
+    }
+
+    //read a range of a chunked document, getting only the chunks it covers
+    private byte[] readChunks(ChunkIndex chunks, long offset, int length) {
+
+        long end = Math.min(chunks.getLength(), offset + length);
+        byte[] range = new byte[(int) Math.max(0, end - offset)];
+
+        for(long position = offset; position < end; ) {
+
+            int i = (int) (position / chunks.getChunkBytes());
+            Document chunk = get(chunks.chunkUri(i));
+
+            if(chunk == null) {
+
+                throw new IllegalStateException("chunk " + i + " of " + chunks.getUri() + " is missing");
+            }
+
+            ByteBuffer body = BinaryDocumentCodec.bodyOf(chunk);
+            int from = (int) (position - (long) i * chunks.getChunkBytes());
+            int count = (int) Math.min(body.remaining() - from, end - position);
+            body.position(body.position() + from);
+            body.get(range, (int) (position - offset), count);
+            position += count;
+        }
+
+        return range;
+    }
+
+    private static long writeBinaryData(Document doc, WritableByteChannel target) throws IOException {
+
+        if(doc == null || BinaryDocumentCodec.isText(doc)) {
+
+            return -1;
+        }
+
+        ByteBuffer body = BinaryDocumentCodec.bodyOf(doc);
+        int length = body.remaining();
+
+        while(body.hasRemaining()) {
+
+            target.write(body);
+        }
+
+        return length;
+    }
+
     /**
      * @param uri the unique identifier of the document to delete
      * @return true if the document is deleted, false if no document exists with that URI
      */
     @Override
-    public boolean delete(URI uri) {
+    public synchronized boolean delete(URI uri) {
+
+        if(ChunkIndex.isReserved(uri)) {
+
+            throw new IllegalArgumentException();
+        }
 
         Document docToDelete = bTree.get(uri);
 
         if(docToDelete == null){
 
-            return false;
+            //the chunks stay where they are, so undoing the delete only has to put the index back
+            Document index = removeChunkIndex(uri);
+
+            if(index == null) {
+
+                return false;
+            }
+
+            commandStack.push(new GenericCommand<>(uri, func -> restoreChunkIndex(index)));
+            return true;
 
         }else{
 
@@ -166,6 +637,7 @@ public class DocumentStoreImpl implements DocumentStore {
             deleteFromTrie((DocumentImpl) docToDelete);
             deleteFromHeap(docToDelete);
             decrementDocCount(docToDelete);
+            logDelete(uri);
 
             return true;
         }
@@ -176,7 +648,7 @@ public class DocumentStoreImpl implements DocumentStore {
      * @throws IllegalStateException if there are no actions to be undone, i.e. the command stack is empty
      */
     @Override
-    public void undo() throws IllegalStateException {
+    public synchronized void undo() throws IllegalStateException {
 
         if(commandStack.size() == 0){
 
@@ -192,7 +664,7 @@ public class DocumentStoreImpl implements DocumentStore {
      * @throws IllegalStateException if there are no actions on the command stack for the given URI
      */
     @Override
-    public void undo(URI uri) throws IllegalStateException {
+    public synchronized void undo(URI uri) throws IllegalStateException {
 
         int count = containsAction(uri);  //call method to check the stack for a command with the given uri
 
@@ -243,17 +715,18 @@ public class DocumentStoreImpl implements DocumentStore {
      * @return a List of the matches. If there are no matches, return an empty list.
      */
     @Override
-    public List<Document> search(String keyword) {
-
-        List<URI> allUrisSorted = trie.getAllSorted(keyword, new Comparator<URI>() {
+    public synchronized List<Document> search(String keyword) {
+
+        //each document is looked up once for its count, which for a document on disk only needs its header
+        Map<URI, Integer> wordCounts = new HashMap<>();
+        List<URI> allUrisSorted = new ArrayList<>(trie.getAllSorted(keyword, (o1, o2) -> 0));
+        //documents on disk are read in one go, so a striped persistence manager reads them from all its disks at once
+        bTree.load(allUrisSorted);
+        allUrisSorted.sort(new Comparator<URI>() {
             public int compare(URI o1, URI o2) {
-                if(bTree.get(o1).wordCount(keyword) < bTree.get(o2).wordCount(keyword)) {
-                    return 1;
-                }else if(bTree.get(o1).wordCount(keyword) > bTree.get(o2).wordCount(keyword)) {
-                    return -1;
-                }else{
-                    return 0;
-                }
+                int count1 = wordCounts.computeIfAbsent(o1, uri -> bTree.get(uri).wordCount(keyword));
+                int count2 = wordCounts.computeIfAbsent(o2, uri -> bTree.get(uri).wordCount(keyword));
+                return Integer.compare(count2, count1);
             }
         });
 
@@ -294,17 +767,18 @@ public class DocumentStoreImpl implements DocumentStore {
      * @return a List of the matches. If there are no matches, return an empty list.
      */
     @Override
-    public List<Document> searchByPrefix(String keywordPrefix) {
-
-        List<URI> urisWithPrefixSorted = trie.getAllSorted(keywordPrefix, new Comparator<URI>() {
+    public synchronized List<Document> searchByPrefix(String keywordPrefix) {
+
+        //each document is looked up once for its count, which for a document on disk only needs its header
+        Map<URI, Integer> wordCounts = new HashMap<>();
+        List<URI> urisWithPrefixSorted = new ArrayList<>(trie.getAllSorted(keywordPrefix, (o1, o2) -> 0));
+        //documents on disk are read in one go, so a striped persistence manager reads them from all its disks at once
+        bTree.load(urisWithPrefixSorted);
+        urisWithPrefixSorted.sort(new Comparator<URI>() {
             public int compare(URI o1, URI o2) {
-                if(bTree.get(o1).wordCount(keywordPrefix) < bTree.get(o2).wordCount(keywordPrefix)) {
-                    return 1;
-                }else if(bTree.get(o1).wordCount(keywordPrefix) > bTree.get(o2).wordCount(keywordPrefix)) {
-                    return -1;
-                }else{
-                    return 0;
-                }
+                int count1 = wordCounts.computeIfAbsent(o1, uri -> bTree.get(uri).wordCount(keywordPrefix));
+                int count2 = wordCounts.computeIfAbsent(o2, uri -> bTree.get(uri).wordCount(keywordPrefix));
+                return Integer.compare(count2, count1);
             }
         });
 
@@ -344,10 +818,11 @@ public class DocumentStoreImpl implements DocumentStore {
      * @return a Set of URIs of the documents that were deleted.
      */
     @Override
-    public Set<URI> deleteAll(String keyword) {
+    public synchronized Set<URI> deleteAll(String keyword) {
 
         Set<URI> deletedURIs = trie.deleteAll(keyword);
         CommandSet commandSet = new CommandSet();
+        List<ByteBuffer> logEntries = new ArrayList<>();
 
         for(URI uri : deletedURIs) {
 
@@ -357,16 +832,24 @@ public class DocumentStoreImpl implements DocumentStore {
             decrementDocCount(doc);
             bTree.put(uri, null);
 
+            if(this.log != null) {
+
+                logEntries.add(WriteAheadLog.delete(uri));
+            }
+
             commandSet.addCommand(new GenericCommand(uri, undo -> {
                 bTree.put(uri, doc);
                 putInTrie((DocumentImpl) doc);
                 putInHeap(doc, null);
                 incrementDocCount(doc);
+                logPut(doc);
                 return true;
             }));
         }
 
         commandStack.push(commandSet);
+        //all the deletes go to the log in one write
+        log(logEntries);
 
         return deletedURIs;
     }
@@ -378,10 +861,11 @@ public class DocumentStoreImpl implements DocumentStore {
      * @return a Set of URIs of the documents that were deleted.
      */
     @Override
-    public Set<URI> deleteAllWithPrefix(String keywordPrefix) {
+    public synchronized Set<URI> deleteAllWithPrefix(String keywordPrefix) {
 
         Set<URI> deletedURIs = trie.deleteAllWithPrefix(keywordPrefix);
         CommandSet commandSet = new CommandSet();
+        List<ByteBuffer> logEntries = new ArrayList<>();
 
         for(URI uri : deletedURIs) {
 
@@ -391,16 +875,24 @@ public class DocumentStoreImpl implements DocumentStore {
             decrementDocCount(doc);
             bTree.put(uri, null);
 
+            if(this.log != null) {
+
+                logEntries.add(WriteAheadLog.delete(uri));
+            }
+
             commandSet.addCommand(new GenericCommand(uri, undo -> {
                 bTree.put(uri, doc);
                 putInTrie((DocumentImpl) doc);
                 putInHeap(doc, null);
                 incrementDocCount(doc);
+                logPut(doc);
                 return true;
             }));
         }
 
         commandStack.push(commandSet);
+        //all the deletes go to the log in one write
+        log(logEntries);
 
         return deletedURIs;
     }
@@ -410,7 +902,7 @@ public class DocumentStoreImpl implements DocumentStore {
      * @param limit
      */
     @Override
-    public void setMaxDocumentCount(int limit) {
+    public synchronized void setMaxDocumentCount(int limit) {
 
         if(limit < 0) {
 
@@ -434,11 +926,12 @@ public class DocumentStoreImpl implements DocumentStore {
     }
 
     /**
-     * set maximum number of bytes of memory that may be used by all the documents in memory combined
+     * set maximum number of bytes of memory that may be used by all the documents in memory combined, as estimated by the
+     * footprint of each document: its body, uri, word map and index entries
      * @param limit
      */
     @Override
-    public void setMaxDocumentBytes(int limit) {
+    public synchronized void setMaxDocumentBytes(long limit) {
 
        if(limit < 0) {
 
@@ -470,21 +963,41 @@ public class DocumentStoreImpl implements DocumentStore {
 
             delete(uri);
             return toDelete.hashCode();
+        }
 
-        }else{
+        ChunkIndex chunks = chunkIndexOf(uri);
 
-            return 0;
+        if(chunks != null) {
+
+            delete(uri);
+            return chunks.documentHashCode();
         }
+
+        return 0;
     }
 
     //Put the document into the store and return the hash code of the old document. If no document was replaced, return 0.
     private int putInStore(InputStream input, URI uri, DocumentFormat format) throws IOException {
 
+        byte[] binaryData = null;
+
+        if(format == DocumentFormat.BINARY) {
+
+            //a binary longer than one chunk is read and stored a chunk at a time, so it is never all in memory at once
+            binaryData = input.readNBytes(this.chunkBytes);
+            byte[] next = input.readNBytes(this.chunkBytes);
+
+            if(next.length > 0) {
+
+                return putChunked(uri, binaryData, next, input);
+            }
+        }
+
         //put new doc into store at given uri, replacing the old one
         Document newDoc = null;
         try {
 
-            newDoc = newDocument(uri, input, format);
+            newDoc = newDocument(uri, input, format, binaryData);
 
         } catch(Exception e) {
 
@@ -498,7 +1011,7 @@ public class DocumentStoreImpl implements DocumentStore {
 
         Document oldDoc = bTree.put(uri, newDoc);
 
-        if(newDoc.getDocumentTxt() != null) {
+        if(((DocumentImpl) newDoc).isText()) {
 
             putInTrie((DocumentImpl) newDoc);
         }
@@ -506,32 +1019,201 @@ public class DocumentStoreImpl implements DocumentStore {
         decrementDocCount(oldDoc);
         incrementDocCount(newDoc);
         putInHeap(newDoc, oldDoc);
+        logPut(newDoc);
+        Document oldIndex = removeChunkIndex(uri);
 
         if(oldDoc == null){
 
             undoPutNull(uri);
-            return 0;
 
         }else{
 
             undoOverride(uri, (DocumentImpl) oldDoc);
+        }
+
+        if(oldIndex != null) {
+
+            //undoing the put also brings back the chunked document it replaced
+            Undoable undoPut = commandStack.pop();
+            commandStack.push(new GenericCommand<>(uri, func -> undoPut.undo() && restoreChunkIndex(oldIndex)));
+            return ChunkIndex.of(uri, oldIndex).documentHashCode();
+        }
+
+        return oldDoc == null ? 0 : oldDoc.hashCode();
+    }
+
+    //Put a binary document as chunks and return the hash code of the document it replaced, or 0 if there was none
+    private int putChunked(URI uri, byte[] first, byte[] second, InputStream input) throws IOException {
+
+        ChunkIndex.Builder builder = ChunkIndex.builder(uri, this.chunkBytes);
+
+        try {
+
+            for(byte[] chunk = first, next = second; chunk.length > 0; chunk = next, next = input.readNBytes(this.chunkBytes)) {
+
+                //each chunk counts on its own, so the ones put first are moved to disk as later ones push the store over its limits
+                DocumentImpl chunkDoc = builder.add(chunk);
+                bTree.put(chunkDoc.getKey(), chunkDoc);
+                incrementDocCount(chunkDoc);
+                putInHeap(chunkDoc, null);
+                logPut(chunkDoc);
+            }
+
+        } catch(IOException e) {
+
+            //no index will ever hold the chunks written so far
+            dropChunks(builder.build());
+            throw e;
+        }
+
+        ChunkIndex chunks = builder.build();
+        Document oldDoc = bTree.get(uri);
+        Document oldIndex = removeChunkIndex(uri);
+
+        if(oldDoc != null) {
+
+            bTree.put(uri, null);
+            forget(oldDoc);
+            logDelete(uri);
+        }
+
+        DocumentImpl index = chunks.toDocument();
+        bTree.put(index.getKey(), index);
+        incrementDocCount(index);
+        putInHeap(index, null);
+        logPut(index);
+
+        undoPutChunked(uri, oldDoc, oldIndex);
+
+        if(oldDoc != null) {
+
             return oldDoc.hashCode();
         }
+
+        return oldIndex != null ? ChunkIndex.of(uri, oldIndex).documentHashCode() : 0;
+    }
+
+    //The chunk index of the uri, counted as used like any document that is gotten, or null if the uri is not chunked
+    private ChunkIndex chunkIndexOf(URI uri) {
+
+        Document index = get(ChunkIndex.indexUri(uri));
+        return index != null ? ChunkIndex.of(uri, index) : null;
     }
 
-    //Create a new document based on the format
-    private Document newDocument(URI uri, InputStream input, DocumentFormat format) throws Exception {
+    //The chunk index of the uri, read from disk without bringing it back into the store if it is there, or null if the uri is not chunked
+    private ChunkIndex readChunkIndex(URI uri) throws IOException {
+
+        URI indexUri = ChunkIndex.indexUri(uri);
+        Document index = bTree.isOnDisk(indexUri) ? this.pm.deserialize(indexUri) : bTree.get(indexUri);
+        return index != null ? ChunkIndex.of(uri, index) : null;
+    }
+
+    //True if the uri holds a document that is not chunked, without reading it if it is on disk
+    private boolean holds(URI uri) {
+
+        return bTree.isOnDisk(uri) || bTree.get(uri) != null;
+    }
+
+    //Take the chunk index of the uri out of the store, leaving its chunks for an undo, and return it, or null if the uri is not chunked
+    private Document removeChunkIndex(URI uri) {
+
+        URI indexUri = ChunkIndex.indexUri(uri);
+        Document index = bTree.get(indexUri);
+
+        if(index != null) {
+
+            bTree.put(indexUri, null);
+            forget(index);
+            logDelete(indexUri);
+        }
+
+        return index;
+    }
+
+    //Take every chunk of the index out of the store and off disk, for an index nothing can bring back
+    private void dropChunks(ChunkIndex chunks) {
+
+        for(int i = 0; i < chunks.getChunkCount(); i++) {
+
+            dropChunk(chunks.chunkUri(i));
+        }
+    }
+
+    //Take a chunk out of the store and delete its file, without reading it back if it is on disk
+    private void dropChunk(URI chunkUri) {
+
+        Document chunk = bTree.isOnDisk(chunkUri) ? null : bTree.get(chunkUri);
+
+        if(chunk != null) {
+
+            forget(chunk);
+        }
+
+        bTree.remove(chunkUri);
+        logDelete(chunkUri);
+    }
+
+    //Drop every chunk in the store or on disk that the index of its document does not hold: chunks of puts that failed, and of
+    //chunked documents that were replaced or deleted, which only an undo could still bring back
+    private void dropUnreachableChunks() throws IOException {
+
+        Set<URI> uris = new HashSet<>(this.pm.getPersistedKeys());
+
+        for(Node node : this.minHeap.toList()) {
+
+            uris.add(node.uri);
+        }
+
+        Map<URI, Document> indexes = new HashMap<>();
+
+        for(URI uri : uris) {
+
+            URI indexUri = ChunkIndex.isReserved(uri) ? ChunkIndex.indexUriOfChunk(uri) : null;
+
+            if(indexUri == null) {
+
+                continue;
+            }
+
+            if(!indexes.containsKey(indexUri)) {
+
+                indexes.put(indexUri, bTree.isOnDisk(indexUri) ? this.pm.deserialize(indexUri) : bTree.get(indexUri));
+            }
+
+            Document index = indexes.get(indexUri);
+
+            if(index == null || !ChunkIndex.holds(index, uri)) {
+
+                dropChunk(uri);
+            }
+        }
+    }
+
+    //Put a removed chunk index back, which brings back its document since its chunks were never removed
+    private boolean restoreChunkIndex(Document index) {
+
+        bTree.put(index.getKey(), index);
+        incrementDocCount(index);
+        putInHeap(index, null);
+        logPut(index);
+        return true;
+    }
+
+    //Create a new document based on the format, from the bytes already read for a binary document
+    private Document newDocument(URI uri, InputStream input, DocumentFormat format, byte[] binaryData) throws Exception {
 
         if(format == DocumentFormat.TXT) {
 
-            String txt = IOUtils.toString(input, StandardCharsets.UTF_8);
-            Document doc = new DocumentImpl(uri, txt, null);
+            //kept as the bytes that were read, and decoded once to count its words
+            Document doc = new DocumentImpl(uri, ByteBuffer.wrap(IOUtils.toByteArray(input)), true, null);
 
-            if(txt.getBytes().length > maxDocumentBytes) {
+            if(((DocumentImpl) doc).getFootprint() > maxDocumentBytes) {
 
                 bTree.put(uri, doc);
                 putInTrie((DocumentImpl) doc);
                 bTree.moveToDisk(uri);
+                logPut(doc);
+                removeChunkIndex(uri);
                 return null;
             }
 
@@ -539,13 +1221,15 @@ public class DocumentStoreImpl implements DocumentStore {
 
         }else{
 
-            byte[] bytes = input.readAllBytes();
+            byte[] bytes = binaryData;
             Document doc = new DocumentImpl(uri, bytes);
 
-            if(bytes.length > maxDocumentBytes) {
+            if(((DocumentImpl) doc).getFootprint() > maxDocumentBytes) {
 
                 bTree.put(uri, doc);
                 bTree.moveToDisk(uri);
+                logPut(doc);
+                removeChunkIndex(uri);
                 return null;
             }
 
@@ -611,6 +1295,7 @@ public class DocumentStoreImpl implements DocumentStore {
             bTree.put(uri, doc);
             putInHeap(doc, null);
             incrementDocCount(doc);
+            logPut(doc);
             return true;
         };
 
@@ -626,6 +1311,32 @@ public class DocumentStoreImpl implements DocumentStore {
             putInHeap(oldDoc, bTree.get(uri));
             decrementDocCount(bTree.get(uri));
             incrementDocCount(oldDoc);
+            logPut(oldDoc);
+            return true;
+        };
+
+        commandStack.push(new GenericCommand<>(uri, undo));
+    }
+
+    //Undo command for putting a chunked doc, which brings back whichever doc it replaced
+    private void undoPutChunked(URI uri, Document oldDoc, Document oldIndex){
+
+        Function<URI, Boolean> undo = (func) -> {
+            //nothing redoes the put, so its chunks go with its index
+            Document index = removeChunkIndex(uri);
+            if(index != null) {
+                dropChunks(ChunkIndex.of(uri, index));
+            }
+            if(oldIndex != null) {
+                restoreChunkIndex(oldIndex);
+            }
+            if(oldDoc != null) {
+                putInTrie((DocumentImpl) oldDoc);
+                bTree.put(uri, oldDoc);
+                putInHeap(oldDoc, null);
+                incrementDocCount(oldDoc);
+                logPut(oldDoc);
+            }
             return true;
         };
 
@@ -640,12 +1351,218 @@ public class DocumentStoreImpl implements DocumentStore {
             deleteFromHeap(bTree.get(uri));
             bTree.put(uri, null);
             decrementDocCount(bTree.get(uri));
+            logDelete(uri);
             return true;
         };
 
         commandStack.push(new GenericCommand<>(uri, undo));
     }
 
+    //Load the documents, eviction order and word index of a checkpoint. Returns false if there is none or it is corrupt
+    private boolean loadCheckpoint(boolean deleteAfterLoading) {
+
+        File file = new File(this.directory, StoreCheckpoint.NAME);
+
+        if(!file.exists()) {
+
+            return false;
+        }
+
+        long start = System.nanoTime();
+        long length = file.length();
+        StoreCheckpoint checkpoint;
+
+        try {
+
+            checkpoint = StoreCheckpoint.read(file, this.pm.getPersistedKeys()::contains);
+
+        } catch(IOException e) {
+
+            //nothing was loaded from it, so the store can fall back to what is on disk
+            e.printStackTrace();
+            return false;
+        }
+
+        List<DocumentImpl> docs = checkpoint.getDocuments();
+        long now = System.nanoTime();
+
+        for(int i = 0; i < docs.size(); i++) {
+
+            //keep the order they were used in, all before anything used from now on
+            DocumentImpl doc = docs.get(i);
+            doc.setLastUseTime(now - docs.size() + i);
+            bTree.put(doc.getKey(), doc);
+            minHeap.insert(new Node(doc.getKey(), doc.getLastUseTime()));
+            incrementDocCount(doc);
+        }
+
+        checkpoint.addIndexTo(this.trie);
+        this.checkpointStatistics.recordRestore(docs.size(), length, System.nanoTime() - start);
+
+        //with a write-ahead log, whatever changes from now on is logged on top of the checkpoint. Without one it is not in the
+        //checkpoint, so it must never be loaded again
+        if(!deleteAfterLoading) {
+
+            return true;
+        }
+
+        try {
+
+            Files.delete(file.toPath());
+
+        } catch(IOException e) {
+
+            e.printStackTrace();
+        }
+
+        return true;
+    }
+
+    //Replay what is left in the write-ahead log, then keep logging to it, or delete it if the store keeps no log
+    private void openWriteAheadLog(Durability durability) {
+
+        if(durability == null && !new File(this.directory, WriteAheadLog.NAME).exists()) {
+
+            return;
+        }
+
+        try {
+
+            WriteAheadLog log = new WriteAheadLog(this.directory);
+            long start = System.nanoTime();
+            long count = log.replay(new WriteAheadLog.Replayer() {
+
+                @Override
+                public void put(DocumentImpl doc) {
+
+                    replayPut(doc);
+                }
+
+                @Override
+                public void delete(URI uri) {
+
+                    replayDelete(uri);
+                }
+            });
+
+            this.checkpointStatistics.recordReplay(count, System.nanoTime() - start);
+
+            if(durability == null) {
+
+                log.close();
+                Files.delete(log.getPath());
+
+            }else{
+
+                log.setDurability(durability, DocumentPersistenceManager.DEFAULT_GROUP_COMMIT_MILLIS);
+                this.log = log;
+            }
+
+        } catch(IOException e) {
+
+            throw new UncheckedIOException("could not replay the write-ahead log in " + this.directory, e);
+        }
+    }
+
+    //Leave the uri holding the document, without an undo command or a log entry
+    private void replayPut(DocumentImpl doc) {
+
+        Document oldDoc = bTree.put(doc.getKey(), doc);
+
+        if(oldDoc != null) {
+
+            forget(oldDoc);
+        }
+
+        putInTrie(doc);
+        incrementDocCount(doc);
+        putInHeap(doc, null);
+    }
+
+    //Leave the uri holding no document, without an undo command or a log entry
+    private void replayDelete(URI uri) {
+
+        Document oldDoc = bTree.get(uri);
+
+        if(oldDoc != null) {
+
+            forget(oldDoc);
+            bTree.put(uri, null);
+        }
+    }
+
+    //Remove a replaced or deleted document from the trie, and from the heap and the counts if it was in memory
+    private void forget(Document doc) {
+
+        deleteFromTrie((DocumentImpl) doc);
+
+        try {
+
+            deleteFromHeap(doc);
+            decrementDocCount(doc);
+
+        } catch(NoSuchElementException e) {
+
+            //it was on disk, so it was never counted
+        }
+    }
+
+    //Record the state a put left the uri in, before the put returns
+    private void logPut(Document doc) {
+
+        if(this.log != null) {
+
+            log(Collections.singletonList(WriteAheadLog.put(doc)));
+        }
+    }
+
+    //Record that a delete left the uri holding no document, before the delete returns
+    private void logDelete(URI uri) {
+
+        if(this.log != null) {
+
+            log(Collections.singletonList(WriteAheadLog.delete(uri)));
+        }
+    }
+
+    private void log(List<ByteBuffer> entries) {
+
+        if(this.log == null) {
+
+            return;
+        }
+
+        try {
+
+            this.log.append(entries);
+
+        } catch(IOException e) {
+
+            throw new UncheckedIOException("could not write to the write-ahead log", e);
+        }
+    }
+
+    private void loadIndexSnapshot() {
+
+        File snapshot = new File(this.directory, IndexSnapshot.NAME);
+
+        if(!snapshot.exists()) {
+
+            return;
+        }
+
+        try {
+
+            Set<URI> onDisk = this.pm.getPersistedKeys();
+            IndexSnapshot.read(snapshot, this.trie, onDisk::contains);
+
+        } catch(IOException e) {
+
+            //the store still works without it, documents on disk just cannot be searched until they are put again
+            e.printStackTrace();
+        }
+    }
+
     //Put a document into the trie
     private void putInTrie(DocumentImpl doc) {
 
@@ -706,38 +1623,33 @@ public class DocumentStoreImpl implements DocumentStore {
         }
 
         this.documentCount--;
-
-        if(removed.getDocumentTxt() != null) {
-
-            this.documentBytes -= removed.getDocumentTxt().getBytes().length;
-
-        }else{
-
-            this.documentBytes -= removed.getDocumentBinaryData().length;
-        }
+        this.documentBytes -= ((DocumentImpl) removed).getFootprint();
     }
 
     private void incrementDocCount(Document newDoc) {
 
         this.documentCount++;
+        //the footprint is worked out from lengths, so counting a document read lazily from disk does not load its body
+        this.documentBytes += ((DocumentImpl) newDoc).getFootprint();
 
-        int addedBytes = 0;
-        if(newDoc.getDocumentTxt() != null) {
+        if(this.offHeap != null) {
 
-            addedBytes = newDoc.getDocumentTxt().getBytes().length;
-
-        }else{
-
-            addedBytes = newDoc.getDocumentBinaryData().length;
+            this.offHeap.store((DocumentImpl) newDoc);
         }
+    }
 
-        this.documentBytes += addedBytes;
+    //run by the budget on the thread that measured the heap, so it takes the lock the operations of the store take
+    private synchronized void evictToLimits() {
+
+        checkStorage();
     }
 
     private void checkStorage() {
 
+        long maxBytes = this.adaptiveBudget != null ? this.adaptiveBudget.limitFor(this.documentBytes, this.maxDocumentBytes) : this.maxDocumentBytes;
+
         //while the store is over either of the limits, delete the oldest documents until it is under both limits
-        while(this.documentCount > this.maxDocumentCount || this.documentBytes > this.maxDocumentBytes) {
+        while(this.documentCount > this.maxDocumentCount || this.documentBytes > maxBytes) {
 
             try {
 
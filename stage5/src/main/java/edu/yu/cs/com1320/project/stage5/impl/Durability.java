@@ -0,0 +1,21 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+/**
+ * how hard a persistence manager works to make sure a write survives a crash
+ */
+public enum Durability {
+
+    /**
+     * never fsync, leave it to the operating system
+     */
+    NONE,
+    /**
+     * fsync everything written during a window on a background thread once per window, so one fsync covers many writes.
+     * A crash can lose at most the last window
+     */
+    GROUP_COMMIT,
+    /**
+     * fsync every write before it returns
+     */
+    PER_WRITE
+}
@@ -0,0 +1,122 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Runs a persistence manager's sync action once per commit window on a daemon thread, for Durability.GROUP_COMMIT.
+ */
+class GroupCommitter implements Closeable {
+
+    //makes everything written since the last call durable
+    interface SyncAction {
+
+        void sync() throws IOException;
+    }
+
+    private final SyncAction action;
+    private final long intervalMillis;
+    private final Thread thread;
+    private boolean closed;
+
+    GroupCommitter(String name, long intervalMillis, SyncAction action) {
+
+        if(intervalMillis <= 0 || action == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.action = action;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+
+        while(true) {
+
+            synchronized(this) {
+
+                try {
+
+                    if(!this.closed) {
+
+                        wait(this.intervalMillis);
+                    }
+
+                } catch(InterruptedException e) {
+
+                    return;
+                }
+
+                if(this.closed) {
+
+                    return;
+                }
+            }
+
+            try {
+
+                this.action.sync();
+
+            } catch(IOException e) {
+
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * stop the background thread and run one last sync so nothing written before the close is left unsynced
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized(this) {
+
+            if(this.closed) {
+
+                return;
+            }
+
+            this.closed = true;
+            notifyAll();
+        }
+
+        try {
+
+            this.thread.join();
+
+        } catch(InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+        }
+
+        this.action.sync();
+    }
+
+    /**
+     * fsync a directory so the creation, replacement or removal of its entries is durable. Platforms that cannot open
+     * directories for reading skip this.
+     * @param directory
+     * @return true if the directory was synced
+     */
+    static boolean syncDirectory(Path directory) {
+
+        try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+
+            channel.force(true);
+            return true;
+
+        } catch(IOException e) {
+
+            return false;
+        }
+    }
+}
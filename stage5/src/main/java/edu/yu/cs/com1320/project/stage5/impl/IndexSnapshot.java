@@ -0,0 +1,168 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.impl.TrieImpl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The word index of a document store, so a restarted store can search without reading any document. On its own it is
+ * written to a file framed by {@link SnapshotFile}, and a {@link StoreCheckpoint} writes it as its last section.
+ * Lengths, counts and ids are unsigned varints.
+ * <pre>
+ * varint number of uris, then each uri (length, UTF-8). A uri's id is its position in this table
+ * varint number of words, then for each word, in order: length, word (UTF-8), number of uris, then the ids of the uris in
+ *        ascending order, each written as the difference from the one before
+ * </pre>
+ */
+class IndexSnapshot {
+
+    static final String NAME = "index.snapshot";
+    static final int MAGIC = 0xD0C51DE7;
+    static final short VERSION = 2;
+
+    //the words and uris read from a snapshot, held until the snapshot is known to be intact
+    private final List<String> words;
+    private final List<List<URI>> postings;
+
+    private IndexSnapshot() {
+
+        this.words = new ArrayList<>();
+        this.postings = new ArrayList<>();
+    }
+
+    /**
+     * write the words of the trie and the uris at each of them, replacing any earlier snapshot
+     * @param file
+     * @param trie
+     * @throws IOException
+     */
+    static void write(File file, TrieImpl<URI> trie) throws IOException {
+
+        SnapshotFile.write(file, MAGIC, VERSION, out -> writeTo(out, trie));
+    }
+
+    /**
+     * add every word in a snapshot file to the trie. Nothing is added if the snapshot is corrupt
+     * @param file
+     * @param trie
+     * @param keep which uris to add. Uris of documents that no longer exist are left out
+     * @throws IOException if the snapshot is corrupt
+     */
+    static void read(File file, TrieImpl<URI> trie, Predicate<URI> keep) throws IOException {
+
+        SnapshotFile.read(file, MAGIC, VERSION, in -> readFrom(in, keep)).addTo(trie);
+    }
+
+    static void writeTo(DataOutputStream out, TrieImpl<URI> trie) throws IOException {
+
+        Map<URI, Integer> ids = new LinkedHashMap<>();
+        int[] wordCount = new int[1];
+
+        trie.forEach((word, uris) -> {
+
+            wordCount[0]++;
+
+            for(URI uri : uris) {
+
+                ids.putIfAbsent(uri, ids.size());
+            }
+        });
+
+        SnapshotFile.writeVarInt(out, ids.size());
+
+        for(URI uri : ids.keySet()) {
+
+            SnapshotFile.writeString(out, uri.toString());
+        }
+
+        SnapshotFile.writeVarInt(out, wordCount[0]);
+
+        try {
+
+            trie.forEach((word, uris) -> {
+
+                try {
+
+                    int[] postings = new int[uris.size()];
+
+                    for(int i = 0; i < postings.length; i++) {
+
+                        postings[i] = ids.get(uris.get(i));
+                    }
+
+                    Arrays.sort(postings);
+                    SnapshotFile.writeString(out, word);
+                    SnapshotFile.writeVarInt(out, postings.length);
+
+                    for(int i = 0; i < postings.length; i++) {
+
+                        SnapshotFile.writeVarInt(out, i == 0 ? postings[i] : postings[i] - postings[i - 1]);
+                    }
+
+                } catch(IOException e) {
+
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        } catch(UncheckedIOException e) {
+
+            throw e.getCause();
+        }
+    }
+
+    static IndexSnapshot readFrom(DataInputStream in, Predicate<URI> keep) throws IOException {
+
+        URI[] uris = new URI[SnapshotFile.readVarInt(in)];
+
+        for(int i = 0; i < uris.length; i++) {
+
+            URI uri = URI.create(SnapshotFile.readString(in));
+            uris[i] = keep.test(uri) ? uri : null;
+        }
+
+        IndexSnapshot snapshot = new IndexSnapshot();
+        int wordCount = SnapshotFile.readVarInt(in);
+
+        for(int w = 0; w < wordCount; w++) {
+
+            String word = SnapshotFile.readString(in);
+            int count = SnapshotFile.readVarInt(in);
+            List<URI> postings = new ArrayList<>(count);
+            int id = 0;
+
+            for(int i = 0; i < count; i++) {
+
+                id += SnapshotFile.readVarInt(in);
+
+                if(uris[id] != null) {
+
+                    postings.add(uris[id]);
+                }
+            }
+
+            if(!postings.isEmpty()) {
+
+                snapshot.words.add(word);
+                snapshot.postings.add(postings);
+            }
+        }
+
+        return snapshot;
+    }
+
+    void addTo(TrieImpl<URI> trie) {
+
+        for(int i = 0; i < this.words.size(); i++) {
+
+            trie.putAll(this.words.get(i), this.postings.get(i));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The original JSON format: uri, txt and wordCountMap for text documents, uri and binaryData for binary documents.
+ *
+ * Documents are written field by field straight to the output as compact JSON, and read token by token without building a tree.
+ * DocumentPersistenceManager writes them to plain .json files with no header, so any JSON reader still reads the files.
+ * Pretty-printed files from before are read the same way, as are word maps nested as a string and binary data written as a
+ * base64 string.
+ */
+public class JsonDocumentCodec implements DocumentCodec {
+
+    public static final int VERSION = 1;
+
+    //configured once and shared, it only hands out readers and writers
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int BUFFER_BYTES = 8192;
+
+    @Override
+    public int getVersion() {
+
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Document doc) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_BYTES);
+        encode(doc, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void encode(Document doc, OutputStream out) throws IOException {
+
+        if(doc == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        Writer utf8 = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_BYTES);
+        JsonWriter json = GSON.newJsonWriter(utf8);
+        json.beginObject();
+        json.name("uri").value(doc.getKey().toString());
+
+        if(BinaryDocumentCodec.isText(doc)) {
+
+            json.name("txt").value(doc.getDocumentTxt());
+            json.name("wordCountMap").beginObject();
+
+            for(Map.Entry<String, Integer> entry : doc.getWordMap().entrySet()) {
+
+                json.name(entry.getKey()).value(entry.getValue());
+            }
+
+            json.endObject();
+
+        }else{
+
+            ByteBuffer body = BinaryDocumentCodec.bodyOf(doc);
+            json.name("binaryData").beginArray();
+
+            for(int i = body.position(); i < body.limit(); i++) {
+
+                json.value(body.get(i));
+            }
+
+            json.endArray();
+        }
+
+        json.endObject();
+        //flushed but not closed, the caller owns the stream
+        json.flush();
+    }
+
+    @Override
+    public Document decode(ByteBuffer buffer) throws IOException {
+
+        JsonReader json = GSON.newJsonReader(new InputStreamReader(new ByteBufferInputStream(buffer), StandardCharsets.UTF_8));
+        json.setLenient(true);
+
+        try {
+
+            return read(json);
+
+        } catch(IllegalStateException | NumberFormatException | URISyntaxException e) {
+
+            throw new IOException("corrupt json document", e);
+        }
+    }
+
+    private static Document read(JsonReader json) throws IOException, URISyntaxException {
+
+        URI uri = null;
+        String txt = null;
+        Map<String, Integer> wordCountMap = null;
+        byte[] binaryData = null;
+
+        json.beginObject();
+
+        while(json.hasNext()) {
+
+            switch(json.nextName()) {
+
+                case "uri":
+                    uri = new URI(json.nextString());
+                    break;
+
+                case "txt":
+                    txt = json.nextString();
+                    break;
+
+                case "wordCountMap":
+                    wordCountMap = readWordCountMap(json);
+                    break;
+
+                case "binaryData":
+                    binaryData = readBinaryData(json);
+                    break;
+
+                default:
+                    json.skipValue();
+            }
+        }
+
+        json.endObject();
+
+        if(uri == null || (txt == null && binaryData == null)) {
+
+            throw new IOException("json document is missing its uri or body");
+        }
+
+        return txt != null ? new DocumentImpl(uri, txt, wordCountMap) : new DocumentImpl(uri, binaryData);
+    }
+
+    private static Map<String, Integer> readWordCountMap(JsonReader json) throws IOException {
+
+        //some writers nested the map as a string holding its JSON
+        if(json.peek() == JsonToken.STRING) {
+
+            JsonReader nested = GSON.newJsonReader(new StringReader(json.nextString()));
+            nested.setLenient(true);
+            return readWordCountMap(nested);
+        }
+
+        Map<String, Integer> wordCountMap = new HashMap<>();
+        json.beginObject();
+
+        while(json.hasNext()) {
+
+            wordCountMap.put(json.nextName(), json.nextInt());
+        }
+
+        json.endObject();
+        return wordCountMap;
+    }
+
+    private static byte[] readBinaryData(JsonReader json) throws IOException {
+
+        if(json.peek() == JsonToken.STRING) {
+
+            try {
+
+                return Base64.getDecoder().decode(json.nextString());
+
+            } catch(IllegalArgumentException e) {
+
+                throw new IOException("corrupt base64 binary data", e);
+            }
+        }
+
+        ByteArrayOutputStream binaryData = new ByteArrayOutputStream();
+        json.beginArray();
+
+        while(json.hasNext()) {
+
+            binaryData.write(json.nextInt());
+        }
+
+        json.endArray();
+        return binaryData.toByteArray();
+    }
+
+    //reads the remaining bytes of a buffer, which may be a mapping of a file, without copying them to an array first
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+
+            if(!this.buffer.hasRemaining()) {
+
+                return len == 0 ? 0 : -1;
+            }
+
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The uris that have a document on disk, kept as a log of additions and removals so a persistence manager can list them
+ * without walking its directory or reading any document. Each entry is:
+ * <pre>
+ * int   length of op and uri
+ * int   CRC32 of op and uri
+ * byte  op (1 = added, 2 = removed)
+ * uri   (UTF-8)
+ * </pre>
+ * Reading stops at the first entry that is cut off or fails its checksum, which is where a crash interrupted an append, and
+ * the log is cut back to there. Once the log holds more than twice as many entries as there are uris, it is rewritten with
+ * one entry per uri.
+ */
+class Manifest implements Closeable {
+
+    static final String NAME = "manifest.log";
+
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+    private static final int ENTRY_HEADER_LENGTH = 8;
+    //a small log is never worth rewriting
+    private static final int MIN_ENTRIES_TO_REWRITE = 1024;
+
+    private final Path path;
+    private final Set<URI> uris;
+    private FileChannel log;
+    private int entryCount;
+
+    /**
+     * open the manifest in the given directory, creating it if there is none
+     * @param directory
+     * @throws IOException
+     */
+    Manifest(File directory) throws IOException {
+
+        this.path = new File(directory, NAME).toPath();
+        this.uris = new HashSet<>();
+        Files.createDirectories(directory.toPath());
+        this.log = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer entries = ByteBuffer.allocate((int) this.log.size());
+
+        while(entries.hasRemaining() && this.log.read(entries, entries.position()) >= 0) {
+
+            //keep reading until the whole log is in the buffer
+        }
+
+        entries.flip();
+        long valid = 0;
+
+        while(entries.remaining() >= ENTRY_HEADER_LENGTH) {
+
+            int length = entries.getInt(entries.position());
+            int checksum = entries.getInt(entries.position() + 4);
+
+            if(length < 1 || length > entries.remaining() - ENTRY_HEADER_LENGTH) {
+
+                break;
+            }
+
+            ByteBuffer entry = entries.duplicate();
+            entry.position(entries.position() + ENTRY_HEADER_LENGTH).limit(entries.position() + ENTRY_HEADER_LENGTH + length);
+            CRC32 crc = new CRC32();
+            crc.update(entry.duplicate());
+
+            if((int) crc.getValue() != checksum) {
+
+                break;
+            }
+
+            byte op = entry.get();
+            URI uri = URI.create(StandardCharsets.UTF_8.decode(entry).toString());
+
+            if(op == ADDED) {
+
+                this.uris.add(uri);
+
+            }else{
+
+                this.uris.remove(uri);
+            }
+
+            this.entryCount++;
+            entries.position(entries.position() + ENTRY_HEADER_LENGTH + length);
+            valid = entries.position();
+        }
+
+        this.log.truncate(valid);
+        this.log.position(valid);
+        rewriteIfNeeded();
+    }
+
+    /**
+     * record that the uri has a document on disk
+     * @param uri
+     * @return true if the manifest changed, false if it already listed the uri
+     * @throws IOException
+     */
+    synchronized boolean add(URI uri) throws IOException {
+
+        if(!this.uris.add(uri)) {
+
+            return false;
+        }
+
+        append(ADDED, uri);
+        return true;
+    }
+
+    /**
+     * record that the uri no longer has a document on disk
+     * @param uri
+     * @return true if the manifest changed, false if it did not list the uri
+     * @throws IOException
+     */
+    synchronized boolean remove(URI uri) throws IOException {
+
+        if(!this.uris.remove(uri)) {
+
+            return false;
+        }
+
+        append(REMOVED, uri);
+        return true;
+    }
+
+    synchronized Set<URI> getUris() {
+
+        return new HashSet<>(this.uris);
+    }
+
+    Path getPath() {
+
+        return this.path;
+    }
+
+    /**
+     * force everything appended so far to disk
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException {
+
+        this.log.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        this.log.close();
+    }
+
+    private void append(byte op, URI uri) throws IOException {
+
+        ByteBuffer entry = entry(op, uri);
+
+        while(entry.hasRemaining()) {
+
+            this.log.write(entry);
+        }
+
+        this.entryCount++;
+        rewriteIfNeeded();
+    }
+
+    private void rewriteIfNeeded() throws IOException {
+
+        if(this.entryCount < MIN_ENTRIES_TO_REWRITE || this.entryCount <= this.uris.size() * 2) {
+
+            return;
+        }
+
+        Path tmp = this.path.resolveSibling(NAME + ".tmp");
+        FileChannel rewritten = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+
+            for(URI uri : this.uris) {
+
+                ByteBuffer entry = entry(ADDED, uri);
+
+                while(entry.hasRemaining()) {
+
+                    rewritten.write(entry);
+                }
+            }
+
+            rewritten.force(true);
+            Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch(IOException e) {
+
+            rewritten.close();
+            throw e;
+        }
+
+        GroupCommitter.syncDirectory(this.path.getParent());
+        this.log.close();
+        this.log = rewritten;
+        this.entryCount = this.uris.size();
+    }
+
+    private static ByteBuffer entry(byte op, URI uri) {
+
+        byte[] bytes = uri.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + 1 + bytes.length);
+        entry.putInt(1 + bytes.length).putInt(0).put(op).put(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), ENTRY_HEADER_LENGTH, 1 + bytes.length);
+        entry.putInt(4, (int) crc.getValue());
+        entry.flip();
+        return entry;
+    }
+}
@@ -0,0 +1,254 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the bodies of the documents in memory outside the Java heap, so a large resident set adds only a small object per
+ * document to the old generation and does not make garbage collection pauses longer. A document whose body is moved here holds
+ * a view of a region of direct memory instead of its text or binary data, and decodes the region every time its text or binary
+ * data is asked for, so the decoded copy is short-lived garbage.
+ *
+ * Regions are carved out of slabs of direct memory by a size-class allocator: a body gets the smallest power of two that fits
+ * it, at least 64 bytes, from the free list of that size or else from the end of the current slab. Bodies longer than a slab get
+ * a direct buffer of their own. A region goes back to its free list once the document holding it has been garbage collected,
+ * not when the document leaves the store, since undo commands and callers of get may still hold it.
+ *
+ * A body that does not fit in the capacity left stays on the heap. Either way it counts against the memory limits of the store,
+ * so the capacity should leave room above the store's limit for documents that left the store but are not collected yet.
+ */
+public class OffHeapBodyStore {
+
+    public static final int DEFAULT_SLAB_BYTES = 16 << 20;
+
+    private static final int MIN_REGION_SHIFT = 6;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long capacity;
+    private final int slabBytes;
+    private final List<ByteBuffer> slabs;
+    //free regions of each size class, each the slab index in the high half and the offset in the low half
+    private final ArrayDeque<Long>[] freeRegions;
+    private int slabEnd;
+    private long reservedBytes;
+    private long allocatedBytes;
+    private long bodyBytes;
+    private long bodyCount;
+    private long heapFallbacks;
+
+    /**
+     * @param capacity the most direct memory to take for bodies, in slabs and in buffers of their own
+     */
+    public OffHeapBodyStore(long capacity) {
+
+        this(capacity, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param capacity the most direct memory to take for bodies, in slabs and in buffers of their own
+     * @param slabBytes the length of each slab, a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OffHeapBodyStore(long capacity, int slabBytes) {
+
+        if(capacity < 0 || slabBytes < (1 << MIN_REGION_SHIFT) || Integer.bitCount(slabBytes) != 1) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.capacity = capacity;
+        this.slabBytes = slabBytes;
+        this.slabs = new ArrayList<>();
+        this.freeRegions = new ArrayDeque[sizeClass(slabBytes) + 1];
+
+        for(int i = 0; i < this.freeRegions.length; i++) {
+
+            this.freeRegions[i] = new ArrayDeque<>();
+        }
+
+        //nothing is carved from a slab until the first one is taken
+        this.slabEnd = slabBytes;
+    }
+
+    /**
+     * move the body of the document into direct memory, if it is on the heap and there is room for it
+     * @param doc
+     * @return true if the body was moved
+     */
+    boolean store(DocumentImpl doc) {
+
+        if(!doc.isBodyOnHeap()) {
+
+            return false;
+        }
+
+        int length = doc.getBodyLength();
+        ByteBuffer region;
+
+        if(length > this.slabBytes) {
+
+            synchronized(this) {
+
+                if(this.reservedBytes + length > this.capacity) {
+
+                    this.heapFallbacks++;
+                    return false;
+                }
+
+                this.reservedBytes += length;
+                this.allocatedBytes += length;
+                this.bodyBytes += length;
+                this.bodyCount++;
+            }
+
+            region = ByteBuffer.allocateDirect(length);
+            doc.moveBodyTo(region);
+            //the buffer goes with the document, only the accounting has to be given back
+            CLEANER.register(doc, () -> freeOwn(length));
+            return true;
+        }
+
+        int sizeClass = sizeClass(length);
+        long address;
+
+        synchronized(this) {
+
+            address = allocate(sizeClass);
+
+            if(address < 0) {
+
+                this.heapFallbacks++;
+                return false;
+            }
+
+            this.allocatedBytes += 1L << (sizeClass + MIN_REGION_SHIFT);
+            this.bodyBytes += length;
+            this.bodyCount++;
+            region = this.slabs.get((int) (address >>> 32)).duplicate();
+        }
+
+        int offset = (int) address;
+        region.position(offset).limit(offset + length);
+        doc.moveBodyTo(region.slice());
+        CLEANER.register(doc, () -> free(sizeClass, address, length));
+        return true;
+    }
+
+    /**
+     * @return the most direct memory this takes
+     */
+    public long getCapacity() {
+
+        return this.capacity;
+    }
+
+    /**
+     * @return the direct memory taken so far, in slabs and in buffers of their own
+     */
+    public synchronized long getReservedBytes() {
+
+        return this.reservedBytes;
+    }
+
+    /**
+     * @return the length of the regions held by documents, including what rounding up to a size class adds
+     */
+    public synchronized long getAllocatedBytes() {
+
+        return this.allocatedBytes;
+    }
+
+    /**
+     * @return the total length of the bodies held by documents
+     */
+    public synchronized long getBodyBytes() {
+
+        return this.bodyBytes;
+    }
+
+    /**
+     * @return the number of bodies held by documents
+     */
+    public synchronized long getBodyCount() {
+
+        return this.bodyCount;
+    }
+
+    /**
+     * @return the number of bodies that stayed on the heap because there was no room for them
+     */
+    public synchronized long getHeapFallbacks() {
+
+        return this.heapFallbacks;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format("%d bodies, %d bytes in %d bytes of regions, %d of %d bytes reserved, %d left on the heap", this.bodyCount,
+                this.bodyBytes, this.allocatedBytes, this.reservedBytes, this.capacity, this.heapFallbacks);
+    }
+
+    //a free region of the size class, or a new one from the end of the current slab or a new slab. -1 if there is no room
+    private long allocate(int sizeClass) {
+
+        Long free = this.freeRegions[sizeClass].poll();
+
+        if(free != null) {
+
+            return free;
+        }
+
+        int size = 1 << (sizeClass + MIN_REGION_SHIFT);
+
+        if(this.slabEnd + size > this.slabBytes) {
+
+            if(this.reservedBytes + this.slabBytes > this.capacity) {
+
+                return -1;
+            }
+
+            //what is left of the current slab is smaller than the region, so it goes to the free lists of the smaller sizes
+            for(int left = this.slabBytes - this.slabEnd; left >= 1 << MIN_REGION_SHIFT; ) {
+
+                int piece = Integer.highestOneBit(left);
+                this.freeRegions[sizeClass(piece)].push(((long) (this.slabs.size() - 1) << 32) | (this.slabBytes - left));
+                left -= piece;
+            }
+
+            this.slabs.add(ByteBuffer.allocateDirect(this.slabBytes));
+            this.reservedBytes += this.slabBytes;
+            this.slabEnd = 0;
+        }
+
+        long address = ((long) (this.slabs.size() - 1) << 32) | this.slabEnd;
+        this.slabEnd += size;
+        return address;
+    }
+
+    private synchronized void free(int sizeClass, long address, int length) {
+
+        this.freeRegions[sizeClass].push(address);
+        this.allocatedBytes -= 1L << (sizeClass + MIN_REGION_SHIFT);
+        this.bodyBytes -= length;
+        this.bodyCount--;
+    }
+
+    private synchronized void freeOwn(int length) {
+
+        this.reservedBytes -= length;
+        this.allocatedBytes -= length;
+        this.bodyBytes -= length;
+        this.bodyCount--;
+    }
+
+    //the smallest size class whose regions fit the length
+    private static int sizeClass(int length) {
+
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1 << MIN_REGION_SHIFT) - 1);
+        return shift - MIN_REGION_SHIFT;
+    }
+}
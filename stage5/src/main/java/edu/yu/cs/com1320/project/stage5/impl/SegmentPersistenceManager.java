@@ -0,0 +1,763 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentCodec;
+import edu.yu.cs.com1320.project.stage5.PersistenceManager;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured persistence manager. Instead of a file per document, documents are appended to large segment files and an
+ * in-memory index maps every uri to its latest record. Deletes and overwrites leave dead records behind, which a background
+ * compactor reclaims by copying the live records of mostly dead segments to the end of the log and deleting the segment.
+ *
+ * Record layout:
+ * <pre>
+ * int   length of the rest of the record after the checksum
+ * int   CRC32 of the rest of the record
+ * byte  PUT or DELETE
+ * short version of the codec that encoded the document (0 for deletes)
+ * int   uri length, uri (UTF-8)
+ * the encoded document (puts only)
+ * </pre>
+ * The index is rebuilt on open by scanning the segments in order. A torn record at the end of the last segment is cut off.
+ *
+ * With Durability.GROUP_COMMIT every segment written during a commit window gets a single fsync, however many
+ * documents were appended to it.
+ */
+public class SegmentPersistenceManager implements PersistenceManager<URI, Document>, Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 1000;
+    //segments whose live records take up less than this share of the segment get compacted
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 20;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_RECORD_BODY = 7;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final File directory;
+    private final CodecRegistry codecs;
+    private final long maxSegmentBytes;
+    private final TreeMap<Integer, Segment> segments;
+    private final Map<URI, Location> index;
+    private Segment active;
+
+    private double compactionThreshold;
+    private Thread compactor;
+    private volatile boolean closed;
+    private long compactedSegments;
+    private long reclaimedBytes;
+
+    private Durability durability;
+    private GroupCommitter committer;
+    private final SyncStatistics syncStatistics;
+    //segments appended to since their last fsync, and how many records were appended
+    private final Map<Segment, Long> unsynced;
+
+    private static final class Segment {
+
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+
+        private Segment(int id, File file) throws IOException {
+
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    //called for every intact record while scanning a segment
+    private interface RecordVisitor {
+
+        void visit(long offset, ByteBuffer record, byte type, URI uri) throws IOException;
+    }
+
+    public SegmentPersistenceManager(File baseDir) throws IOException {
+
+        this(baseDir, new BinaryDocumentCodec(), DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param baseDir the directory holding the segment files. If null, the working directory is used
+     * @param codec the codec used to encode documents
+     * @param maxSegmentBytes the size at which the active segment is sealed and a new one started
+     * @throws IOException if the existing segments cannot be read
+     */
+    public SegmentPersistenceManager(File baseDir, DocumentCodec codec, long maxSegmentBytes) throws IOException {
+
+        if(codec == null || maxSegmentBytes <= 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.directory = baseDir == null ? new File(System.getProperty("user.dir")) : baseDir;
+        this.codecs = new CodecRegistry(codec);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.segments = new TreeMap<>();
+        this.index = new HashMap<>();
+        this.compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        this.durability = Durability.NONE;
+        this.syncStatistics = new SyncStatistics();
+        this.unsynced = new HashMap<>();
+
+        Files.createDirectories(this.directory.toPath());
+        recover();
+        startCompactor(DEFAULT_COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * make a codec available for reading records written with its version
+     * @param codec
+     */
+    public void registerCodec(DocumentCodec codec) {
+
+        this.codecs.register(codec);
+    }
+
+    /**
+     * set the codec used for all future writes. The codec is registered for reads as well.
+     * @param codec
+     */
+    public void setCodec(DocumentCodec codec) {
+
+        this.codecs.setCurrent(codec);
+    }
+
+    /**
+     * @param threshold segments whose live bytes are below this fraction of their size are compacted
+     */
+    public synchronized void setCompactionThreshold(double threshold) {
+
+        if(threshold < 0 || threshold > 1) {
+
+            throw new IllegalArgumentException("threshold must be between 0 and 1");
+        }
+
+        this.compactionThreshold = threshold;
+    }
+
+    public void setDurability(Durability durability) throws IOException {
+
+        setDurability(durability, DEFAULT_GROUP_COMMIT_MILLIS);
+    }
+
+    /**
+     * @param durability when appended records are forced to disk
+     * @param groupCommitMillis the length of a commit window, only used for Durability.GROUP_COMMIT
+     * @throws IOException if syncing what the previous group commit window left unsynced fails
+     */
+    public void setDurability(Durability durability, long groupCommitMillis) throws IOException {
+
+        if(durability == null) {
+
+            throw new IllegalArgumentException("durability cannot be null");
+        }
+
+        GroupCommitter old;
+
+        synchronized(this) {
+
+            ensureOpen();
+            old = this.committer;
+            this.committer = null;
+            this.durability = durability;
+
+            if(durability == Durability.GROUP_COMMIT) {
+
+                this.committer = new GroupCommitter("segment-group-commit", groupCommitMillis, this::syncUnsynced);
+            }
+        }
+
+        if(old != null) {
+
+            old.close();
+        }
+    }
+
+    public synchronized Durability getDurability() {
+
+        return this.durability;
+    }
+
+    public SyncStatistics getSyncStatistics() {
+
+        return this.syncStatistics;
+    }
+
+    @Override
+    public void serialize(URI uri, Document val) throws IOException {
+
+        if(uri == null || val == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        DocumentCodec codec = this.codecs.getCurrent();
+        ByteBuffer record = record(PUT, codec.getVersion(), uri, codec.encode(val));
+
+        synchronized(this) {
+
+            ensureOpen();
+            Location location = append(record);
+            kill(this.index.put(uri, location));
+            location.segment.liveBytes += location.length;
+        }
+    }
+
+    @Override
+    public Document deserialize(URI uri) throws IOException {
+
+        if(uri == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        ByteBuffer record;
+
+        synchronized(this) {
+
+            ensureOpen();
+            Location location = this.index.get(uri);
+
+            if(location == null) {
+
+                throw new FileNotFoundException("no document on disk for " + uri);
+            }
+
+            record = ByteBuffer.allocate(location.length);
+            readFully(location.segment.channel, record, location.offset);
+        }
+
+        record.flip();
+        checkRecord(record);
+        record.position(RECORD_HEADER + 1);
+        int version = record.getShort() & 0xFFFF;
+        int uriLength = record.getInt();
+        record.position(record.position() + uriLength);
+
+        return this.codecs.forVersion(version).decode(record);
+    }
+
+    @Override
+    public synchronized boolean delete(URI uri) throws IOException {
+
+        ensureOpen();
+        Location old = this.index.remove(uri);
+
+        if(old == null) {
+
+            return false;
+        }
+
+        kill(old);
+        append(record(DELETE, 0, uri, new byte[0]));
+        return true;
+    }
+
+    /**
+     * @return the uris in the index, which recovery rebuilt from the segments when the manager was opened
+     */
+    @Override
+    public synchronized Set<URI> getPersistedKeys() {
+
+        return new HashSet<>(this.index.keySet());
+    }
+
+    /**
+     * compact every sealed segment that is below the compaction threshold, on the calling thread
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+
+        Segment victim;
+
+        while((victim = nextVictim()) != null) {
+
+            compact(victim);
+        }
+    }
+
+    public synchronized int getSegmentCount() {
+
+        return this.segments.size();
+    }
+
+    public synchronized long getTotalBytes() {
+
+        long total = 0;
+
+        for(Segment segment : this.segments.values()) {
+
+            total += segment.size;
+        }
+
+        return total;
+    }
+
+    public synchronized long getLiveBytes() {
+
+        long live = 0;
+
+        for(Segment segment : this.segments.values()) {
+
+            live += segment.liveBytes;
+        }
+
+        return live;
+    }
+
+    public synchronized long getCompactedSegmentCount() {
+
+        return this.compactedSegments;
+    }
+
+    public synchronized long getReclaimedBytes() {
+
+        return this.reclaimedBytes;
+    }
+
+    /**
+     * stop the compactor and close all segment files
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        Thread running;
+        GroupCommitter runningCommitter;
+
+        synchronized(this) {
+
+            if(this.closed) {
+
+                return;
+            }
+
+            this.closed = true;
+            running = this.compactor;
+            runningCommitter = this.committer;
+            notifyAll();
+        }
+
+        if(running != null && running != Thread.currentThread()) {
+
+            try {
+
+                running.join();
+
+            } catch(InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(runningCommitter != null) {
+
+            runningCommitter.close();
+        }
+
+        synchronized(this) {
+
+            for(Segment segment : this.segments.values()) {
+
+                segment.channel.close();
+            }
+        }
+    }
+
+    private void startCompactor(long intervalMillis) {
+
+        this.compactor = new Thread(() -> {
+
+            while(true) {
+
+                synchronized(this) {
+
+                    try {
+
+                        if(!this.closed) {
+
+                            wait(intervalMillis);
+                        }
+
+                    } catch(InterruptedException e) {
+
+                        return;
+                    }
+
+                    if(this.closed) {
+
+                        return;
+                    }
+                }
+
+                try {
+
+                    compact();
+
+                } catch(IOException e) {
+
+                    if(!this.closed) {
+
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "segment-compactor");
+
+        this.compactor.setDaemon(true);
+        this.compactor.start();
+    }
+
+    //the sealed segment with the smallest share of live bytes, if it is below the threshold
+    private synchronized Segment nextVictim() {
+
+        Segment victim = null;
+        double victimRatio = this.compactionThreshold;
+
+        if(this.closed) {
+
+            return null;
+        }
+
+        for(Segment segment : this.segments.values()) {
+
+            if(segment == this.active || segment.size == 0) {
+
+                continue;
+            }
+
+            double ratio = (double) segment.liveBytes / segment.size;
+
+            if(ratio < victimRatio) {
+
+                victim = segment;
+                victimRatio = ratio;
+            }
+        }
+
+        return victim;
+    }
+
+    //copy the live records of a sealed segment to the end of the log, then drop the segment
+    private void compact(Segment segment) throws IOException {
+
+        //sealed segments are never written again, so the scan itself needs no lock
+        scan(segment, (offset, record, type, uri) -> {
+
+            synchronized(this) {
+
+                ensureOpen();
+
+                if(type == PUT) {
+
+                    Location location = this.index.get(uri);
+
+                    if(location != null && location.segment == segment && location.offset == offset) {
+
+                        Location moved = append(record);
+                        this.index.put(uri, moved);
+                        segment.liveBytes -= location.length;
+                        moved.segment.liveBytes += moved.length;
+                    }
+
+                //a delete only has to survive while an older segment might still hold a put for its uri
+                }else if(!this.index.containsKey(uri) && this.segments.firstKey() < segment.id) {
+
+                    append(record);
+                }
+            }
+        });
+
+        synchronized(this) {
+
+            ensureOpen();
+
+            //the copies have to be on disk before the only other copy goes away
+            if(this.durability == Durability.GROUP_COMMIT) {
+
+                syncUnsynced();
+            }
+
+            this.segments.remove(segment.id);
+            this.unsynced.remove(segment);
+            segment.channel.close();
+            Files.deleteIfExists(segment.file.toPath());
+
+            if(this.durability != Durability.NONE) {
+
+                GroupCommitter.syncDirectory(this.directory.toPath());
+            }
+
+            this.compactedSegments++;
+            this.reclaimedBytes += segment.size - segment.liveBytes;
+        }
+    }
+
+    private void recover() throws IOException {
+
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+
+        if(files != null) {
+
+            for(File file : files) {
+
+                String name = file.getName();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                this.segments.put(id, new Segment(id, file));
+            }
+        }
+
+        for(Segment segment : this.segments.values()) {
+
+            long end = scan(segment, (offset, record, type, uri) -> {
+
+                Location old;
+
+                if(type == PUT) {
+
+                    Location location = new Location(segment, offset, record.limit());
+                    old = this.index.put(uri, location);
+                    segment.liveBytes += location.length;
+
+                }else{
+
+                    old = this.index.remove(uri);
+                }
+
+                kill(old);
+            });
+
+            if(end < segment.channel.size()) {
+
+                //a record cut short by a crash, nothing after it can be trusted
+                segment.channel.truncate(end);
+            }
+
+            segment.size = end;
+        }
+
+        if(this.segments.isEmpty()) {
+
+            roll();
+
+        }else{
+
+            this.active = this.segments.lastEntry().getValue();
+        }
+    }
+
+    //visit every intact record of the segment in order and return the offset just past the last one
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+
+        long fileSize = segment.file.length();
+        long offset = 0;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16))) {
+
+            while(offset + RECORD_HEADER <= fileSize) {
+
+                int length = in.readInt();
+                int checksum = in.readInt();
+
+                if(length < MIN_RECORD_BODY || offset + RECORD_HEADER + length > fileSize) {
+
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+                record.putInt(length).putInt(checksum);
+                in.readFully(record.array(), RECORD_HEADER, length);
+
+                if(checksum(record.array(), RECORD_HEADER, length) != checksum) {
+
+                    break;
+                }
+
+                record.position(RECORD_HEADER);
+                byte type = record.get();
+                record.getShort();
+                byte[] uriBytes = new byte[record.getInt()];
+                record.get(uriBytes);
+                record.rewind();
+
+                visitor.visit(offset, record, type, URI.create(new String(uriBytes, StandardCharsets.UTF_8)));
+                offset += RECORD_HEADER + length;
+            }
+
+        } catch(EOFException e) {
+
+            //the file was shorter than its records claimed, treat it like a torn record
+        }
+
+        return offset;
+    }
+
+    private Location append(ByteBuffer record) throws IOException {
+
+        int length = record.remaining();
+
+        if(this.active.size > 0 && this.active.size + length > this.maxSegmentBytes) {
+
+            roll();
+        }
+
+        Segment segment = this.active;
+        long offset = segment.size;
+        ByteBuffer toWrite = record.duplicate();
+
+        while(toWrite.hasRemaining()) {
+
+            segment.channel.write(toWrite, offset + (length - toWrite.remaining()));
+        }
+
+        segment.size += length;
+        this.syncStatistics.recordWrite();
+
+        if(this.durability == Durability.PER_WRITE) {
+
+            segment.channel.force(false);
+            this.syncStatistics.recordSync(1);
+
+        }else if(this.durability == Durability.GROUP_COMMIT) {
+
+            this.unsynced.merge(segment, 1L, Long::sum);
+        }
+
+        return new Location(segment, offset, length);
+    }
+
+    private void roll() throws IOException {
+
+        int id = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        File file = new File(this.directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, file);
+        this.segments.put(id, segment);
+        this.active = segment;
+
+        if(this.durability != Durability.NONE) {
+
+            GroupCommitter.syncDirectory(this.directory.toPath());
+        }
+    }
+
+    //one fsync per segment written since the last call. The lock is not held while syncing, so appends can go on meanwhile
+    private void syncUnsynced() throws IOException {
+
+        Map<Segment, Long> toSync;
+
+        synchronized(this) {
+
+            if(this.unsynced.isEmpty()) {
+
+                return;
+            }
+
+            toSync = new HashMap<>(this.unsynced);
+            this.unsynced.clear();
+        }
+
+        for(Map.Entry<Segment, Long> entry : toSync.entrySet()) {
+
+            try {
+
+                entry.getKey().channel.force(false);
+                this.syncStatistics.recordSync(entry.getValue());
+
+            } catch(ClosedChannelException e) {
+
+                //compacted away, its live records were synced before it was dropped
+            }
+        }
+    }
+
+    private void kill(Location old) {
+
+        if(old != null) {
+
+            old.segment.liveBytes -= old.length;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+
+        if(this.closed) {
+
+            throw new IOException("persistence manager is closed");
+        }
+    }
+
+    private static ByteBuffer record(byte type, int version, URI uri, byte[] payload) {
+
+        byte[] uriBytes = uri.toString().getBytes(StandardCharsets.UTF_8);
+        int length = MIN_RECORD_BODY + uriBytes.length + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+
+        record.putInt(length).putInt(0);
+        record.put(type).putShort((short) version).putInt(uriBytes.length).put(uriBytes).put(payload);
+        record.putInt(4, checksum(record.array(), RECORD_HEADER, length));
+        record.flip();
+
+        return record;
+    }
+
+    private static void checkRecord(ByteBuffer record) throws IOException {
+
+        int length = record.getInt(0);
+
+        if(length != record.limit() - RECORD_HEADER || checksum(record.array(), RECORD_HEADER, length) != record.getInt(4)) {
+
+            throw new IOException("corrupt segment record");
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while(buffer.hasRemaining()) {
+
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+
+                throw new EOFException("segment ended in the middle of a record");
+            }
+        }
+    }
+}
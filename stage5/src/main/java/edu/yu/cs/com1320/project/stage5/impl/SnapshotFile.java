@@ -0,0 +1,160 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The framing shared by the snapshot files of a document store: MAGIC, a short VERSION, the contents, then a CRC32 of everything
+ * before it. Files are written and read front to back through large buffers, and a new file is moved over the old one only once
+ * it is complete.
+ */
+class SnapshotFile {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    interface Writer {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface Reader<T> {
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private SnapshotFile() {
+
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    static long write(File file, int magic, short version, Writer writer) throws IOException {
+
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        Path tmp = new File(file.getPath() + ".tmp").toPath();
+        CRC32 crc = new CRC32();
+        long length;
+
+        try(FileOutputStream fileOut = new FileOutputStream(tmp.toFile())) {
+
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_BYTES), crc));
+            out.writeInt(magic);
+            out.writeShort(version);
+            writer.write(out);
+            out.flush();
+
+            //the checksum covers everything before it, so it is written around the checked stream
+            new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+            fileOut.getChannel().force(true);
+            length = fileOut.getChannel().size();
+        }
+
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        GroupCommitter.syncDirectory(file.getAbsoluteFile().getParentFile().toPath());
+        return length;
+    }
+
+    /**
+     * read the contents, then check them against the checksum. Readers should only stage what they read, since it is not known to
+     * be intact until they return
+     * @throws IOException if the file is not of the given kind, is cut off or fails its checksum
+     */
+    static <T> T read(File file, int magic, short version, Reader<T> reader) throws IOException {
+
+        CRC32 crc = new CRC32();
+
+        try(DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES), crc))) {
+
+            if(in.readInt() != magic || in.readShort() != version) {
+
+                throw new IOException(file + " is not a snapshot of this kind or version");
+            }
+
+            T contents;
+
+            try {
+
+                contents = reader.read(in);
+
+            } catch(IllegalArgumentException | IndexOutOfBoundsException e) {
+
+                throw new IOException(file + " is corrupt", e);
+            }
+
+            int expected = (int) crc.getValue();
+
+            if(in.readInt() != expected || in.read() != -1) {
+
+                throw new IOException(file + " fails its checksum");
+            }
+
+            return contents;
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+
+        while((value & ~0x7F) != 0) {
+
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+
+        int value = 0;
+
+        for(int shift = 0; shift < 32; shift += 7) {
+
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0) {
+
+                return value;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+
+    static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+
+        int length = readVarInt(in);
+
+        if(length < 0) {
+
+            throw new IOException("negative length");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInput in) throws IOException {
+
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+}
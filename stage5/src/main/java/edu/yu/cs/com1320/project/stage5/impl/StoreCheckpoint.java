@@ -0,0 +1,102 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.impl.TrieImpl;
+import edu.yu.cs.com1320.project.stage5.Document;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Everything a document store holds in memory, written front to back into one file framed by {@link SnapshotFile} so a new
+ * store can load it with a few large sequential reads instead of one read per document.
+ * <pre>
+ * varint number of documents, then each document (length, then the document in the binary format), in eviction order: the
+ *        document that would be moved to disk first comes first
+ * the word index, as an {@link IndexSnapshot}
+ * </pre>
+ */
+class StoreCheckpoint {
+
+    static final String NAME = "store.checkpoint";
+    static final int MAGIC = 0xD0C5C4E7;
+    static final short VERSION = 1;
+
+    private static final BinaryDocumentCodec CODEC = new BinaryDocumentCodec();
+
+    private final List<DocumentImpl> documents;
+    private IndexSnapshot index;
+
+    private StoreCheckpoint() {
+
+        this.documents = new ArrayList<>();
+    }
+
+    /**
+     * @param file
+     * @param documents the documents in memory, least recently used first
+     * @param trie the word index of every document, in memory or not
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    static long write(File file, List<Document> documents, TrieImpl<URI> trie) throws IOException {
+
+        return SnapshotFile.write(file, MAGIC, VERSION, out -> {
+
+            SnapshotFile.writeVarInt(out, documents.size());
+
+            for(Document doc : documents) {
+
+                SnapshotFile.writeBytes(out, CODEC.encode(doc));
+            }
+
+            IndexSnapshot.writeTo(out, trie);
+        });
+    }
+
+    /**
+     * @param file
+     * @param onDisk whether a uri has a document on disk. Words of uris that have neither a document in the checkpoint nor one on
+     *               disk are left out
+     * @return the checkpoint, which is only returned once it is known to be intact
+     * @throws IOException if the checkpoint is corrupt
+     */
+    static StoreCheckpoint read(File file, Predicate<URI> onDisk) throws IOException {
+
+        return SnapshotFile.read(file, MAGIC, VERSION, in -> readFrom(in, onDisk));
+    }
+
+    private static StoreCheckpoint readFrom(DataInputStream in, Predicate<URI> onDisk) throws IOException {
+
+        StoreCheckpoint checkpoint = new StoreCheckpoint();
+        Set<URI> inMemory = new HashSet<>();
+        int count = SnapshotFile.readVarInt(in);
+
+        for(int i = 0; i < count; i++) {
+
+            DocumentImpl doc = (DocumentImpl) CODEC.decode(ByteBuffer.wrap(SnapshotFile.readBytes(in)));
+            checkpoint.documents.add(doc);
+            inMemory.add(doc.getKey());
+        }
+
+        checkpoint.index = IndexSnapshot.readFrom(in, uri -> inMemory.contains(uri) || onDisk.test(uri));
+        return checkpoint;
+    }
+
+    /**
+     * @return the documents that were in memory, least recently used first
+     */
+    List<DocumentImpl> getDocuments() {
+
+        return this.documents;
+    }
+
+    void addIndexTo(TrieImpl<URI> trie) {
+
+        this.index.addTo(trie);
+    }
+}
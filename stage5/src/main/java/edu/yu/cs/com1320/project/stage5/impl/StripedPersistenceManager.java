@@ -0,0 +1,298 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.PersistenceManager;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spreads values over several persistence managers, e.g. one per disk, by a consistent hash of their keys. Each stripe owns
+ * points on a hash ring in proportion to its weight, and a key goes to the stripe owning the first point at or after the hash of
+ * the key. Adding a stripe only moves the keys that land on its points. Stripes are known by their position in the list, so
+ * they must be given in the same order every time, and keys a change of stripes or weights moves are no longer found where they
+ * were written.
+ *
+ * Nothing is shared between stripes, so calls for keys on different stripes run in parallel. Reading or listing several keys at
+ * once reads from every stripe at the same time, each on a thread of its own.
+ */
+public class StripedPersistenceManager<Key, Value> implements PersistenceManager<Key, Value>, Closeable, Flushable {
+
+    //points each unit of weight puts on the ring. More points spread keys more evenly between stripes
+    private static final int POINTS_PER_WEIGHT = 128;
+
+    private final List<PersistenceManager<Key, Value>> stripes;
+    private final TreeMap<Long, Integer> ring;
+    private final ExecutorService[] readers;
+
+    /**
+     * @param stripes the persistence managers to spread values over, each giving an equal share
+     */
+    public StripedPersistenceManager(List<? extends PersistenceManager<Key, Value>> stripes) {
+
+        this(stripes, null);
+    }
+
+    /**
+     * @param stripes the persistence managers to spread values over. Each must allow calls for different keys from several threads
+     *                at once
+     * @param weights the share of values each stripe gets relative to the others, or null for equal shares
+     */
+    public StripedPersistenceManager(List<? extends PersistenceManager<Key, Value>> stripes, int[] weights) {
+
+        if(stripes == null || stripes.isEmpty() || stripes.contains(null) || (weights != null && weights.length != stripes.size())) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.stripes = new ArrayList<>(stripes);
+        this.ring = new TreeMap<>();
+        this.readers = new ExecutorService[stripes.size()];
+
+        for(int i = 0; i < stripes.size(); i++) {
+
+            int weight = weights != null ? weights[i] : 1;
+
+            if(weight <= 0) {
+
+                throw new IllegalArgumentException("weights must be positive");
+            }
+
+            for(int point = 0; point < weight * POINTS_PER_WEIGHT; point++) {
+
+                //a point already taken stays with the stripe that took it, which is the same stripe every time
+                this.ring.putIfAbsent(hash("stripe-" + i + "-" + point), i);
+            }
+
+            String name = "stripe-reader-" + i;
+            this.readers[i] = Executors.newSingleThreadExecutor(runnable -> {
+
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public void serialize(Key key, Value val) throws IOException {
+
+        stripeFor(key).serialize(key, val);
+    }
+
+    @Override
+    public Value deserialize(Key key) throws IOException {
+
+        return stripeFor(key).deserialize(key);
+    }
+
+    @Override
+    public long transferTo(Key key, WritableByteChannel target) throws IOException {
+
+        return stripeFor(key).transferTo(key, target);
+    }
+
+    @Override
+    public boolean delete(Key key) throws IOException {
+
+        return stripeFor(key).delete(key);
+    }
+
+    /**
+     * @return the keys every stripe lists, read from all stripes at once
+     * @throws IOException
+     */
+    @Override
+    public Set<Key> getPersistedKeys() throws IOException {
+
+        List<Future<Set<Key>>> futures = new ArrayList<>();
+
+        for(int i = 0; i < this.stripes.size(); i++) {
+
+            PersistenceManager<Key, Value> stripe = this.stripes.get(i);
+            futures.add(this.readers[i].submit(stripe::getPersistedKeys));
+        }
+
+        Set<Key> keys = new HashSet<>();
+
+        for(Future<Set<Key>> future : futures) {
+
+            keys.addAll(await(future));
+        }
+
+        return keys;
+    }
+
+    /**
+     * read the keys of each stripe on its own thread, so the stripes are read at the same time
+     * @param keys
+     * @return the value of every key
+     * @throws IOException if any key cannot be read
+     */
+    @Override
+    public Map<Key, Value> deserializeAll(Collection<Key> keys) throws IOException {
+
+        Map<Integer, List<Key>> keysByStripe = new HashMap<>();
+
+        for(Key key : keys) {
+
+            keysByStripe.computeIfAbsent(stripeIndexFor(key), stripe -> new ArrayList<>()).add(key);
+        }
+
+        List<Future<Map<Key, Value>>> futures = new ArrayList<>();
+
+        for(Map.Entry<Integer, List<Key>> entry : keysByStripe.entrySet()) {
+
+            PersistenceManager<Key, Value> stripe = this.stripes.get(entry.getKey());
+            futures.add(this.readers[entry.getKey()].submit(() -> stripe.deserializeAll(entry.getValue())));
+        }
+
+        Map<Key, Value> values = new HashMap<>();
+
+        for(Future<Map<Key, Value>> future : futures) {
+
+            values.putAll(await(future));
+        }
+
+        return values;
+    }
+
+    /**
+     * @param key
+     * @return the position in the list of stripes of the stripe the key goes to
+     */
+    public int stripeIndexFor(Key key) {
+
+        if(key == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        Map.Entry<Long, Integer> point = this.ring.ceilingEntry(hash(key.toString()));
+        return point != null ? point.getValue() : this.ring.firstEntry().getValue();
+    }
+
+    /**
+     * flush every stripe that can be flushed, so whatever they hold in memory is written
+     * @throws IOException the first failure to flush a stripe, after trying to flush all of them
+     */
+    @Override
+    public void flush() throws IOException {
+
+        IOException failure = null;
+
+        for(PersistenceManager<Key, Value> stripe : this.stripes) {
+
+            if(stripe instanceof Flushable) {
+
+                try {
+
+                    ((Flushable) stripe).flush();
+
+                } catch(IOException e) {
+
+                    if(failure == null) {
+
+                        failure = e;
+                    }
+                }
+            }
+        }
+
+        if(failure != null) {
+
+            throw failure;
+        }
+    }
+
+    /**
+     * stop the reader threads and close every stripe that can be closed
+     * @throws IOException the first failure to close a stripe, after trying to close all of them
+     */
+    @Override
+    public void close() throws IOException {
+
+        IOException failure = null;
+
+        for(int i = 0; i < this.stripes.size(); i++) {
+
+            this.readers[i].shutdown();
+
+            if(this.stripes.get(i) instanceof Closeable) {
+
+                try {
+
+                    ((Closeable) this.stripes.get(i)).close();
+
+                } catch(IOException e) {
+
+                    if(failure == null) {
+
+                        failure = e;
+                    }
+                }
+            }
+        }
+
+        if(failure != null) {
+
+            throw failure;
+        }
+    }
+
+    private PersistenceManager<Key, Value> stripeFor(Key key) {
+
+        return this.stripes.get(stripeIndexFor(key));
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+
+        try {
+
+            return future.get();
+
+        } catch(ExecutionException e) {
+
+            if(e.getCause() instanceof IOException) {
+
+                throw (IOException) e.getCause();
+            }
+
+            if(e.getCause() instanceof UncheckedIOException) {
+
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+
+            throw new IOException(e.getCause());
+
+        } catch(InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading from the stripes", e);
+        }
+    }
+
+    //64-bit FNV-1a, then the finalizer of MurmurHash3 so nearby strings land far apart on the ring
+    private static long hash(String s) {
+
+        long h = 0xcbf29ce484222325L;
+
+        for(byte b : s.getBytes(StandardCharsets.UTF_8)) {
+
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e185a873bL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
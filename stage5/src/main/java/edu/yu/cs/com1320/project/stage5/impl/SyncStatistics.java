@@ -0,0 +1,73 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+/**
+ * Counts the writes of a persistence manager and the fsyncs that made them durable.
+ */
+public class SyncStatistics {
+
+    private long writeCount;
+    private long syncCount;
+    private long syncedWriteCount;
+    private long maxWritesPerSync;
+
+    synchronized void recordWrite() {
+
+        this.writeCount++;
+    }
+
+    /**
+     * @param writesCovered the number of writes made durable by this fsync
+     */
+    synchronized void recordSync(long writesCovered) {
+
+        this.syncCount++;
+        this.syncedWriteCount += writesCovered;
+        this.maxWritesPerSync = Math.max(this.maxWritesPerSync, writesCovered);
+    }
+
+    /**
+     * @return the number of writes
+     */
+    public synchronized long getWriteCount() {
+
+        return this.writeCount;
+    }
+
+    /**
+     * @return the number of fsyncs
+     */
+    public synchronized long getSyncCount() {
+
+        return this.syncCount;
+    }
+
+    /**
+     * @return the number of writes that were covered by an fsync
+     */
+    public synchronized long getSyncedWriteCount() {
+
+        return this.syncedWriteCount;
+    }
+
+    /**
+     * @return the most writes a single fsync has covered
+     */
+    public synchronized long getMaxWritesPerSync() {
+
+        return this.maxWritesPerSync;
+    }
+
+    /**
+     * @return how many writes an fsync covered on average, or 0 if there has been no fsync
+     */
+    public synchronized double getWritesPerSync() {
+
+        return this.syncCount == 0 ? 0 : (double) this.syncedWriteCount / this.syncCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format("%d writes, %d fsyncs, %.1f writes per fsync (max %d)", this.writeCount, this.syncCount, getWritesPerSync(), this.maxWritesPerSync);
+    }
+}
@@ -0,0 +1,283 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The puts and deletes made to a document store since its last checkpoint, appended in the order they happened so a store
+ * opened later can replay them. Each entry holds the state a uri was left in, never the operation that left it there, so
+ * replaying an entry twice or on top of a newer document on disk still ends in the right state. Each entry is:
+ * <pre>
+ * int   length of op and payload
+ * int   CRC32 of op and payload
+ * byte  op (1 = put, 2 = delete)
+ * payload: the document in the binary format for a put, the uri (UTF-8) for a delete
+ * </pre>
+ * Entries written together, such as the deletes of a deleteAll, go out in one write and are made durable by one fsync.
+ * Replay stops at the first entry that is cut off or fails its checksum and cuts the log back to there, as {@link Manifest} does.
+ */
+class WriteAheadLog implements Closeable {
+
+    static final String NAME = "store.wal";
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int ENTRY_HEADER_LENGTH = 8;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final BinaryDocumentCodec CODEC = new BinaryDocumentCodec();
+
+    //applies the entries of a log being replayed
+    interface Replayer {
+
+        void put(DocumentImpl doc);
+
+        void delete(URI uri);
+    }
+
+    private final Path path;
+    private final FileChannel log;
+    private final SyncStatistics statistics;
+    private Durability durability;
+    private GroupCommitter committer;
+    private long unsyncedWrites;
+
+    /**
+     * open the log in the given directory, creating it if there is none. Nothing is appended until it has been replayed
+     * @param directory
+     * @throws IOException
+     */
+    WriteAheadLog(File directory) throws IOException {
+
+        this.path = new File(directory, NAME).toPath();
+        Files.createDirectories(directory.toPath());
+        this.log = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.statistics = new SyncStatistics();
+        this.durability = Durability.NONE;
+    }
+
+    /**
+     * apply every intact entry, in the order they were appended, and leave the log positioned after the last of them
+     * @param replayer
+     * @return the number of entries replayed
+     * @throws IOException
+     */
+    synchronized long replay(Replayer replayer) throws IOException {
+
+        long valid = 0;
+        long count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.path.toFile()), BUFFER_BYTES));
+
+        try {
+
+            while(true) {
+
+                int length;
+                int checksum;
+                byte[] entry;
+
+                try {
+
+                    length = in.readInt();
+                    checksum = in.readInt();
+
+                    if(length < 1 || length > this.log.size() - valid - ENTRY_HEADER_LENGTH) {
+
+                        break;
+                    }
+
+                    entry = new byte[length];
+                    in.readFully(entry);
+
+                } catch(EOFException e) {
+
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(entry);
+
+                if((int) crc.getValue() != checksum) {
+
+                    break;
+                }
+
+                apply(entry, replayer);
+                valid += ENTRY_HEADER_LENGTH + length;
+                count++;
+            }
+
+        } finally {
+
+            in.close();
+        }
+
+        this.log.truncate(valid);
+        this.log.position(valid);
+        return count;
+    }
+
+    /**
+     * @param durability when appended entries are forced to disk
+     * @param groupCommitMillis the length of a commit window, only used for Durability.GROUP_COMMIT
+     * @throws IOException
+     */
+    void setDurability(Durability durability, long groupCommitMillis) throws IOException {
+
+        GroupCommitter old;
+
+        synchronized(this) {
+
+            old = this.committer;
+            this.committer = null;
+            this.durability = durability;
+
+            if(durability == Durability.GROUP_COMMIT) {
+
+                this.committer = new GroupCommitter("wal-group-commit", groupCommitMillis, this::syncUnsynced);
+            }
+        }
+
+        if(old != null) {
+
+            old.close();
+        }
+    }
+
+    SyncStatistics getStatistics() {
+
+        return this.statistics;
+    }
+
+    /**
+     * append entries in one write, and force them to disk before returning if every write must be durable
+     * @param entries made by {@link #put(Document)} and {@link #delete(URI)}
+     * @throws IOException
+     */
+    synchronized void append(List<ByteBuffer> entries) throws IOException {
+
+        if(entries.isEmpty()) {
+
+            return;
+        }
+
+        ByteBuffer[] buffers = entries.toArray(new ByteBuffer[0]);
+
+        while(buffers[buffers.length - 1].hasRemaining()) {
+
+            this.log.write(buffers);
+        }
+
+        for(int i = 0; i < buffers.length; i++) {
+
+            this.statistics.recordWrite();
+        }
+
+        if(this.durability == Durability.PER_WRITE) {
+
+            this.log.force(false);
+            this.statistics.recordSync(buffers.length);
+
+        }else if(this.durability == Durability.GROUP_COMMIT) {
+
+            this.unsyncedWrites += buffers.length;
+        }
+    }
+
+    /**
+     * drop every entry, once a checkpoint holds everything they did
+     * @throws IOException
+     */
+    synchronized void truncate() throws IOException {
+
+        this.log.truncate(0);
+        this.log.position(0);
+        this.log.force(false);
+        this.unsyncedWrites = 0;
+    }
+
+    Path getPath() {
+
+        return this.path;
+    }
+
+    /**
+     * stop group commit, after syncing whatever the current window has not synced yet, and close the log
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        setDurability(Durability.NONE, 0);
+
+        synchronized(this) {
+
+            this.log.close();
+        }
+    }
+
+    /**
+     * @param doc
+     * @return an entry recording that the uri of the document holds the document
+     */
+    static ByteBuffer put(Document doc) {
+
+        return entry(PUT, CODEC.encode(doc));
+    }
+
+    /**
+     * @param uri
+     * @return an entry recording that the uri holds no document
+     */
+    static ByteBuffer delete(URI uri) {
+
+        return entry(DELETE, uri.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void syncUnsynced() throws IOException {
+
+        if(this.unsyncedWrites > 0 && this.log.isOpen()) {
+
+            this.log.force(false);
+            this.statistics.recordSync(this.unsyncedWrites);
+            this.unsyncedWrites = 0;
+        }
+    }
+
+    private static void apply(byte[] entry, Replayer replayer) throws IOException {
+
+        if(entry[0] == PUT) {
+
+            replayer.put((DocumentImpl) CODEC.decode(ByteBuffer.wrap(entry, 1, entry.length - 1)));
+
+        }else if(entry[0] == DELETE) {
+
+            replayer.delete(URI.create(new String(entry, 1, entry.length - 1, StandardCharsets.UTF_8)));
+
+        }else{
+
+            throw new IOException("unknown log entry " + entry[0]);
+        }
+    }
+
+    private static ByteBuffer entry(byte op, byte[] payload) {
+
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + 1 + payload.length);
+        entry.putInt(1 + payload.length).putInt(0).put(op).put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), ENTRY_HEADER_LENGTH, 1 + payload.length);
+        entry.putInt(4, (int) crc.getValue());
+        entry.flip();
+        return entry;
+    }
+}
@@ -0,0 +1,375 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.PersistenceManager;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps another persistence manager so serialize only hands the value to a bounded queue, and background writer threads
+ * do the actual writes. Until a value has been written it is served to deserialize from the pending buffer. When the
+ * queue is full, serialize blocks until a writer catches up instead of dropping the value.
+ */
+public class WriteBehindPersistenceManager<Key, Value> implements PersistenceManager<Key, Value>, Closeable, Flushable {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final long RETRY_MILLIS = 100;
+
+    private final PersistenceManager<Key, Value> delegate;
+    //values waiting to be written. A key is in the queue at most once, no matter how often it is serialized before the write
+    private final Map<Key, Value> pending;
+    private final BlockingQueue<Key> queue;
+    private final Thread[] writers;
+    //a writer holds the lock of a key for the whole write, so a delete or a newer value can never be overtaken by an older write
+    private final Object[] locks;
+    private final Object flushed;
+    private volatile boolean closed;
+
+    private final AtomicLong writeCount;
+    private final AtomicLong stallCount;
+    private final AtomicLong failureCount;
+
+    /**
+     * @param delegate the persistence manager that does the writing. It must allow calls for different keys from several threads at once
+     * @param queueCapacity the most values that can wait to be written before serialize blocks
+     * @param writerThreads the number of background writers
+     */
+    public WriteBehindPersistenceManager(PersistenceManager<Key, Value> delegate, int queueCapacity, int writerThreads) {
+
+        if(delegate == null || queueCapacity <= 0 || writerThreads <= 0) {
+
+            throw new IllegalArgumentException();
+        }
+
+        this.delegate = delegate;
+        this.pending = new ConcurrentHashMap<>();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.locks = new Object[LOCK_STRIPES];
+        this.flushed = new Object();
+        this.writeCount = new AtomicLong();
+        this.stallCount = new AtomicLong();
+        this.failureCount = new AtomicLong();
+
+        for(int i = 0; i < this.locks.length; i++) {
+
+            this.locks[i] = new Object();
+        }
+
+        this.writers = new Thread[writerThreads];
+
+        for(int i = 0; i < writerThreads; i++) {
+
+            this.writers[i] = new Thread(this::drain, "write-behind-" + i);
+            this.writers[i].setDaemon(true);
+            this.writers[i].start();
+        }
+    }
+
+    @Override
+    public void serialize(Key key, Value val) throws IOException {
+
+        if(key == null || val == null) {
+
+            throw new IllegalArgumentException();
+        }
+
+        ensureOpen();
+
+        synchronized(lockFor(key)) {
+
+            if(this.pending.put(key, val) != null) {
+
+                //still queued from an earlier call, the writer will pick up the newer value
+                return;
+            }
+        }
+
+        try {
+
+            if(!this.queue.offer(key)) {
+
+                this.stallCount.incrementAndGet();
+                this.queue.put(key);
+            }
+
+        } catch(InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the write queue", e);
+        }
+    }
+
+    @Override
+    public Value deserialize(Key key) throws IOException {
+
+        synchronized(lockFor(key)) {
+
+            Value val = this.pending.get(key);
+            return val != null ? val : this.delegate.deserialize(key);
+        }
+    }
+
+    /**
+     * @return -1 for a value still waiting to be written, which is in memory anyway, otherwise what the wrapped persistence manager sends
+     */
+    @Override
+    public long transferTo(Key key, WritableByteChannel target) throws IOException {
+
+        //a value stays pending until it is on disk, so once it is not pending the wrapped persistence manager has it
+        return this.pending.containsKey(key) ? -1 : this.delegate.transferTo(key, target);
+    }
+
+    @Override
+    public boolean delete(Key key) throws IOException {
+
+        synchronized(lockFor(key)) {
+
+            boolean wasPending = this.pending.remove(key) != null;
+            boolean wasWritten = this.delegate.delete(key);
+            signalIfFlushed();
+            return wasPending || wasWritten;
+        }
+    }
+
+    /**
+     * @return the keys the wrapped persistence manager lists, and the keys waiting to be written
+     * @throws IOException
+     */
+    @Override
+    public Set<Key> getPersistedKeys() throws IOException {
+
+        Set<Key> keys = new HashSet<>(this.delegate.getPersistedKeys());
+        keys.addAll(this.pending.keySet());
+        return keys;
+    }
+
+    /**
+     * @return the pending values of the keys that have one, and the rest read by the wrapped persistence manager in one call
+     * @throws IOException
+     */
+    @Override
+    public Map<Key, Value> deserializeAll(Collection<Key> keys) throws IOException {
+
+        Map<Key, Value> values = new HashMap<>();
+        List<Key> written = new ArrayList<>();
+
+        for(Key key : keys) {
+
+            Value val = this.pending.get(key);
+
+            if(val != null) {
+
+                values.put(key, val);
+
+            }else{
+
+                written.add(key);
+            }
+        }
+
+        //a key written in between is read from the wrapped persistence manager, which has it by then
+        values.putAll(this.delegate.deserializeAll(written));
+        return values;
+    }
+
+    /**
+     * block until every value serialized so far has been written, then flush the wrapped persistence manager if it can be flushed
+     * @throws InterruptedIOException if the thread is interrupted while waiting. The interrupt status is kept
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+
+        synchronized(this.flushed) {
+
+            while(!this.pending.isEmpty()) {
+
+                try {
+
+                    this.flushed.wait(RETRY_MILLIS);
+
+                } catch(InterruptedException e) {
+
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for pending writes");
+                }
+            }
+        }
+
+        if(this.delegate instanceof Flushable) {
+
+            ((Flushable) this.delegate).flush();
+        }
+    }
+
+    /**
+     * @return the number of values waiting to be written
+     */
+    public int getPendingCount() {
+
+        return this.pending.size();
+    }
+
+    /**
+     * @return the number of values written by the background writers
+     */
+    public long getWriteCount() {
+
+        return this.writeCount.get();
+    }
+
+    /**
+     * @return how many times serialize had to wait because the queue was full
+     */
+    public long getStallCount() {
+
+        return this.stallCount.get();
+    }
+
+    /**
+     * @return how many writes failed and had to be retried
+     */
+    public long getFailureCount() {
+
+        return this.failureCount.get();
+    }
+
+    /**
+     * write everything still pending, stop the writers and close the wrapped persistence manager if it can be closed
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        if(this.closed) {
+
+            return;
+        }
+
+        try {
+
+            flush();
+
+        } catch(InterruptedIOException e) {
+
+            //the interrupt status is set again, and whatever is still pending is lost
+        }
+
+        this.closed = true;
+
+        for(Thread writer : this.writers) {
+
+            writer.interrupt();
+        }
+
+        for(Thread writer : this.writers) {
+
+            try {
+
+                writer.join();
+
+            } catch(InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(this.delegate instanceof Closeable) {
+
+            ((Closeable) this.delegate).close();
+        }
+    }
+
+    private void drain() {
+
+        while(!this.closed) {
+
+            Key key;
+
+            try {
+
+                key = this.queue.take();
+
+            } catch(InterruptedException e) {
+
+                return;
+            }
+
+            while(!write(key)) {
+
+                //the value stays pending, and readable, until a retry gets it to disk
+                try {
+
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+
+                } catch(InterruptedException e) {
+
+                    return;
+                }
+            }
+        }
+    }
+
+    //write the pending value of the key, if it still has one. Returns false if the write failed
+    private boolean write(Key key) {
+
+        synchronized(lockFor(key)) {
+
+            Value val = this.pending.get(key);
+
+            if(val == null) {
+
+                return true;
+            }
+
+            try {
+
+                this.delegate.serialize(key, val);
+
+            } catch(IOException | RuntimeException e) {
+
+                this.failureCount.incrementAndGet();
+                e.printStackTrace();
+                return false;
+            }
+
+            this.pending.remove(key, val);
+            this.writeCount.incrementAndGet();
+            signalIfFlushed();
+            return true;
+        }
+    }
+
+    private void signalIfFlushed() {
+
+        if(this.pending.isEmpty()) {
+
+            synchronized(this.flushed) {
+
+                this.flushed.notifyAll();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+
+        if(this.closed) {
+
+            throw new IOException("persistence manager is closed");
+        }
+    }
+
+    private Object lockFor(Key key) {
+
+        return this.locks[(key.hashCode() & 0x7FFFFFFF) % this.locks.length];
+    }
+}
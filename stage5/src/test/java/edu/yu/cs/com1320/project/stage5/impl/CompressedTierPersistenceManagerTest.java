@@ -0,0 +1,75 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.DocumentStore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressedTierPersistenceManagerTest {
+
+    private static String textOf(int i) {
+
+        StringBuilder txt = new StringBuilder();
+
+        for(int j = 0; j < 200; j++) {
+
+            txt.append("the quick brown fox jumps over the lazy dog ");
+        }
+
+        return txt.append("doc").append(i).toString();
+    }
+
+    @Test
+    public void recentVictimsAreReadFromMemoryAndDemotedWhenFull() throws Exception {
+
+        File dir = Files.createTempDirectory("tier").toFile();
+        DocumentPersistenceManager disk = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        CompressedTierPersistenceManager sizing = new CompressedTierPersistenceManager(disk, Long.MAX_VALUE);
+        sizing.serialize(URI.create("http://tier/doc0"), new DocumentImpl(URI.create("http://tier/doc0"), textOf(0), null));
+        long heldLength = sizing.getHeldBytes();
+        assertTrue(heldLength < textOf(0).length() / 10);
+
+        //room for two documents
+        CompressedTierPersistenceManager tier = new CompressedTierPersistenceManager(disk, heldLength * 5 / 2);
+        DocumentStoreImpl store = new DocumentStoreImpl(tier);
+        store.setMaxDocumentCount(1);
+        URI[] uris = new URI[4];
+
+        for(int i = 0; i < uris.length; i++) {
+
+            uris[i] = URI.create("http://tier/doc" + i);
+            store.put(new ByteArrayInputStream(textOf(i).getBytes(StandardCharsets.UTF_8)), uris[i], DocumentStore.DocumentFormat.TXT);
+        }
+
+        //doc0 to doc2 were moved out of memory, and only doc0 did not fit in the tier
+        assertEquals(2, tier.getHeldCount());
+        assertEquals(1, tier.getDemotionCount());
+        assertEquals(Set.of(uris[0]), disk.getPersistedKeys());
+
+        assertEquals(textOf(1), store.get(uris[1]).getDocumentTxt());
+        assertEquals(1, tier.getHitCount());
+        assertEquals(0, tier.getMissCount());
+        assertEquals(textOf(0), store.get(uris[0]).getDocumentTxt());
+        assertEquals(1, tier.getMissCount());
+        assertTrue(tier.getHeldBytes() <= tier.getCapacity());
+
+        //close writes whatever is only in memory, so all of it is there without the tier
+        store.close();
+        Set<URI> written = new HashSet<>(disk.getPersistedKeys());
+        DocumentStoreImpl reopened = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()));
+
+        for(int i = 0; i < uris.length; i++) {
+
+            assertTrue(written.contains(uris[i]));
+            assertEquals(textOf(i), reopened.get(uris[i]).getDocumentTxt());
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.io.*;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import static edu.yu.cs.com1320.project.stage5.DocumentStore.DocumentFormat.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -178,6 +179,506 @@ public class DocumentStoreTest {
         assertNotNull(store.get(uri3));
     }
 
+    //Test that ranking a search over evicted documents does not read their bodies
+    @Test
+    public void searchEvictedDocsReadsOnlyHeaders() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("lazy-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        pm.setReadMode(DocumentPersistenceManager.ReadMode.LAZY);
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        uris();
+
+        store.put(new ByteArrayInputStream("is it is".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("is is is it is".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.put(new ByteArrayInputStream("it is".getBytes(StandardCharsets.UTF_8)), this.uri3, TXT);
+        store.setMaxDocumentCount(1);
+        store.setMaxDocumentCount(3);
+
+        List<Document> results = store.search("is");
+        assertEquals(this.uri2, results.get(0).getKey());
+        assertEquals(this.uri1, results.get(1).getKey());
+        assertEquals(this.uri3, results.get(2).getKey());
+        assertFalse(((DocumentImpl) results.get(0)).isBodyLoaded());
+        assertFalse(((DocumentImpl) results.get(1)).isBodyLoaded());
+        assertEquals("is is is it is", results.get(0).getDocumentTxt());
+    }
+
+    //Test that a store opened on the directory of another finds the documents that were moved to disk
+    @Test
+    public void reopenFindsEvictedDocs() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("reopen-store").toFile();
+        DocumentStoreImpl store = new DocumentStoreImpl(dir);
+        uris();
+
+        store.put(new ByteArrayInputStream("first document".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("second document".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.put(new ByteArrayInputStream("third document".getBytes(StandardCharsets.UTF_8)), this.uri3, TXT);
+        store.setMaxDocumentCount(1);
+
+        DocumentStoreImpl reopened = new DocumentStoreImpl(dir);
+        assertEquals("first document", reopened.get(this.uri1).getDocumentTxt());
+        assertEquals("second document", reopened.get(this.uri2).getDocumentTxt());
+        assertNull(reopened.get(this.uri3));
+    }
+
+    //Test that a reopened store can search evicted documents through the index snapshot, without reading them
+    @Test
+    public void reopenSearchesThroughIndexSnapshot() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("index-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm, dir);
+        uris();
+
+        store.put(new ByteArrayInputStream("sea sea shells".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("sea seals".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.put(new ByteArrayInputStream("never evicted sea".getBytes(StandardCharsets.UTF_8)), this.uri3, TXT);
+        store.setMaxDocumentCount(1);
+        store.writeIndexSnapshot();
+
+        DocumentPersistenceManager reopenedPm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        reopenedPm.setReadMode(DocumentPersistenceManager.ReadMode.LAZY);
+        DocumentStoreImpl reopened = new DocumentStoreImpl(reopenedPm, dir);
+
+        //the document that was only in memory is gone, so its words are dropped
+        List<Document> results = reopened.search("sea");
+        assertEquals(2, results.size());
+        assertEquals(this.uri1, results.get(0).getKey());
+        assertEquals(this.uri2, results.get(1).getKey());
+        assertFalse(((DocumentImpl) results.get(0)).isBodyLoaded());
+        assertEquals(this.uri2, reopened.search("seals").get(0).getKey());
+    }
+
+    //Test that closing a store checkpoints the documents in memory, their eviction order and the index for the next store opened there
+    @Test
+    public void closeCheckpointsAndReopenRestores() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("checkpoint-store").toFile();
+        DocumentStoreImpl store = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()), dir);
+        uris();
+
+        store.put(new ByteArrayInputStream("sea shells".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("sea seals".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.put(new ByteArrayInputStream("in memory sea".getBytes(StandardCharsets.UTF_8)), this.uri3, TXT);
+        store.put(new ByteArrayInputStream("also in memory".getBytes(StandardCharsets.UTF_8)), this.uri4, TXT);
+        store.setMaxDocumentCount(2);
+        store.close();
+        assertEquals(2, store.getCheckpointStatistics().getCheckpointDocuments());
+        assertTrue(new File(dir, StoreCheckpoint.NAME).exists());
+
+        DocumentPersistenceManager reopenedPm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl reopened = new DocumentStoreImpl(reopenedPm, dir);
+        assertEquals(2, reopened.getCheckpointStatistics().getRestoredDocuments());
+        assertFalse(new File(dir, StoreCheckpoint.NAME).exists());
+        //the document used least recently before the checkpoint is still the first to go
+        reopened.setMaxDocumentCount(1);
+        assertTrue(reopenedPm.getPersistedKeys().contains(this.uri3));
+        assertFalse(reopenedPm.getPersistedKeys().contains(this.uri4));
+        assertEquals(3, reopened.search("sea").size());
+        assertEquals(this.uri2, reopened.search("seals").get(0).getKey());
+    }
+
+    //Test that a store opened after a crash replays the puts, deletes and undos in the write-ahead log
+    @Test
+    public void writeAheadLogReplaysAfterCrash() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("wal-store").toFile();
+        DocumentStoreImpl store = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()), dir, Durability.PER_WRITE);
+        uris();
+
+        store.put(new ByteArrayInputStream("sea shells".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("sea seals".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.put(new ByteArrayInputStream("tweet".getBytes(StandardCharsets.UTF_8)), this.uri3, TXT);
+        store.put(new ByteArrayInputStream("bird".getBytes(StandardCharsets.UTF_8)), this.uri4, TXT);
+        store.deleteAll("sea");
+        store.undo(this.uri2);
+        store.undo(this.uri4);
+        assertEquals(8, store.getWriteAheadLogStatistics().getSyncedWriteCount());
+
+        //never closed, so only the log knows about any of it
+        DocumentStoreImpl reopened = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()), dir, Durability.PER_WRITE);
+        assertEquals(8, reopened.getCheckpointStatistics().getReplayedEntries());
+        assertNull(reopened.get(this.uri1));
+        assertEquals("sea seals", reopened.get(this.uri2).getDocumentTxt());
+        assertEquals("tweet", reopened.get(this.uri3).getDocumentTxt());
+        assertNull(reopened.get(this.uri4));
+        assertEquals(1, reopened.search("sea").size());
+
+        //a checkpoint holds everything logged so far, so the log starts over
+        reopened.checkpoint();
+        assertEquals(0, new File(dir, WriteAheadLog.NAME).length());
+        reopened.delete(this.uri3);
+
+        DocumentStoreImpl again = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()), dir, Durability.PER_WRITE);
+        assertEquals(2, again.getCheckpointStatistics().getRestoredDocuments());
+        assertEquals(1, again.getCheckpointStatistics().getReplayedEntries());
+        assertEquals("sea seals", again.get(this.uri2).getDocumentTxt());
+        assertNull(again.get(this.uri3));
+    }
+
+    //Test that a checkpoint waits for evicted documents still queued by write-behind before it truncates the log
+    @Test
+    public void checkpointWaitsForQueuedWritesBeforeTruncatingLog() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("wal-write-behind").toFile();
+        SlowDisk disk = new SlowDisk(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()));
+        WriteBehindPersistenceManager<URI, Document> writeBehind = new WriteBehindPersistenceManager<>(disk, 16, 1);
+        DocumentStoreImpl store = new DocumentStoreImpl(writeBehind, dir, Durability.PER_WRITE);
+        URI[] uris = new URI[5];
+
+        for(int i = 0; i < uris.length; i++) {
+            uris[i] = URI.create("http://www.wal.com/doc" + i);
+            store.put(new ByteArrayInputStream(("document number " + i).getBytes(StandardCharsets.UTF_8)), uris[i], TXT);
+        }
+
+        //all but one are evicted, and the log is truncated while the writes are still slow to reach disk
+        store.setMaxDocumentCount(1);
+        assertTrue(writeBehind.getPendingCount() > 0);
+        store.checkpoint();
+        assertEquals(0, new File(dir, WriteAheadLog.NAME).length());
+        assertEquals(0, writeBehind.getPendingCount());
+
+        //crash: nothing more reaches disk, and the store is never closed
+        disk.crashed = true;
+        DocumentStoreImpl reopened = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()), dir, Durability.PER_WRITE);
+
+        for(int i = 0; i < uris.length; i++) {
+            assertEquals("document number " + i, reopened.get(uris[i]).getDocumentTxt());
+        }
+    }
+
+    //writes slowly, and after a crash never again
+    private static class SlowDisk implements PersistenceManager<URI, Document> {
+        private final PersistenceManager<URI, Document> disk;
+        private volatile boolean crashed;
+
+        private SlowDisk(PersistenceManager<URI, Document> disk) {
+            this.disk = disk;
+        }
+
+        @Override
+        public void serialize(URI uri, Document val) throws IOException {
+            try {
+                Thread.sleep(this.crashed ? Long.MAX_VALUE : 50);
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            this.disk.serialize(uri, val);
+        }
+
+        @Override
+        public Document deserialize(URI uri) throws IOException {
+            return this.disk.deserialize(uri);
+        }
+
+        @Override
+        public boolean delete(URI uri) throws IOException {
+            return this.disk.delete(uri);
+        }
+    }
+
+    //Test that a document read back from disk keeps its file, and moving it to disk again writes nothing
+    @Test
+    public void reevictingUnchangedDocsDoesNotRewriteThem() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("clean-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        uris();
+
+        store.put(new ByteArrayInputStream("first document".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("second document".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.setMaxDocumentCount(1);
+
+        //each get reads one document back and pushes the other out
+        for(int i = 0; i < 5; i++) {
+            assertEquals("first document", store.get(this.uri1).getDocumentTxt());
+            assertEquals("second document", store.get(this.uri2).getDocumentTxt());
+        }
+
+        assertEquals(2, pm.getSyncStatistics().getWriteCount());
+        assertEquals(2, pm.getPersistedKeys().size());
+
+        //a replaced document no longer matches its file, so the file goes and the document is written again when it is moved out
+        store.put(new ByteArrayInputStream("second document, edited".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        assertEquals(1, pm.getPersistedKeys().size());
+        store.setMaxDocumentCount(0);
+        assertEquals(3, pm.getSyncStatistics().getWriteCount());
+        assertEquals("second document, edited", pm.deserialize(this.uri2).getDocumentTxt());
+    }
+
+    @Test
+    public void transferBinaryDataLeavesDiskDocsOnDisk() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("transfer-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        uris();
+        byte[] binary = new byte[100000];
+        new java.util.Random(7).nextBytes(binary);
+
+        store.put(new ByteArrayInputStream(binary), this.uri1, BINARY);
+        store.put(new ByteArrayInputStream("a text document".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.setMaxDocumentCount(0);
+        long writes = pm.getSyncStatistics().getWriteCount();
+
+        File copy = new File(dir, "copy");
+        try(FileOutputStream out = new FileOutputStream(copy)) {
+            assertEquals(binary.length, store.transferBinaryData(this.uri1, out));
+        }
+        assertArrayEquals(binary, java.nio.file.Files.readAllBytes(copy.toPath()));
+
+        //read through json, which cannot be sent from the file, it is still not brought back into the store
+        pm.setCodec(new JsonDocumentCodec());
+        store.put(new ByteArrayInputStream(binary), this.uri3, BINARY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(binary.length, store.transferBinaryData(this.uri3, out));
+        assertArrayEquals(binary, out.toByteArray());
+
+        assertEquals(-1, store.transferBinaryData(this.uri2, out));
+        assertEquals(-1, store.transferBinaryData(URI.create("http://edu.yu.cs/com1320/project/missing"), out));
+        //nothing was read back, so nothing was pushed out and written again
+        assertEquals(writes + 1, pm.getSyncStatistics().getWriteCount());
+        assertEquals(3, pm.getPersistedKeys().size());
+    }
+
+    @Test
+    public void transferringADiskDocLeavesWhatIsInMemoryAlone() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("transfer-residency").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        uris();
+        byte[] binary = new byte[10000];
+        new java.util.Random(3).nextBytes(binary);
+        store.setMaxDocumentCount(1);
+        store.put(new ByteArrayInputStream(binary), this.uri1, BINARY);
+        store.put(new ByteArrayInputStream(new byte[]{1, 2, 3}), this.uri2, BINARY);
+        assertEquals(java.util.Set.of(this.uri1), pm.getPersistedKeys());
+        long writes = pm.getSyncStatistics().getWriteCount();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(binary.length, store.transferBinaryData(this.uri1, out));
+        assertArrayEquals(binary, out.toByteArray());
+        assertEquals(3, store.getBinaryData(this.uri2, 0, 10).length);
+        //uri1 was sent from its file and uri2 stayed in memory, so nothing was written
+        assertEquals(java.util.Set.of(this.uri1), pm.getPersistedKeys());
+        assertEquals(writes, pm.getSyncStatistics().getWriteCount());
+        store.setChunkBytes(1000);
+        store.setMaxDocumentCount(3);
+        store.put(new ByteArrayInputStream(binary), this.uri3, BINARY);
+        writes = pm.getSyncStatistics().getWriteCount();
+        java.util.Set<URI> onDisk = pm.getPersistedKeys();
+        out.reset();
+        assertEquals(binary.length, store.transferBinaryData(this.uri3, out));
+        assertArrayEquals(binary, out.toByteArray());
+        //nor is a chunked document, whose index and chunks on disk are all sent from their files
+        assertEquals(onDisk, pm.getPersistedKeys());
+        assertEquals(writes, pm.getSyncStatistics().getWriteCount());
+    }
+
+    @Test
+    public void largeBinariesAreChunkedAndReadByRange() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("chunk-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        store.setChunkBytes(1000);
+        store.setMaxDocumentBytes(3000);
+        uris();
+        byte[] binary = new byte[10500];
+        new java.util.Random(11).nextBytes(binary);
+
+        assertEquals(0, store.put(new ByteArrayInputStream(binary), this.uri1, BINARY));
+        //only the last few chunks fit, the rest were moved to disk one by one as they were put
+        assertTrue(pm.getPersistedKeys().size() >= 8, pm.getPersistedKeys().toString());
+        assertEquals(new DocumentImpl(this.uri1, binary).hashCode(), store.get(this.uri1).hashCode());
+
+        assertArrayEquals(Arrays.copyOfRange(binary, 1990, 3010), store.getBinaryData(this.uri1, 1990, 1020));
+        assertArrayEquals(Arrays.copyOfRange(binary, 10400, 10500), store.getBinaryData(this.uri1, 10400, 1000));
+        assertEquals(0, store.getBinaryData(this.uri1, 20000, 10).length);
+        assertArrayEquals(binary, store.get(this.uri1).getDocumentBinaryData());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(binary.length, store.transferBinaryData(this.uri1, out));
+        assertArrayEquals(binary, out.toByteArray());
+
+        //a small document replaces the chunked one, and undoing that brings the chunked one back
+        int chunkedHash = new DocumentImpl(this.uri1, binary).hashCode();
+        assertEquals(chunkedHash, store.put(new ByteArrayInputStream(new byte[]{1, 2, 3}), this.uri1, BINARY));
+        assertArrayEquals(new byte[]{1, 2, 3}, store.getBinaryData(this.uri1, 0, 100));
+        store.undo();
+        assertArrayEquals(Arrays.copyOfRange(binary, 5000, 5100), store.getBinaryData(this.uri1, 5000, 100));
+
+        assertTrue(store.delete(this.uri1));
+        assertNull(store.get(this.uri1));
+        assertNull(store.getBinaryData(this.uri1, 0, 10));
+        store.undo(this.uri1);
+        assertArrayEquals(binary, store.getBinaryData(this.uri1, 0, binary.length));
+        assertThrows(IllegalArgumentException.class, () -> store.put(new ByteArrayInputStream(binary), URI.create("chunks:.chunks/x"), BINARY));
+    }
+
+    @Test
+    public void chunksNoIndexHoldsAreDropped() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("chunk-drop").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm, dir);
+        store.setChunkBytes(1000);
+        store.setMaxDocumentBytes(3000);
+        uris();
+        byte[] binary = new byte[10500];
+        new java.util.Random(13).nextBytes(binary);
+        store.put(new ByteArrayInputStream(binary), this.uri1, BINARY);
+        String uri2Chunks = ChunkIndex.indexUri(this.uri2).toString();
+        //undoing a chunked put drops its chunks at once, as nothing can bring it back
+        store.put(new ByteArrayInputStream(binary), this.uri2, BINARY);
+        store.undo();
+        assertTrue(pm.getPersistedKeys().stream().noneMatch(uri -> uri.toString().startsWith(uri2Chunks)));
+        //as does a put that fails part of the way through
+        InputStream failing = new java.io.SequenceInputStream(new ByteArrayInputStream(binary), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("the stream broke");
+            }
+        });
+        assertThrows(IOException.class, () -> store.put(failing, this.uri2, BINARY));
+        assertTrue(pm.getPersistedKeys().stream().noneMatch(uri -> uri.toString().startsWith(uri2Chunks)));
+        assertNull(store.get(this.uri2));
+        //a deleted chunked document keeps its chunks for an undo until the store is closed
+        assertTrue(store.delete(this.uri1));
+        store.checkpoint();
+        assertFalse(chunkFiles(dir).isEmpty());
+        store.close();
+        assertEquals(java.util.List.of(), chunkFiles(dir));
+    }
+
+    @Test
+    public void reopeningDropsChunksLeftByAStoreThatDidNotClose() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("chunk-reopen").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        store.setChunkBytes(1000);
+        store.setMaxDocumentCount(0);
+        uris();
+        byte[] binary = new byte[5500];
+        new java.util.Random(17).nextBytes(binary);
+        store.put(new ByteArrayInputStream(binary), this.uri1, BINARY);
+        int files = chunkFiles(dir).size();
+        //the first generation stays for an undo of the second put, and the store is left without closing
+        store.put(new ByteArrayInputStream(binary), this.uri1, BINARY);
+        assertEquals(2 * files - 1, chunkFiles(dir).size());
+        DocumentStoreImpl reopened = new DocumentStoreImpl(new DocumentPersistenceManager(dir, new BinaryDocumentCodec()));
+        assertEquals(files, chunkFiles(dir).size());
+        assertArrayEquals(binary, reopened.getBinaryData(this.uri1, 0, binary.length));
+    }
+
+    private static java.util.List<java.nio.file.Path> chunkFiles(File dir) throws IOException {
+        try(java.util.stream.Stream<java.nio.file.Path> paths = java.nio.file.Files.walk(dir.toPath())) {
+            return paths.filter(path -> path.toString().contains(".chunks") && path.toFile().isFile()).collect(java.util.stream.Collectors.toList());
+        }
+    }
+
+    @Test
+    public void bodiesLiveOffHeapAndStillRead() throws IOException {
+        DocumentStoreImpl store = putDocs();
+        OffHeapBodyStore offHeap = new OffHeapBodyStore(1 << 16, 1 << 12);
+        store.setOffHeapBodyStore(offHeap);
+        //the documents already in memory are moved too
+        assertEquals(4, offHeap.getBodyCount());
+
+        byte[] binary = new byte[10000];
+        new java.util.Random(3).nextBytes(binary);
+        URI binaryUri = URI.create("http://www.binary.com/big");
+        store.put(new ByteArrayInputStream(binary), binaryUri, BINARY);
+        assertEquals(5, offHeap.getBodyCount());
+        //the four small bodies share one slab, and the long one has a buffer of its own
+        assertEquals((1 << 12) + 10000, offHeap.getReservedBytes());
+
+        assertArrayEquals(binary, store.get(binaryUri).getDocumentBinaryData());
+        assertArrayEquals(Arrays.copyOfRange(binary, 100, 200), store.getBinaryData(binaryUri, 100, 100));
+        assertEquals("She sells seashells by the seashore. Google is a search engine.", store.get(this.uri1).getDocumentTxt());
+        assertEquals(1, store.search("seashells").get(0).wordCount("seashells"));
+
+        //a body that does not fit stays on the heap
+        byte[] tooBig = new byte[1 << 16];
+        store.put(new ByteArrayInputStream(tooBig), URI.create("http://www.binary.com/huge"), BINARY);
+        assertEquals(1, offHeap.getHeapFallbacks());
+        assertArrayEquals(tooBig, store.get(URI.create("http://www.binary.com/huge")).getDocumentBinaryData());
+    }
+
+    @Test
+    public void byteLimitCountsFootprintsAndGoesPastTwoGigabytes() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("footprint-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        store.setMaxDocumentBytes(3L << 30);
+        uris();
+        String txt = "She sells seashells by the seashore. Google is a search engine.";
+        store.put(new ByteArrayInputStream(txt.getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream(txt.getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        assertTrue(pm.getPersistedKeys().isEmpty());
+
+        //the bodies alone would fit twice over, but the word maps and uris do not
+        long footprint = ((DocumentImpl) store.get(this.uri2)).getFootprint();
+        store.setMaxDocumentBytes(footprint + 2 * txt.length());
+        assertEquals(java.util.Set.of(this.uri1), pm.getPersistedKeys());
+        assertEquals(txt, store.get(this.uri1).getDocumentTxt());
+    }
+
+    @Test
+    public void adaptiveBudgetShrinksUnderPressureAndGrowsBack() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("adaptive-store").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        AdaptiveMemoryBudget budget = new AdaptiveMemoryBudget(0.5, 0.8, 0, false);
+        store.setAdaptiveBudget(budget);
+        URI[] uris = new URI[8];
+        for(int i = 0; i < uris.length; i++) {
+            uris[i] = URI.create("http://www.adaptive.com/doc" + i);
+            store.put(new ByteArrayInputStream(new byte[10000]), uris[i], BINARY);
+        }
+        assertTrue(pm.getPersistedKeys().isEmpty());
+        assertEquals(Long.MAX_VALUE, budget.getBudget());
+
+        //the heap is full, so the next document in cuts the store to three quarters of what it holds
+        budget.recordPressure(0.9);
+        store.put(new ByteArrayInputStream(new byte[10000]), URI.create("http://www.adaptive.com/doc8"), BINARY);
+        assertEquals(1, budget.getShrinkCount());
+        assertEquals(3, pm.getPersistedKeys().size());
+        assertTrue(pm.getPersistedKeys().contains(uris[0]));
+
+        //a measurement is only acted on once, so bringing a document back only moves one out, and its file stays
+        store.get(uris[0]);
+        assertEquals(1, budget.getShrinkCount());
+        assertEquals(4, pm.getPersistedKeys().size());
+
+        //with room again the limit grows until it is lifted, and never goes past the one set on the store
+        for(int i = 0; i < 20 && budget.getBudget() != Long.MAX_VALUE; i++) {
+            budget.recordPressure(0.2);
+            store.put(new ByteArrayInputStream(new byte[10]), URI.create("http://www.adaptive.com/small" + i), BINARY);
+        }
+        assertEquals(Long.MAX_VALUE, budget.getBudget());
+        store.setMaxDocumentBytes(1);
+        assertEquals(1, budget.limitFor(100, 1));
+        budget.close();
+    }
+
+    @Test
+    public void adaptiveBudgetEvictsAsSoonAsTheHeapIsMeasured() throws IOException, InterruptedException {
+        File dir = java.nio.file.Files.createTempDirectory("adaptive-measure").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+        AdaptiveMemoryBudget budget = new AdaptiveMemoryBudget(0.5, 0.8, 0, false);
+        store.setAdaptiveBudget(budget);
+        URI[] uris = new URI[8];
+        for(int i = 0; i < uris.length; i++) {
+            uris[i] = URI.create("http://www.adaptive.com/measured" + i);
+            store.put(new ByteArrayInputStream(new byte[10000]), uris[i], BINARY);
+        }
+        //measured on another thread, as the listeners are, with no document coming into memory after it
+        Thread listener = new Thread(() -> budget.measure(0.9));
+        listener.start();
+        listener.join();
+        assertEquals(1, budget.getShrinkCount());
+        assertEquals(2, pm.getPersistedKeys().size());
+        assertTrue(pm.getPersistedKeys().contains(uris[0]));
+        //a store that let go of the budget is no longer called
+        store.setAdaptiveBudget(null);
+        budget.measure(0.9);
+        assertEquals(1, budget.getShrinkCount());
+        budget.close();
+    }
+
     @AfterAll
     public static void cleanUp(){
         System.out.println("After All cleanUp() method called");
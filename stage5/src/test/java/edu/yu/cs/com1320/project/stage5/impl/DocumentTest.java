@@ -84,4 +84,64 @@ public class DocumentTest {
         Set<String> testSet = Set.of("Hello", "google", "I", "am", "a", "search", "engine", "is", "good", "like", "Google");
         assertTrue(words.containsAll(testSet));
     }
-}
\ No newline at end of file
+
+    //Test that the footprint counts the word map and does not change once taken
+    @Test
+    public void footprintCountsWordMap(){
+        URI uri = URI.create("http://www.google.com");
+        DocumentImpl repeated = new DocumentImpl(uri, "google google google google google google", null);
+        DocumentImpl distinct = new DocumentImpl(uri, "google search engine images videos travel", null);
+        assertEquals(repeated.getBodyLength(), distinct.getBodyLength());
+        assertTrue(distinct.getFootprint() > repeated.getFootprint() + 4 * 80);
+        assertTrue(repeated.getFootprint() > repeated.getBodyLength() + uri.toString().length());
+
+        long footprint = distinct.getFootprint();
+        distinct.setWordMap(new java.util.HashMap<>());
+        assertEquals(footprint, distinct.getFootprint());
+
+        DocumentImpl binary = new DocumentImpl(uri, new byte[1000]);
+        assertEquals(1000, binary.getFootprint() - new DocumentImpl(uri, new byte[1]).getFootprint() + 1);
+    }
+
+    //Test that text is kept as its UTF-8 bytes and decoded when asked for
+    @Test
+    public void textIsKeptAsUtf8(){
+        URI uri = URI.create("http://www.google.com");
+        String txt = "Caf\u00e9 na\u00efve \u65e5\u672c google";
+        byte[] utf8 = txt.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        DocumentImpl fromString = new DocumentImpl(uri, txt, null);
+        DocumentImpl fromBytes = new DocumentImpl(uri, java.nio.ByteBuffer.wrap(utf8), true, null);
+
+        assertEquals(utf8.length, fromString.getBodyLength());
+        assertEquals(java.nio.ByteBuffer.wrap(utf8), fromString.getBodyBuffer());
+        assertEquals(txt, fromBytes.getDocumentTxt());
+        assertNotSame(fromBytes.getDocumentTxt(), fromBytes.getDocumentTxt());
+        assertEquals(fromString.getWordMap(), fromBytes.getWordMap());
+        assertEquals(1, fromBytes.wordCount("google"));
+        assertEquals(fromString.hashCode(), fromBytes.hashCode());
+        assertEquals(fromString, fromBytes);
+    }
+
+    //Test that the word counts are frozen in a table and read back the same every way
+    @Test
+    public void wordCountsAreFrozen(){
+        URI uri = URI.create("http://www.google.com");
+        java.util.Map<String, Integer> wordMap = new java.util.HashMap<>(java.util.Map.of("zebra", 2, "apple", 5, "mango", 1));
+        DocumentImpl doc = new DocumentImpl(uri, "zebra apple", wordMap);
+        wordMap.put("apple", 9);
+
+        assertEquals(5, doc.wordCount("apple"));
+        assertEquals(2, doc.wordCount("zebra"));
+        assertEquals(0, doc.wordCount("banana"));
+        assertEquals(0, doc.wordCount(null));
+        assertEquals(Set.of("apple", "mango", "zebra"), doc.getWords());
+        assertTrue(doc.getWords().contains("mango"));
+        assertThrows(UnsupportedOperationException.class, () -> doc.getWords().remove("apple"));
+        assertEquals(java.util.Map.of("zebra", 2, "apple", 5, "mango", 1), doc.getWordMap());
+
+        Set<String> entries = new java.util.HashSet<>();
+        doc.forEachWord((word, count) -> entries.add(word + count));
+        assertEquals(Set.of("apple5", "mango1", "zebra2"), entries);
+        assertEquals(0, new DocumentImpl(uri, new byte[1]).wordCount("apple"));
+    }
+}
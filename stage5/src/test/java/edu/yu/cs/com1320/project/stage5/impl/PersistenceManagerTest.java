@@ -1,13 +1,20 @@
 package edu.yu.cs.com1320.project.stage5.impl;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
 import edu.yu.cs.com1320.project.stage5.Document;
 import org.junit.Test;
 
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -71,4 +78,450 @@ public class PersistenceManagerTest {
         assertArrayEquals(binaryData, deserialized.getDocumentBinaryData());
         assertEquals(new HashMap<>(), deserialized.getWordMap());
     }
+
+    @Test
+    public void testBinaryCodecRoundTrip() throws IOException {
+
+        File dir = Files.createTempDirectory("binary-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        Document[] docs = createDocs();
+
+        pm.serialize(this.uri1, docs[0]);
+        pm.serialize(this.uri2, docs[1]);
+
+        Document txt = pm.deserialize(this.uri1);
+        assertEquals(docs[0], txt);
+        assertEquals(docs[0].getDocumentTxt(), txt.getDocumentTxt());
+        assertEquals(docs[0].getWordMap(), txt.getWordMap());
+
+        Document binary = pm.deserialize(this.uri2);
+        assertEquals(docs[1], binary);
+        assertArrayEquals(docs[1].getDocumentBinaryData(), binary.getDocumentBinaryData());
+
+        assertTrue(pm.delete(this.uri1));
+        assertFalse(pm.delete(this.uri1));
+    }
+
+    @Test
+    public void testReadsDispatchOnHeader() throws IOException {
+
+        File dir = Files.createTempDirectory("codec-pm").toFile();
+        Document[] docs = createDocs();
+
+        new DocumentPersistenceManager(dir, new JsonDocumentCodec()).serialize(this.uri1, docs[0]);
+
+        //a manager writing the binary codec still reads the json file, picking the codec by its extension
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        assertEquals(docs[0].getDocumentTxt(), pm.deserialize(this.uri1).getDocumentTxt());
+        assertEquals(docs[0].getWordMap(), pm.deserialize(this.uri1).getWordMap());
+    }
+
+    @Test
+    public void testJsonCodecWritesCompactJsonAndReadsOlderShapes() throws IOException, InterruptedException {
+
+        JsonDocumentCodec codec = new JsonDocumentCodec();
+        Document[] docs = createDocs();
+
+        String txt = new String(codec.encode(docs[0]), StandardCharsets.UTF_8);
+        assertTrue(txt.startsWith("{\"uri\":\"" + this.uri1 + "\",\"txt\":"), txt);
+        assertFalse(txt.contains("\n"));
+        assertFalse(txt.contains("lastUseTime"));
+
+        //pretty-printed, with fields it does not know and in any order
+        String pretty = "{\n  \"lastUseTime\": 5,\n  \"extra\": {\"a\": [1, 2]},\n  \"wordCountMap\": {\n    \"hi\": 2\n  },\n" +
+                "  \"txt\": \"hi hi\",\n  \"uri\": \"" + this.uri1 + "\"\n}";
+        Document read = codec.decode(ByteBuffer.wrap(pretty.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("hi hi", read.getDocumentTxt());
+        assertEquals(2, read.getWordMap().get("hi"));
+
+        String base64 = "{\"uri\":\"" + this.uri2 + "\",\"binaryData\":\"" +
+                Base64.getEncoder().encodeToString(docs[1].getDocumentBinaryData()) + "\"}";
+        assertArrayEquals(docs[1].getDocumentBinaryData(), codec.decode(ByteBuffer.wrap(base64.getBytes(StandardCharsets.UTF_8))).getDocumentBinaryData());
+
+        //written through the manager, which streams the encoding into the file
+        File dir = Files.createTempDirectory("json-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, codec);
+        pm.serialize(this.uri1, docs[0]);
+        pm.serialize(this.uri2, docs[1]);
+        assertEquals(docs[0].getWordMap(), pm.deserialize(this.uri1).getWordMap());
+        assertArrayEquals(docs[1].getDocumentBinaryData(), pm.deserialize(this.uri2).getDocumentBinaryData());
+
+        //to a plain .json file with no header, as documents always were, which the migrator leaves alone
+        File file = new File(dir, this.uri1.getSchemeSpecificPart() + ".json");
+        assertFalse(new File(dir, this.uri1.getSchemeSpecificPart() + DocumentPersistenceManager.EXTENSION).exists());
+        assertEquals(this.uri1.toString(), JsonParser.parseString(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8))
+                .getAsJsonObject().get("uri").getAsString());
+        CodecMigrator migrator = pm.startMigration(1000);
+        migrator.awaitCompletion();
+        assertEquals(0, migrator.getMigratedCount());
+
+        assertThrows(IOException.class, () -> codec.decode(ByteBuffer.wrap("{\"uri\":".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testMigratorRewritesLegacyFiles() throws IOException, InterruptedException {
+
+        File dir = Files.createTempDirectory("codec-pm").toFile();
+        Document[] docs = createDocs();
+
+        //headerless json, as written before codec headers existed
+        File legacy = new File(dir, this.uri1.getSchemeSpecificPart() + ".json");
+        legacy.getParentFile().mkdirs();
+        Files.write(legacy.toPath(), new JsonDocumentCodec().encode(docs[0]));
+
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        pm.serialize(this.uri2, docs[1]);
+
+        CodecMigrator migrator = pm.startMigration(1000);
+        migrator.awaitCompletion();
+
+        assertEquals(1, migrator.getMigratedCount());
+        assertEquals(0, migrator.getFailedCount());
+        assertFalse(legacy.exists());
+
+        File migrated = new File(dir, this.uri1.getSchemeSpecificPart() + ".doc");
+        DataInputStream in = new DataInputStream(new FileInputStream(migrated));
+        assertEquals(DocumentPersistenceManager.MAGIC, in.readInt());
+        assertEquals(BinaryDocumentCodec.VERSION, in.readShort());
+        in.close();
+
+        assertEquals(docs[0].getWordMap(), pm.deserialize(this.uri1).getWordMap());
+    }
+
+    @Test
+    public void testMappedReadsKeepBodyInMapping() throws IOException {
+
+        File dir = Files.createTempDirectory("mapped-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        pm.setReadMode(DocumentPersistenceManager.ReadMode.MAPPED);
+        Document[] docs = createDocs();
+
+        pm.serialize(this.uri1, docs[0]);
+        pm.serialize(this.uri2, docs[1]);
+
+        DocumentImpl txt = (DocumentImpl) pm.deserialize(this.uri1);
+        DocumentImpl binary = (DocumentImpl) pm.deserialize(this.uri2);
+
+        //the mapping outlives the file
+        pm.delete(this.uri1);
+        pm.delete(this.uri2);
+
+        ByteBuffer view = binary.getDocumentBinaryBuffer();
+        assertTrue(view.isDirect());
+        assertTrue(view.isReadOnly());
+        assertEquals(docs[1].getDocumentBinaryData().length, view.remaining());
+        assertEquals(docs[1].hashCode(), binary.hashCode());
+        assertArrayEquals(docs[1].getDocumentBinaryData(), binary.getDocumentBinaryData());
+
+        assertEquals(docs[0].getWordMap(), txt.getWordMap());
+        assertEquals(docs[0].getDocumentTxt().length(), txt.getBodyLength());
+        assertEquals(docs[0].getDocumentTxt(), txt.getDocumentTxt());
+        assertEquals(docs[0], txt);
+    }
+
+    @Test
+    public void testLazyReadsLeaveBodyOnDiskUntilNeeded() throws IOException {
+
+        File dir = Files.createTempDirectory("lazy-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        pm.setReadMode(DocumentPersistenceManager.ReadMode.LAZY);
+        Document[] docs = createDocs();
+
+        pm.serialize(this.uri1, docs[0]);
+        pm.serialize(this.uri2, docs[1]);
+
+        DocumentImpl txt = (DocumentImpl) pm.deserialize(this.uri1);
+        DocumentImpl binary = (DocumentImpl) pm.deserialize(this.uri2);
+
+        assertFalse(txt.isBodyLoaded());
+        assertEquals(docs[0].getWordMap(), txt.getWordMap());
+        assertEquals(docs[0].wordCount("test"), txt.wordCount("test"));
+        assertEquals(docs[0].getDocumentTxt().length(), txt.getBodyLength());
+        assertFalse(txt.isBodyLoaded());
+
+        assertEquals(docs[0].getDocumentTxt(), txt.getDocumentTxt());
+        assertTrue(txt.isBodyLoaded());
+
+        //deleting the file reads the body it still holds first
+        assertFalse(binary.isBodyLoaded());
+        pm.delete(this.uri2);
+        assertTrue(binary.isBodyLoaded());
+        assertArrayEquals(docs[1].getDocumentBinaryData(), binary.getDocumentBinaryData());
+    }
+
+    @Test
+    public void testLazyReadsOfCompressedDocumentsInflateOnDemand() throws IOException {
+
+        File dir = Files.createTempDirectory("lazy-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new CompressingDocumentCodec(dir));
+        pm.setReadMode(DocumentPersistenceManager.ReadMode.LAZY);
+        createDocs();
+
+        StringBuilder txt = new StringBuilder();
+        for(int i = 0; i < 200; i++) {
+
+            txt.append("the same sentence over and over ");
+        }
+        Document doc = new DocumentImpl(this.uri1, txt.toString().trim(), null);
+        pm.serialize(this.uri1, doc);
+
+        DocumentImpl read = (DocumentImpl) pm.deserialize(this.uri1);
+        assertFalse(read.isBodyLoaded());
+        assertEquals(200, read.wordCount("sentence"));
+
+        //overwriting the file reads the old body first
+        pm.serialize(this.uri1, new DocumentImpl(this.uri1, "something else", null));
+        assertTrue(read.isBodyLoaded());
+        assertEquals(doc.getDocumentTxt(), read.getDocumentTxt());
+        assertEquals("something else", pm.deserialize(this.uri1).getDocumentTxt());
+    }
+
+    @Test
+    public void testContentAddressedModeStoresSharedBodiesOnce() throws IOException {
+
+        File dir = Files.createTempDirectory("dedup-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir);
+        pm.setContentAddressed(true);
+        byte[] blob = new byte[10_000];
+        new java.util.Random(7).nextBytes(blob);
+        URI[] uris = new URI[5];
+
+        for(int i = 0; i < uris.length; i++) {
+
+            uris[i] = URI.create("http://edu.yu.cs/com1320/project/copy" + i);
+            pm.serialize(uris[i], new DocumentImpl(uris[i], blob.clone()));
+        }
+
+        DedupStatistics stats = pm.getDedupStatistics();
+        assertEquals(5, stats.getWriteCount());
+        assertEquals(4, stats.getDedupedWriteCount());
+        assertEquals(4L * blob.length, stats.getSavedBytes());
+        assertTrue(stats.getHashNanos() > 0);
+        assertEquals(1, countFiles(new File(dir, ".blobs"), ".blob"));
+
+        //deleting or overwriting a uri only drops its reference
+        assertTrue(pm.delete(uris[0]));
+        pm.serialize(uris[1], new DocumentImpl(uris[1], "now a text document", null));
+        assertArrayEquals(blob, pm.deserialize(uris[2]).getDocumentBinaryData());
+        assertEquals("now a text document", pm.deserialize(uris[1]).getDocumentTxt());
+        assertEquals(2, countFiles(new File(dir, ".blobs"), ".blob"));
+
+        //the counts survive a reopen, and the blob goes with its last reference
+        pm.close();
+        DocumentPersistenceManager reopened = new DocumentPersistenceManager(dir);
+        reopened.setContentAddressed(true);
+        reopened.delete(uris[2]);
+        reopened.delete(uris[3]);
+        assertArrayEquals(blob, reopened.deserialize(uris[4]).getDocumentBinaryData());
+        reopened.delete(uris[4]);
+        assertEquals(1, countFiles(new File(dir, ".blobs"), ".blob"));
+        assertThrows(FileNotFoundException.class, () -> reopened.deserialize(uris[4]));
+        reopened.close();
+    }
+
+    private static long countFiles(File dir, String extension) throws IOException {
+
+        return Files.walk(dir.toPath()).filter(path -> path.toString().endsWith(extension)).count();
+    }
+
+    @Test
+    public void testManifestListsDocumentsOnDiskAcrossReopen() throws IOException {
+
+        File dir = Files.createTempDirectory("manifest-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        Document[] docs = createDocs();
+
+        pm.serialize(this.uri1, docs[0]);
+        pm.serialize(this.uri2, docs[1]);
+        pm.serialize(this.uri2, docs[1]);
+        pm.delete(this.uri1);
+        pm.close();
+
+        //an append cut off by a crash is dropped on the next open
+        Files.write(new File(dir, Manifest.NAME).toPath(), new byte[]{0, 0, 0, 40, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+
+        DocumentPersistenceManager reopened = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        assertEquals(java.util.Collections.singleton(this.uri2), reopened.getPersistedKeys());
+        reopened.serialize(this.uri1, docs[0]);
+        reopened.close();
+
+        assertEquals(new java.util.HashSet<>(java.util.Arrays.asList(this.uri1, this.uri2)), new DocumentPersistenceManager(dir).getPersistedKeys());
+    }
+
+    @Test
+    public void testHashedLayoutMovesFilesAndIsKeptAcrossReopen() throws IOException {
+
+        File dir = Files.createTempDirectory("hashed-pm").toFile();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        Document[] docs = createDocs();
+
+        pm.serialize(this.uri1, docs[0]);
+        assertTrue(new File(dir, "edu.yu.cs/com1320/project/doc1.doc").exists());
+
+        //the file written with the path layout is moved, and new files go to two levels of hashed directories
+        pm.setLayout(DocumentPersistenceManager.Layout.HASHED);
+        pm.serialize(this.uri2, docs[1]);
+        assertFalse(new File(dir, "edu.yu.cs/com1320/project/doc1.doc").exists());
+        assertEquals(2, countFiles(new File(dir, ".hashed"), DocumentPersistenceManager.EXTENSION));
+        Files.walk(new File(dir, ".hashed").toPath()).filter(Files::isRegularFile)
+                .forEach(path -> assertEquals(dir.toPath().resolve(".hashed"), path.getParent().getParent().getParent()));
+        pm.close();
+
+        DocumentPersistenceManager reopened = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+        assertEquals(DocumentPersistenceManager.Layout.HASHED, reopened.getLayout());
+        assertEquals(docs[0].getDocumentTxt(), reopened.deserialize(this.uri1).getDocumentTxt());
+        assertArrayEquals(docs[1].getDocumentBinaryData(), reopened.deserialize(this.uri2).getDocumentBinaryData());
+        assertTrue(reopened.delete(this.uri1));
+        assertEquals(1, countFiles(new File(dir, ".hashed"), DocumentPersistenceManager.EXTENSION));
+    }
+
+    @Test
+    public void testCompressingCodecTrainsDictionaryOnSimilarDocuments() throws IOException {
+
+        File dir = Files.createTempDirectory("compressing-pm").toFile();
+        CompressingDocumentCodec codec = new CompressingDocumentCodec(dir);
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, codec);
+        Map<URI, Document> written = new HashMap<>();
+        int i = 0;
+
+        while(!codec.hasDictionary()) {
+
+            URI uri = URI.create("http://edu.yu.cs/com1320/project/similar" + i);
+            String txt = "Order " + i + " shipped to warehouse " + (i % 7) + ". The customer was notified by email and the invoice " +
+                    "was attached. Please contact support if the delivery is late or the package arrives damaged.";
+            Document doc = new DocumentImpl(uri, txt, null);
+            pm.serialize(uri, doc);
+            written.put(uri, doc);
+            i++;
+        }
+
+        JsonDocumentCodec json = new JsonDocumentCodec();
+        //measured against the pretty-printed JSON documents used to be written as
+        Gson pretty = new GsonBuilder().setPrettyPrinting().create();
+        long jsonBytes = 0;
+        long encodedBytes = 0;
+        long before = codec.getStoredBytes();
+
+        for(int j = 0; j < 100; j++, i++) {
+
+            URI uri = URI.create("http://edu.yu.cs/com1320/project/similar" + i);
+            Document doc = new DocumentImpl(uri, "Order " + i + " shipped to warehouse 3. The customer was notified by email " +
+                    "and the invoice was attached. Please contact support if the delivery is late or the package arrives damaged.", null);
+            pm.serialize(uri, doc);
+            written.put(uri, doc);
+            jsonBytes += pretty.toJson(JsonParser.parseString(new String(json.encode(doc), StandardCharsets.UTF_8))).length();
+            encodedBytes += new File(dir, uri.getSchemeSpecificPart() + ".doc").length();
+        }
+
+        //with the dictionary, each of these documents deflates to a fraction of its length
+        assertTrue(codec.getStoredBytes() - before < 100 * 60);
+        assertTrue(encodedBytes < jsonBytes / 2);
+
+        //a new codec picks the saved dictionary back up and reads everything written with it
+        DocumentPersistenceManager reopened = new DocumentPersistenceManager(dir, new CompressingDocumentCodec(dir));
+
+        for(Map.Entry<URI, Document> entry : written.entrySet()) {
+
+            Document read = reopened.deserialize(entry.getKey());
+            assertEquals(entry.getValue().getDocumentTxt(), read.getDocumentTxt());
+            assertEquals(entry.getValue().getWordMap(), read.getWordMap());
+        }
+    }
+
+    @Test
+    public void testCompressingCodecNeverReplacesADictionaryWithTheSameId() throws IOException {
+
+        createDocs();
+        List<Document> similar = new ArrayList<>();
+
+        for(int i = 0; i < 20; i++) {
+
+            similar.add(new DocumentImpl(URI.create("http://edu.yu.cs/com1320/project/similar" + i), "Order " + i + " shipped to " +
+                    "warehouse 3. The customer was notified by email and the invoice was attached, as every customer is.", null));
+        }
+
+        //the id a dictionary trained on these documents gets
+        File first = Files.createTempDirectory("compressing-pm").toFile();
+        new CompressingDocumentCodec(first).trainDictionary(similar);
+        String id = new String(Files.readAllBytes(new File(first, "dictionary.current").toPath()), StandardCharsets.US_ASCII).trim();
+
+        //a directory where another dictionary is already saved under that id, and a document was written with it
+        File dir = Files.createTempDirectory("compressing-pm").toFile();
+        byte[] other = "warehouse customer invoice package delivery support damaged late email".getBytes(StandardCharsets.US_ASCII);
+        Files.write(new File(dir, "dictionary-" + id + ".zdict").toPath(), other);
+        Files.write(new File(dir, "dictionary.current").toPath(), id.getBytes(StandardCharsets.US_ASCII));
+        CompressingDocumentCodec codec = new CompressingDocumentCodec(dir);
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, codec);
+        StringBuilder txt = new StringBuilder();
+        for(int i = 0; i < 20; i++) {
+
+            txt.append("the customer was notified that the package with the invoice arrived damaged ");
+        }
+        Document old = new DocumentImpl(this.uri1, txt.toString().trim(), null);
+        pm.serialize(this.uri1, old);
+
+        //training the same dictionary again saves it under another id and leaves the one already there alone
+        assertTrue(codec.trainDictionary(similar));
+        String newId = new String(Files.readAllBytes(new File(dir, "dictionary.current").toPath()), StandardCharsets.US_ASCII).trim();
+        assertNotEquals(id, newId);
+        assertArrayEquals(other, Files.readAllBytes(new File(dir, "dictionary-" + id + ".zdict").toPath()));
+        pm.serialize(this.uri2, similar.get(0));
+
+        DocumentPersistenceManager reopened = new DocumentPersistenceManager(dir, new CompressingDocumentCodec(dir));
+        assertEquals(old.getDocumentTxt(), reopened.deserialize(this.uri1).getDocumentTxt());
+        assertEquals(similar.get(0).getDocumentTxt(), reopened.deserialize(this.uri2).getDocumentTxt());
+    }
+
+    @Test
+    public void testCompressingCodecStoresIncompressibleDataRaw() throws IOException {
+
+        CompressingDocumentCodec codec = new CompressingDocumentCodec(Files.createTempDirectory("compressing-pm").toFile());
+        byte[] random = new byte[64 * 1024];
+        new java.util.Random(42).nextBytes(random);
+        Document[] docs = createDocs();
+
+        Document noise = new DocumentImpl(this.uri2, random);
+        Document decoded = codec.decode(ByteBuffer.wrap(codec.encode(noise)));
+        assertArrayEquals(random, decoded.getDocumentBinaryData());
+        assertEquals(random.length, codec.getStoredBytes());
+
+        //under the size threshold nothing is deflated either
+        codec.encode(docs[1]);
+        assertEquals(random.length + docs[1].getDocumentBinaryData().length, codec.getStoredBytes());
+
+        //while repetitive binary data still shrinks
+        byte[] zeros = new byte[64 * 1024];
+        assertArrayEquals(zeros, codec.decode(ByteBuffer.wrap(codec.encode(new DocumentImpl(this.uri2, zeros)))).getDocumentBinaryData());
+        assertTrue(codec.getStoredBytes() < codec.getBodyBytes() - zeros.length / 2);
+    }
+
+    @Test
+    public void testSyncStatisticsOfEachDurability() throws IOException {
+
+        Map<Durability, SyncStatistics> stats = new HashMap<>();
+
+        for(Durability durability : Durability.values()) {
+
+            File dir = Files.createTempDirectory("durability-pm").toFile();
+            DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec());
+            //a window long enough that only close ends it
+            pm.setDurability(durability, 60_000);
+            Document[] docs = createDocs();
+
+            pm.serialize(this.uri1, docs[0]);
+            pm.serialize(this.uri2, docs[1]);
+            pm.serialize(this.uri1, docs[0]);
+            stats.put(durability, pm.getSyncStatistics());
+
+            assertEquals(3, pm.getSyncStatistics().getWriteCount());
+            //no file is moved into place before it is on disk, so even group commit has synced every write before its window ends
+            assertEquals(durability == Durability.NONE ? 0 : 3, pm.getSyncStatistics().getSyncCount(), durability.name());
+            assertEquals(docs[0].getDocumentTxt(), pm.deserialize(this.uri1).getDocumentTxt());
+            pm.close();
+        }
+
+        assertEquals(1.0, stats.get(Durability.PER_WRITE).getWritesPerSync());
+        //and the window adds one fsync of the manifest
+        assertEquals(4, stats.get(Durability.GROUP_COMMIT).getSyncCount());
+    }
 }
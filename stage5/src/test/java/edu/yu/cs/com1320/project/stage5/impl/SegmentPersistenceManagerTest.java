@@ -0,0 +1,156 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static edu.yu.cs.com1320.project.stage5.DocumentStore.DocumentFormat.TXT;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentPersistenceManagerTest {
+
+    private final URI uri1 = URI.create("http://edu.yu.cs/com1320/project/doc1");
+    private final URI uri2 = URI.create("http://edu.yu.cs/com1320/project/doc2");
+
+    private Document txtDoc(URI uri, String txt) {
+
+        return new DocumentImpl(uri, txt, null);
+    }
+
+    @Test
+    public void roundTripAndDelete() throws IOException {
+
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(Files.createTempDirectory("segments").toFile());
+        Document doc = txtDoc(this.uri1, "This is a test. This is only a test.");
+        byte[] binaryData = {1, 2, 3, 4, 5};
+
+        pm.serialize(this.uri1, doc);
+        pm.serialize(this.uri2, new DocumentImpl(this.uri2, binaryData));
+
+        assertEquals(doc.getDocumentTxt(), pm.deserialize(this.uri1).getDocumentTxt());
+        assertEquals(doc.getWordMap(), pm.deserialize(this.uri1).getWordMap());
+        assertArrayEquals(binaryData, pm.deserialize(this.uri2).getDocumentBinaryData());
+
+        assertTrue(pm.delete(this.uri1));
+        assertFalse(pm.delete(this.uri1));
+        assertThrows(FileNotFoundException.class, () -> pm.deserialize(this.uri1));
+        pm.close();
+    }
+
+    @Test
+    public void reopenRebuildsIndexAndDropsTornTail() throws IOException {
+
+        File dir = Files.createTempDirectory("segments").toFile();
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir);
+        pm.serialize(this.uri1, txtDoc(this.uri1, "first version"));
+        pm.serialize(this.uri1, txtDoc(this.uri1, "second version"));
+        pm.serialize(this.uri2, txtDoc(this.uri2, "deleted later"));
+        pm.delete(this.uri2);
+        pm.close();
+
+        //simulate a crash in the middle of an append
+        File segment = dir.listFiles((d, name) -> name.endsWith(".log"))[0];
+        long intactLength = segment.length();
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+
+            file.seek(intactLength);
+            file.writeInt(1000);
+            file.writeInt(42);
+        }
+
+        SegmentPersistenceManager reopened = new SegmentPersistenceManager(dir);
+        assertEquals("second version", reopened.deserialize(this.uri1).getDocumentTxt());
+        assertThrows(FileNotFoundException.class, () -> reopened.deserialize(this.uri2));
+        assertEquals(intactLength, segment.length());
+        reopened.close();
+    }
+
+    @Test
+    public void compactionReclaimsDeadRecords() throws IOException {
+
+        File dir = Files.createTempDirectory("segments").toFile();
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 256);
+
+        for(int i = 0; i < 20; i++) {
+
+            pm.serialize(this.uri1, txtDoc(this.uri1, "overwritten again and again " + i));
+        }
+
+        pm.serialize(this.uri2, txtDoc(this.uri2, "still here"));
+        int segmentsBefore = pm.getSegmentCount();
+        long bytesBefore = pm.getTotalBytes();
+        pm.compact();
+
+        assertTrue(pm.getSegmentCount() < segmentsBefore);
+        assertTrue(pm.getTotalBytes() < bytesBefore);
+        assertTrue(pm.getReclaimedBytes() > 0);
+        assertEquals("overwritten again and again 19", pm.deserialize(this.uri1).getDocumentTxt());
+        assertEquals("still here", pm.deserialize(this.uri2).getDocumentTxt());
+        pm.close();
+
+        SegmentPersistenceManager reopened = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 256);
+        assertEquals("overwritten again and again 19", reopened.deserialize(this.uri1).getDocumentTxt());
+        assertEquals("still here", reopened.deserialize(this.uri2).getDocumentTxt());
+        reopened.close();
+    }
+
+    @Test
+    public void plugsIntoDocumentStore() throws IOException {
+
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(Files.createTempDirectory("segments").toFile());
+        DocumentStoreImpl store = new DocumentStoreImpl(pm);
+
+        store.put(new ByteArrayInputStream("first document".getBytes(StandardCharsets.UTF_8)), this.uri1, TXT);
+        store.put(new ByteArrayInputStream("second document".getBytes(StandardCharsets.UTF_8)), this.uri2, TXT);
+        store.setMaxDocumentCount(1);
+
+        assertEquals("first document", pm.deserialize(this.uri1).getDocumentTxt());
+        assertEquals("first document", store.get(this.uri1).getDocumentTxt());
+        assertEquals("second document", store.get(this.uri2).getDocumentTxt());
+        pm.close();
+    }
+
+    @Test
+    public void groupCommitCoversManyWritesPerSync() throws IOException {
+
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(Files.createTempDirectory("segments").toFile());
+        //a window long enough that only close ends it
+        pm.setDurability(Durability.GROUP_COMMIT, 60_000);
+
+        for(int i = 0; i < 100; i++) {
+
+            URI uri = URI.create("http://edu.yu.cs/com1320/project/doc" + i);
+            pm.serialize(uri, txtDoc(uri, "document number " + i));
+        }
+
+        pm.close();
+        SyncStatistics stats = pm.getSyncStatistics();
+
+        assertEquals(100, stats.getWriteCount());
+        assertEquals(100, stats.getSyncedWriteCount());
+        assertTrue(stats.getWritesPerSync() >= 10);
+    }
+
+    @Test
+    public void perWriteSyncsEveryWrite() throws IOException {
+
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(Files.createTempDirectory("segments").toFile());
+        pm.setDurability(Durability.PER_WRITE);
+
+        pm.serialize(this.uri1, txtDoc(this.uri1, "first"));
+        pm.serialize(this.uri2, txtDoc(this.uri2, "second"));
+        pm.delete(this.uri1);
+
+        assertEquals(3, pm.getSyncStatistics().getSyncCount());
+        assertEquals(1.0, pm.getSyncStatistics().getWritesPerSync());
+        pm.close();
+    }
+}
@@ -0,0 +1,142 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.Document;
+import edu.yu.cs.com1320.project.stage5.DocumentStore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedPersistenceManagerTest {
+
+    private static List<DocumentPersistenceManager> stripes(int count) throws IOException {
+
+        List<DocumentPersistenceManager> stripes = new ArrayList<>();
+
+        for(int i = 0; i < count; i++) {
+
+            stripes.add(new DocumentPersistenceManager(Files.createTempDirectory("stripe-" + i).toFile(), new BinaryDocumentCodec()));
+        }
+
+        return stripes;
+    }
+
+    @Test
+    public void keysAreSpreadByWeightAndFoundOnTheirStripe() throws IOException {
+
+        List<DocumentPersistenceManager> stripes = stripes(2);
+        StripedPersistenceManager<URI, Document> pm = new StripedPersistenceManager<>(stripes, new int[]{1, 3});
+        int[] counts = new int[2];
+
+        for(int i = 0; i < 4000; i++) {
+
+            counts[pm.stripeIndexFor(URI.create("http://host/doc" + i))]++;
+        }
+
+        //a quarter and three quarters, give or take
+        assertTrue(counts[0] > 800 && counts[0] < 1200, Arrays.toString(counts));
+
+        List<URI> uris = new ArrayList<>();
+
+        for(int i = 0; i < 20; i++) {
+
+            URI uri = URI.create("http://host/doc" + i);
+            uris.add(uri);
+            pm.serialize(uri, new DocumentImpl(uri, "text of document " + i, null));
+        }
+
+        assertEquals(new HashSet<>(uris), pm.getPersistedKeys());
+        assertEquals(20, stripes.get(0).getPersistedKeys().size() + stripes.get(1).getPersistedKeys().size());
+
+        Map<URI, Document> read = pm.deserializeAll(uris);
+        assertEquals("text of document 7", read.get(uris.get(7)).getDocumentTxt());
+        assertTrue(stripes.get(pm.stripeIndexFor(uris.get(7))).getPersistedKeys().contains(uris.get(7)));
+
+        assertTrue(pm.delete(uris.get(7)));
+        assertFalse(pm.getPersistedKeys().contains(uris.get(7)));
+        pm.close();
+    }
+
+    @Test
+    public void addingAStripeMovesOnlyItsShare() throws IOException {
+
+        StripedPersistenceManager<URI, Document> three = new StripedPersistenceManager<>(stripes(3));
+        StripedPersistenceManager<URI, Document> four = new StripedPersistenceManager<>(stripes(4));
+        int moved = 0;
+
+        for(int i = 0; i < 4000; i++) {
+
+            URI uri = URI.create("http://host/doc" + i);
+
+            if(three.stripeIndexFor(uri) != four.stripeIndexFor(uri)) {
+
+                moved++;
+                assertEquals(3, four.stripeIndexFor(uri));
+            }
+        }
+
+        //about a quarter of the keys go to the new stripe, and no others move
+        assertTrue(moved > 800 && moved < 1200, "moved " + moved);
+    }
+
+    @Test
+    public void storeEvictsToEveryDirectoryAndReadsBack() throws IOException {
+
+        List<File> dirs = Arrays.asList(Files.createTempDirectory("disk-a").toFile(), Files.createTempDirectory("disk-b").toFile());
+        DocumentStoreImpl store = new DocumentStoreImpl(dirs, null);
+
+        for(int i = 0; i < 40; i++) {
+
+            store.put(new ByteArrayInputStream(("shared word " + i).getBytes(StandardCharsets.UTF_8)), URI.create("http://host/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+
+        store.setMaxDocumentCount(0);
+        store.close();
+
+        for(File dir : dirs) {
+
+            //the store's default JSON codec writes plain .json files
+            assertTrue(Files.walk(dir.toPath()).anyMatch(path -> path.toString().endsWith(".json")), dir + " is empty");
+        }
+
+        DocumentStoreImpl reopened = new DocumentStoreImpl(dirs, null);
+        assertEquals(40, reopened.search("shared").size());
+        assertEquals("shared word 12", reopened.get(URI.create("http://host/doc12")).getDocumentTxt());
+    }
+
+    @Test
+    public void flushWaitsForEveryStripe() throws IOException {
+
+        List<WriteBehindPersistenceManager<URI, Document>> stripes = new ArrayList<>();
+
+        for(DocumentPersistenceManager disk : stripes(3)) {
+
+            stripes.add(new WriteBehindPersistenceManager<>(disk, 64, 1));
+        }
+
+        StripedPersistenceManager<URI, Document> pm = new StripedPersistenceManager<>(stripes);
+
+        for(int i = 0; i < 60; i++) {
+
+            URI uri = URI.create("http://host/doc" + i);
+            pm.serialize(uri, new DocumentImpl(uri, "text of document " + i, null));
+        }
+
+        pm.flush();
+
+        for(WriteBehindPersistenceManager<URI, Document> stripe : stripes) {
+
+            assertEquals(0, stripe.getPendingCount());
+        }
+
+        assertEquals(60, stripes.stream().mapToLong(WriteBehindPersistenceManager::getWriteCount).sum());
+        pm.close();
+    }
+}
@@ -0,0 +1,125 @@
+package edu.yu.cs.com1320.project.stage5.impl;
+
+import edu.yu.cs.com1320.project.stage5.PersistenceManager;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindPersistenceManagerTest {
+
+    //an in-memory persistence manager whose writes wait for the test to let them through
+    private static class GatedPersistenceManager implements PersistenceManager<String, String> {
+
+        private final Map<String, String> stored = new ConcurrentHashMap<>();
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+
+        @Override
+        public void serialize(String key, String val) throws IOException {
+
+            this.firstWriteStarted.countDown();
+
+            try {
+
+                this.gate.await();
+
+            } catch(InterruptedException e) {
+
+                throw new IOException(e);
+            }
+
+            this.stored.put(key, val);
+        }
+
+        @Override
+        public String deserialize(String key) throws IOException {
+
+            String val = this.stored.get(key);
+
+            if(val == null) {
+
+                throw new FileNotFoundException(key);
+            }
+
+            return val;
+        }
+
+        @Override
+        public boolean delete(String key) {
+
+            return this.stored.remove(key) != null;
+        }
+    }
+
+    @Test
+    public void pendingValuesAreServedAndFullQueueBlocks() throws Exception {
+
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        WriteBehindPersistenceManager<String, String> pm = new WriteBehindPersistenceManager<>(disk, 1, 1);
+
+        pm.serialize("a", "first");
+        disk.firstWriteStarted.await();
+        pm.serialize("b", "second");
+
+        //the only writer is stuck on "a" and "b" fills the queue, so this has to wait
+        Thread blocked = new Thread(() -> {
+
+            try {
+
+                pm.serialize("c", "third");
+
+            } catch(IOException e) {
+
+                fail(e);
+            }
+        });
+        blocked.start();
+
+        while(pm.getStallCount() == 0) {
+
+            Thread.sleep(1);
+        }
+
+        assertTrue(blocked.isAlive());
+        assertEquals("second", pm.deserialize("b"));
+        assertTrue(disk.stored.isEmpty());
+
+        disk.gate.countDown();
+        blocked.join();
+        pm.flush();
+
+        assertEquals(0, pm.getPendingCount());
+        assertEquals(3, pm.getWriteCount());
+        assertEquals("first", disk.stored.get("a"));
+        assertEquals("third", pm.deserialize("c"));
+        pm.close();
+    }
+
+    @Test
+    public void deleteCancelsPendingWrite() throws Exception {
+
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        WriteBehindPersistenceManager<String, String> pm = new WriteBehindPersistenceManager<>(disk, 4, 1);
+
+        pm.serialize("a", "first");
+        disk.firstWriteStarted.await();
+        pm.serialize("b", "second");
+        pm.serialize("b", "newer");
+
+        assertEquals("newer", pm.deserialize("b"));
+        disk.gate.countDown();
+        pm.flush();
+        assertEquals("newer", disk.stored.get("b"));
+
+        assertTrue(pm.delete("b"));
+        assertFalse(pm.delete("b"));
+        assertThrows(FileNotFoundException.class, () -> pm.deserialize("b"));
+        pm.close();
+    }
+}